@@ -27,6 +27,10 @@ val java21Modules = listOf(
     "transactionoutbox-virtthreads",
 )
 
+val java25Modules = listOf(
+    "transactionoutbox-scopedvalue",
+)
+
 val java17Modules = listOf(
     "transactionoutbox-quarkus",
     "transactionoutbox-spring",
@@ -40,15 +44,16 @@ subprojects {
     apply(plugin = "maven-publish")
 
     val buildJavaVersion = when {
+        project.name in java25Modules -> JavaVersion.toVersion(25)
         project.name in java21Modules -> JavaVersion.VERSION_21
         project.name in java17Modules -> JavaVersion.VERSION_17
         else -> JavaVersion.VERSION_11
     }
 
-    val runtimeJavaVersion = if (project.name == "transactionoutbox-spring") {
-        JavaVersion.VERSION_17
-    } else {
-        JavaVersion.VERSION_11
+    val runtimeJavaVersion = when {
+        project.name in java25Modules -> JavaVersion.toVersion(25)
+        project.name == "transactionoutbox-spring" -> JavaVersion.VERSION_17
+        else -> JavaVersion.VERSION_11
     }
 
     java {
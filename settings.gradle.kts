@@ -22,3 +22,5 @@ include(":transactionoutbox-core")
 include(":transactionoutbox-acceptance")
 include(":transactionoutbox-jooq")
 include(":transactionoutbox-virtthreads")
+include(":transactionoutbox-scopedvalue")
+include(":transactionoutbox-r2dbc")
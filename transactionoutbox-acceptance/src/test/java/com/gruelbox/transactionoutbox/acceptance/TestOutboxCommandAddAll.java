@@ -1,6 +1,8 @@
 package com.gruelbox.transactionoutbox.acceptance;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import com.gruelbox.transactionoutbox.*;
@@ -163,8 +165,7 @@ abstract class TestOutboxCommandAddAll extends AbstractAcceptanceTest {
         tx -> {
           try (PreparedStatement stmt =
               tx.connection()
-                  .prepareStatement(
-                      "SELECT seq FROM TXNO_OUTBOX WHERE topic = ? ORDER BY seq")) {
+                  .prepareStatement("SELECT seq FROM TXNO_OUTBOX WHERE topic = ? ORDER BY seq")) {
             stmt.setString(1, topic);
             List<Long> sequences = new ArrayList<>();
             try (ResultSet rs = stmt.executeQuery()) {
@@ -346,6 +347,38 @@ abstract class TestOutboxCommandAddAll extends AbstractAcceptanceTest {
     }
   }
 
+  @Test
+  final void batchableCommandsCoalesced() throws InterruptedException {
+    int batchSize = 10;
+    CountDownLatch latch = new CountDownLatch(batchSize);
+    TransactionManager transactionManager = txManager();
+    BulkReceiver receiver = new BulkReceiver();
+
+    TransactionOutbox outbox =
+        TransactionOutbox.builder()
+            .transactionManager(transactionManager)
+            .instantiator(Instantiator.using(clazz -> receiver))
+            .listener(new LatchListener(latch))
+            .persistor(Persistor.forDialect(connectionDetails().dialect()))
+            .build();
+
+    outbox.initialize();
+    clearOutbox();
+
+    List<OutboxCommand> commands = new ArrayList<>();
+    for (int i = 1; i <= batchSize; i++) {
+      commands.add(
+          OutboxCommand.call(BulkReceiver.class, "receive", String.class)
+              .withArgs("value" + i)
+              .build());
+    }
+
+    transactionManager.inTransaction(() -> outbox.addAll(null, commands));
+
+    assertTrue(latch.await(10, TimeUnit.SECONDS));
+    assertEquals(List.of(batchSize), receiver.calls);
+  }
+
   @Test
   final void emptyListNoOp() {
     TransactionManager transactionManager = txManager();
@@ -363,4 +396,29 @@ abstract class TestOutboxCommandAddAll extends AbstractAcceptanceTest {
     transactionManager.inTransaction(() -> outbox.addAll(null, List.of()));
     transactionManager.inTransaction(() -> outbox.addAll(null, null));
   }
+
+  @Test
+  final void queueIsValidated() {
+    OutboxCommand.Builder builder =
+        OutboxCommand.call(InterfaceProcessor.class, "process", int.class, String.class)
+            .withArgs(1, "a");
+    assertThrows(IllegalArgumentException.class, () -> builder.withQueue(" "));
+    assertThrows(IllegalArgumentException.class, () -> builder.withQueue("q".repeat(251)));
+    assertEquals("q".repeat(250), builder.withQueue("q".repeat(250)).build().getQueue());
+    assertNull(builder.withQueue(null).build().getQueue());
+  }
+
+  static class BulkReceiver {
+
+    final List<Integer> calls = new CopyOnWriteArrayList<>();
+
+    @Batchable("receiveAll")
+    void receive(String value) {
+      receiveAll(List.of(value));
+    }
+
+    void receiveAll(List<String> values) {
+      calls.add(values.size());
+    }
+  }
 }
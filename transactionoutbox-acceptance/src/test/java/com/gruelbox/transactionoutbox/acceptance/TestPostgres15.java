@@ -1,31 +1,36 @@
 package com.gruelbox.transactionoutbox.acceptance;
 
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toMap;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
 import com.gruelbox.transactionoutbox.Dialect;
+import com.gruelbox.transactionoutbox.Instantiator;
 import com.gruelbox.transactionoutbox.Submitter;
 import com.gruelbox.transactionoutbox.ThreadLocalContextTransactionManager;
 import com.gruelbox.transactionoutbox.TransactionOutbox;
 import com.gruelbox.transactionoutbox.testing.AbstractAcceptanceTest;
 import com.gruelbox.transactionoutbox.testing.InterfaceProcessor;
 import com.gruelbox.transactionoutbox.testing.LatchListener;
-import org.junit.jupiter.api.Test;
-import org.testcontainers.containers.JdbcDatabaseContainer;
-import org.testcontainers.containers.PostgreSQLContainer;
-import org.testcontainers.junit.jupiter.Container;
-import org.testcontainers.junit.jupiter.Testcontainers;
-
 import java.sql.SQLException;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 import java.util.stream.IntStream;
-
-import static java.util.concurrent.TimeUnit.SECONDS;
-import static java.util.stream.Collectors.toList;
-import static java.util.stream.Collectors.toMap;
-import static org.junit.jupiter.api.Assertions.assertEquals;
-import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.testcontainers.containers.JdbcDatabaseContainer;
+import org.testcontainers.containers.PostgreSQLContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
 
 @SuppressWarnings("WeakerAccess")
 @Testcontainers
@@ -49,9 +54,18 @@ class TestPostgres15 extends AbstractAcceptanceTest {
         .password(container.getPassword())
         .build();
   }
-  
+
   @Test
   void batchSequencing() throws Exception {
+    checkBatchSequencing(false);
+  }
+
+  @Test
+  void batchSequencingWithIsolatedFailures() throws Exception {
+    checkBatchSequencing(true);
+  }
+
+  private void checkBatchSequencing(boolean isolateBatchFailures) throws Exception {
     int countPerTopic = 20;
     int topicCount = 5;
 
@@ -109,6 +123,7 @@ class TestPostgres15 extends AbstractAcceptanceTest {
             .initializeImmediately(false)
             .flushBatchSize(4)
             .useOrderedBatchProcessing(true)
+            .isolateBatchFailures(isolateBatchFailures)
             .build();
 
     outbox.initialize();
@@ -155,4 +170,77 @@ class TestPostgres15 extends AbstractAcceptanceTest {
             .collect(toMap(it -> it, it -> indexes));
     assertEquals(expected, output);
   }
+
+  @Test
+  void batchSequencingWithTopicLeases() throws Exception {
+    int countPerTopic = 10;
+    int topicCount = 20;
+
+    CountDownLatch latch = new CountDownLatch(countPerTopic * topicCount);
+    ThreadLocalContextTransactionManager transactionManager =
+        (ThreadLocalContextTransactionManager) txManager();
+    Map<String, List<Integer>> output = new ConcurrentHashMap<>();
+    Supplier<TransactionOutbox> node =
+        () ->
+            TransactionOutbox.builder()
+                .transactionManager(transactionManager)
+                .submitter(Submitter.withExecutor(unreliablePool))
+                .attemptFrequency(Duration.ofMillis(500))
+                .instantiator(
+                    Instantiator.using(
+                        clazz ->
+                            (InterfaceProcessor)
+                                (foo, bar) ->
+                                    output
+                                        .computeIfAbsent(bar, k -> new CopyOnWriteArrayList<>())
+                                        .add(foo)))
+                .persistor(persistor())
+                .listener(new LatchListener(latch))
+                .flushBatchSize(4)
+                .useOrderedBatchProcessing(true)
+                .topicLeaseDuration(Duration.ofSeconds(30))
+                .build();
+    TransactionOutbox outbox1 = node.get();
+    TransactionOutbox outbox2 = node.get();
+
+    clearOutbox();
+
+    withRunningFlusher(
+        outbox1,
+        () ->
+            withRunningFlusher(
+                outbox2,
+                () -> {
+                  transactionManager.inTransaction(
+                      () -> {
+                        for (int i = 1; i <= countPerTopic; i++) {
+                          for (int j = 1; j <= topicCount; j++) {
+                            outbox1
+                                .with()
+                                .ordered("topic" + j)
+                                .schedule(InterfaceProcessor.class)
+                                .process(i, "topic" + j);
+                          }
+                        }
+                      });
+                  assertTrue(latch.await(30, SECONDS));
+                }));
+
+    transactionManager.inTransaction(
+        tx -> {
+          //noinspection resource
+          try (var stmt = tx.connection().createStatement();
+              var rs = stmt.executeQuery("SELECT COUNT(*) FROM TXNO_NODE")) {
+            assertTrue(rs.next());
+            assertEquals(2, rs.getInt(1));
+          } catch (SQLException e) {
+            throw new RuntimeException(e);
+          }
+        });
+
+    var indexes = IntStream.range(1, countPerTopic + 1).boxed().collect(toList());
+    for (int j = 1; j <= topicCount; j++) {
+      assertEquals(indexes, output.get("topic" + j));
+    }
+  }
 }
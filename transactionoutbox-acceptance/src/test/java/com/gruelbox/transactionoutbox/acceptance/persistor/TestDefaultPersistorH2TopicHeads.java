@@ -0,0 +1,64 @@
+package com.gruelbox.transactionoutbox.acceptance.persistor;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
+
+import com.gruelbox.transactionoutbox.DefaultPersistor;
+import com.gruelbox.transactionoutbox.Dialect;
+import com.gruelbox.transactionoutbox.TransactionManager;
+import com.gruelbox.transactionoutbox.testing.AbstractPersistorTest;
+import org.junit.jupiter.api.Test;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+@Testcontainers
+class TestDefaultPersistorH2TopicHeads extends AbstractPersistorTest {
+
+  private final DefaultPersistor persistor =
+      DefaultPersistor.builder().dialect(Dialect.H2).useTopicHeads(true).build();
+  private final TransactionManager txManager =
+      TransactionManager.fromConnectionDetails(
+          "org.h2.Driver",
+          "jdbc:h2:mem:test;DB_CLOSE_DELAY=-1;DEFAULT_LOCK_TIMEOUT=2000;LOB_TIMEOUT=2000;MV_STORE=TRUE",
+          "test",
+          "test");
+
+  @Override
+  protected DefaultPersistor persistor() {
+    return persistor;
+  }
+
+  @Override
+  protected TransactionManager txManager() {
+    return txManager;
+  }
+
+  @Override
+  protected Dialect dialect() {
+    return Dialect.H2;
+  }
+
+  @Override
+  public void testSkipLocked() throws Exception {
+    // Not supported.
+  }
+
+  @Test
+  void testRepopulateTopicHeads() throws Exception {
+    var withoutHeads = DefaultPersistor.builder().dialect(Dialect.H2).build();
+    var a1 = createEntry("A1", now, "A");
+    var a2 = createEntry("A2", now, "A");
+    var b1 = createEntry("B1", now, "B");
+    txManager.inTransactionThrows(
+        tx -> {
+          withoutHeads.save(tx, a1);
+          withoutHeads.save(tx, a2);
+          withoutHeads.save(tx, b1);
+        });
+    assertThat(nextInTopics(), empty());
+
+    txManager.inTransactionThrows(tx -> withoutHeads.delete(tx, a1));
+    txManager.inTransactionThrows(persistor::repopulateTopicHeads);
+    assertThat(nextInTopics(), containsInAnyOrder("A2", "B1"));
+  }
+}
@@ -7,7 +7,7 @@ import java.time.Duration;
  * used within {@link TransactionOutbox.TransactionOutboxBuilder#retentionThreshold(Duration)}.
  */
 public class AlreadyScheduledException extends RuntimeException {
-  AlreadyScheduledException(String message, Throwable cause) {
+  public AlreadyScheduledException(String message, Throwable cause) {
     super(message, cause);
   }
 }
@@ -0,0 +1,130 @@
+package com.gruelbox.transactionoutbox;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Non-blocking counterpart of {@link Persistor}, for use with an {@link AsyncTransactionManager}.
+ * Each operation returns immediately with a {@link CompletionStage} which completes once the
+ * database has responded, so no thread is held while waiting on I/O.
+ *
+ * <p>The semantics of each method, including the optimistic locking contract and the exceptions
+ * used to signal failure, are identical to the equivalent method on {@link Persistor}; failures are
+ * reported by completing the returned stage exceptionally rather than by throwing.
+ *
+ * <p>{@link TransactionOutbox} does not currently use this interface; it always processes tasks
+ * using a {@link Persistor}. Implementations allow applications which use a non-blocking driver to
+ * read and write entries directly in the same table, for processing by a {@link TransactionOutbox}
+ * configured with an equivalent {@link Persistor}.
+ *
+ * <p>Schema management is not covered by this interface. Create or upgrade the schema using {@link
+ * DefaultPersistor#migrate(TransactionManager)} or {@link DefaultPersistor#writeSchema}.
+ *
+ * @param <TX> The transaction type.
+ */
+public interface AsyncPersistor<TX extends AsyncTransaction> {
+
+  /**
+   * Saves a new {@link TransactionOutboxEntry}. See {@link Persistor#save(Transaction,
+   * TransactionOutboxEntry)}.
+   *
+   * @param tx The current transaction.
+   * @param entry The entry to save.
+   * @return Completes when saved, or exceptionally with {@link AlreadyScheduledException} if the
+   *     record already exists.
+   */
+  CompletionStage<Void> save(TX tx, TransactionOutboxEntry entry);
+
+  /**
+   * Deletes a {@link TransactionOutboxEntry}. See {@link Persistor#delete(Transaction,
+   * TransactionOutboxEntry)}.
+   *
+   * @param tx The current transaction.
+   * @param entry The entry to be deleted.
+   * @return Completes when deleted, or exceptionally with {@link OptimisticLockException} if no
+   *     matching record is found.
+   */
+  CompletionStage<Void> delete(TX tx, TransactionOutboxEntry entry);
+
+  /**
+   * Modifies an existing {@link TransactionOutboxEntry}, incrementing its version. See {@link
+   * Persistor#update(Transaction, TransactionOutboxEntry)}.
+   *
+   * @param tx The current transaction.
+   * @param entry The entry to be updated.
+   * @return Completes when updated, or exceptionally with {@link OptimisticLockException} if no
+   *     matching record is found.
+   */
+  CompletionStage<Void> update(TX tx, TransactionOutboxEntry entry);
+
+  /**
+   * Attempts to pessimistically lock an existing {@link TransactionOutboxEntry}. See {@link
+   * Persistor#lock(Transaction, TransactionOutboxEntry)}.
+   *
+   * @param tx The current transaction.
+   * @param entry The entry to be locked.
+   * @return Completes with true if the lock was acquired.
+   */
+  CompletionStage<Boolean> lock(TX tx, TransactionOutboxEntry entry);
+
+  /**
+   * Clears the blocked flag and resets the attempt count to zero. See {@link
+   * Persistor#unblock(Transaction, String)}.
+   *
+   * @param tx The current transaction.
+   * @param entryId The entry id.
+   * @return Completes with true if the entry was found and unblocked.
+   */
+  CompletionStage<Boolean> unblock(TX tx, String entryId);
+
+  /**
+   * Selects up to a specified maximum number of non-blocked, unordered records which have passed
+   * their {@link TransactionOutboxEntry#getNextAttemptTime()}. See {@link
+   * Persistor#selectBatch(Transaction, int, Instant)}.
+   *
+   * @param tx The current transaction.
+   * @param batchSize The number of records to select.
+   * @param now The time to use when selecting records.
+   * @return The records.
+   */
+  CompletionStage<List<TransactionOutboxEntry>> selectBatch(TX tx, int batchSize, Instant now);
+
+  /**
+   * Selects the next items in all the open topics as a batch. See {@link
+   * Persistor#selectNextInTopics(Transaction, int, Instant)}.
+   *
+   * @param tx The current transaction.
+   * @param batchSize The number of records to select.
+   * @param now The time to use when selecting records.
+   * @return The records.
+   */
+  CompletionStage<List<TransactionOutboxEntry>> selectNextInTopics(
+      TX tx, int batchSize, Instant now);
+
+  /**
+   * Deletes records which have processed and passed their expiry time, in specified batch sizes.
+   *
+   * @param tx The current transaction.
+   * @param batchSize The maximum number of records to delete.
+   * @param now The time to use when selecting records.
+   * @return The number of records deleted.
+   */
+  CompletionStage<Integer> deleteProcessedAndExpired(TX tx, int batchSize, Instant now);
+
+  /**
+   * Checks the connection status of a transaction.
+   *
+   * @param tx The current transaction.
+   * @return Completes with true if connected and working.
+   */
+  CompletionStage<Boolean> checkConnection(TX tx);
+
+  /**
+   * Clears the database. For testing only.
+   *
+   * @param tx The current transaction.
+   * @return Completes when cleared.
+   */
+  CompletionStage<Void> clear(TX tx);
+}
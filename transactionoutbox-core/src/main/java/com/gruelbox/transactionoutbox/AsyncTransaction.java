@@ -0,0 +1,31 @@
+package com.gruelbox.transactionoutbox;
+
+/**
+ * Access and manipulation of a currently-active non-blocking transaction. The asynchronous
+ * counterpart of {@link Transaction}, used with {@link AsyncTransactionManager} and {@link
+ * AsyncPersistor}.
+ *
+ * <p>Implementations expose their driver-specific connection type directly; the interface only
+ * defines what is common to all of them.
+ */
+public interface AsyncTransaction {
+
+  /**
+   * @param <T> The context type. Coerced on read.
+   * @return A {@link AsyncTransactionManager}-specific object representing the context of this
+   *     transaction.
+   */
+  default <T> T context() {
+    return null;
+  }
+
+  /**
+   * Will be called to perform work immediately after the current transaction is committed. Unlike
+   * {@link Transaction#addPostCommitHook(Runnable)}, this is not guaranteed to occur on the thread
+   * which started the transaction; it will run on whichever thread completes the commit, which is
+   * usually a driver event loop thread. Hooks must therefore never block.
+   *
+   * @param runnable The code to run post-commit.
+   */
+  void addPostCommitHook(Runnable runnable);
+}
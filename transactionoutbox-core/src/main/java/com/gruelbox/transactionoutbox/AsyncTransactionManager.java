@@ -0,0 +1,31 @@
+package com.gruelbox.transactionoutbox;
+
+import java.util.concurrent.CompletionStage;
+import java.util.function.Function;
+
+/**
+ * Non-blocking counterpart of {@link TransactionManager}, for use with drivers such as R2DBC which
+ * do not tie a transaction to a thread.
+ *
+ * <p>Since there is no thread to bind the current transaction to, it is always passed explicitly to
+ * the work, in the style of {@link ParameterContextTransactionManager}.
+ *
+ * <p>{@link TransactionOutbox} does not currently accept an {@code AsyncTransactionManager}; it is
+ * used with {@link AsyncPersistor} to work with entries directly.
+ *
+ * @param <TX> The transaction type.
+ */
+public interface AsyncTransactionManager<TX extends AsyncTransaction> {
+
+  /**
+   * Starts a new transaction, calls {@code work} and then, once the {@link CompletionStage} it
+   * returns completes, either commits on success or rolls back on failure. Post-commit hooks are
+   * fired once the commit completes and before the returned stage completes.
+   *
+   * @param work Code which must be called while the transaction is active. Must not block.
+   * @param <T> The type returned.
+   * @return A stage which completes with the result of {@code work} once the transaction has
+   *     committed, or exceptionally with the failure if it was rolled back.
+   */
+  <T> CompletionStage<T> inTransaction(Function<? super TX, ? extends CompletionStage<T>> work);
+}
@@ -0,0 +1,52 @@
+package com.gruelbox.transactionoutbox;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a single-argument method scheduled using {@link TransactionOutbox} as having a companion
+ * bulk method, which accepts a {@link java.util.List} of the arguments of many calls and processes
+ * them together. When several unordered tasks for the method are ready at the same time, they are
+ * processed using a single call to the bulk method rather than one call each.
+ *
+ * <p>Tasks are grouped when they are picked up by {@link TransactionOutbox#flush()} and, if {@link
+ * TransactionOutbox.TransactionOutboxBuilder#coalesceWindow(java.time.Duration)} is set, when they
+ * are submitted for processing after commit.
+ *
+ * <p>All the tasks in a group are processed in the same transaction. If the bulk method throws, the
+ * transaction is rolled back and every task in the group is treated as having failed, so the bulk
+ * method should either succeed or fail as a whole.
+ *
+ * <p>Usage:
+ *
+ * <pre>class NotificationService {
+ *
+ *   {@literal @}Batchable(value = "sendAll", maxBatchSize = 500)
+ *   void send(Notification notification) {
+ *     sendAll(List.of(notification));
+ *   }
+ *
+ *   void sendAll(List&lt;Notification&gt; notifications) {
+ *     pushApi.send(notifications);
+ *   }
+ * }</pre>
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Batchable {
+
+  /**
+   * @return The name of the bulk method, declared on the same class, which takes a single {@link
+   *     java.util.List} parameter.
+   */
+  String value();
+
+  /**
+   * @return The maximum number of tasks to pass to the bulk method in one call.
+   */
+  int maxBatchSize() default 100;
+}
@@ -0,0 +1,118 @@
+package com.gruelbox.transactionoutbox;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Tracks consecutive failures of each handler method, as reported to {@link
+ * TransactionOutboxListener}, and tells {@link TransactionOutbox} to stop claiming tasks for a
+ * method which keeps failing. See {@link
+ * TransactionOutbox.TransactionOutboxBuilder#circuitBreakerThreshold(int)}.
+ *
+ * <p>Each method's breaker starts closed. It opens after {@code failureThreshold} consecutive
+ * failures, and no tasks are claimed for the method while it is open. Once {@code openDuration} has
+ * passed, the breaker is half-open: a single task is let through as a probe. If the probe succeeds,
+ * the breaker closes; if it fails, the breaker opens again. If the probe has not reported back
+ * within a further {@code openDuration}, another probe is let through.
+ */
+@Slf4j
+@RequiredArgsConstructor
+final class CircuitBreakers implements TransactionOutboxListener, Validatable {
+
+  private final int failureThreshold;
+  private final Duration openDuration;
+  private final Supplier<Clock> clockProvider;
+  private final Map<String, Breaker> breakers = new ConcurrentHashMap<>();
+
+  /**
+   * @param entry The entry.
+   * @return True if the entry may be claimed for processing. If the breaker for its method is
+   *     half-open, this counts as the probe.
+   */
+  boolean allows(TransactionOutboxEntry entry) {
+    var breaker = breakers.get(key(entry.getInvocation()));
+    return breaker == null || breaker.allows(clockProvider.get().instant());
+  }
+
+  @Override
+  public void success(TransactionOutboxEntry entry) {
+    var breaker = breakers.get(key(entry.getInvocation()));
+    if (breaker != null) {
+      breaker.success();
+    }
+  }
+
+  @Override
+  public void failure(TransactionOutboxEntry entry, Throwable cause) {
+    breakers
+        .computeIfAbsent(key(entry.getInvocation()), Breaker::new)
+        .failure(clockProvider.get().instant());
+  }
+
+  @Override
+  public void validate(Validator validator) {
+    validator.min("circuitBreakerThreshold", failureThreshold, 1);
+    validator.notNull("circuitBreakerOpenDuration", openDuration);
+    validator.isTrue(
+        "circuitBreakerOpenDuration",
+        !openDuration.isNegative() && !openDuration.isZero(),
+        "must be positive");
+  }
+
+  private static String key(Invocation invocation) {
+    return invocation == null ? "" : invocation.getClassName() + "." + invocation.getMethodName();
+  }
+
+  private final class Breaker {
+    private final String name;
+    private int failures;
+    private Instant openUntil;
+
+    private Breaker(String name) {
+      this.name = name;
+    }
+
+    synchronized boolean allows(Instant now) {
+      if (openUntil == null) {
+        return true;
+      }
+      if (now.isBefore(openUntil)) {
+        return false;
+      }
+      log.info("Circuit breaker for {} half-open. Probing with a single task", name);
+      openUntil = now.plus(openDuration);
+      return true;
+    }
+
+    synchronized void success() {
+      if (openUntil != null) {
+        log.info("Closing circuit breaker for {}", name);
+      }
+      failures = 0;
+      openUntil = null;
+    }
+
+    synchronized void failure(Instant now) {
+      failures++;
+      if (failures < failureThreshold) {
+        return;
+      }
+      if (openUntil == null) {
+        log.warn(
+            "Opening circuit breaker for {} after {} consecutive failures. Pausing for {}",
+            name,
+            failures,
+            openDuration);
+      } else {
+        log.debug("Circuit breaker for {} remains open", name);
+      }
+      openUntil = now.plus(openDuration);
+    }
+  }
+}
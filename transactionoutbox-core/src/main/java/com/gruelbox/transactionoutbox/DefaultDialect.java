@@ -30,6 +30,8 @@ class DefaultDialect implements Dialect {
   @Getter private final String checkSql;
   @Getter private final String fetchNextInAllTopics;
   @Getter private final String fetchNextInSelectedTopics;
+  @Getter private final String fetchNextInAllTopicHeads;
+  @Getter private final String fetchNextInSelectedTopicHeads;
   @Getter private final String fetchNextBatchInTopics;
   @Getter private final String fetchCurrentVersion;
   @Getter private final String fetchNextSequence;
@@ -68,7 +70,8 @@ class DefaultDialect implements Dialect {
             + " LIMIT {{batchSize}}";
     private String selectBatch =
         "SELECT {{allFields}} FROM {{table}} WHERE nextAttemptTime < ? "
-            + "AND blocked = false AND processed = false AND topic = '*' LIMIT {{batchSize}}";
+            + "AND blocked = false AND processed = false AND topic = '*' AND {{queueFilter}} "
+            + "ORDER BY dispatchAfter LIMIT {{batchSize}}";
     private String lock =
         "SELECT id, invocation FROM {{table}} WHERE id = ? AND version = ? FOR UPDATE";
     private String lockBatch =
@@ -79,23 +82,35 @@ class DefaultDialect implements Dialect {
     private SQLAction createVersionTableBy;
     private String fetchNextInAllTopics =
         "SELECT {{allFields}} FROM {{table}} a"
-            + " WHERE processed = false AND topic <> '*' AND nextAttemptTime < ?"
-            + " AND seq = ("
+            + " WHERE processed = false AND blocked = false AND topic <> '*'"
+            + " AND nextAttemptTime < ? AND seq = ("
             + "SELECT MIN(seq) FROM {{table}} b WHERE b.topic=a.topic AND b.processed = false"
             + ") LIMIT {{batchSize}}";
     private String fetchNextInSelectedTopics =
         "SELECT {{allFields}} FROM {{table}} a"
-            + " WHERE processed = false AND topic IN ({{topicNames}}) AND nextAttemptTime < ?"
-            + " AND seq = ("
+            + " WHERE processed = false AND blocked = false AND topic IN ({{topicNames}})"
+            + " AND nextAttemptTime < ? AND seq = ("
             + "SELECT MIN(seq) FROM {{table}} b WHERE b.topic=a.topic AND b.processed = false"
             + ") LIMIT {{batchSize}}";
+    private String fetchNextInAllTopicHeads =
+        "SELECT {{allFields}} FROM {{topicHeadTable}} h"
+            + " JOIN {{table}} a ON a.topic = h.topic AND a.seq = h.seq"
+            + " WHERE h.nextAttemptTime < ? AND a.processed = false AND a.blocked = false"
+            + " LIMIT {{batchSize}}";
+    private String fetchNextInSelectedTopicHeads =
+        "SELECT {{allFields}} FROM {{topicHeadTable}} h"
+            + " JOIN {{table}} a ON a.topic = h.topic AND a.seq = h.seq"
+            + " WHERE h.topic IN ({{topicNames}}) AND h.nextAttemptTime < ?"
+            + " AND a.processed = false AND a.blocked = false LIMIT {{batchSize}}";
     private String fetchNextBatchInTopics =
         "WITH raw AS ("
             + " SELECT {{allFields}}, ROW_NUMBER() OVER (PARTITION BY topic ORDER BY seq) as rn"
             + " FROM {{table}}"
-            + " WHERE processed = false AND topic <> '*'"
+            + " WHERE processed = false AND topic <> '*' AND {{topicBucketFilter}}"
             + ")"
-            + " SELECT * FROM raw WHERE rn <= {{batchSize}} AND nextAttemptTime < ? LIMIT {{batchSize}}";
+            + " SELECT * FROM raw WHERE rn <= {{batchSize}} AND nextAttemptTime < ?"
+            + " AND topic NOT IN (SELECT topic FROM raw WHERE blocked = true)"
+            + " LIMIT {{batchSize}}";
     private String fetchCurrentVersion = "SELECT version FROM TXNO_VERSION FOR UPDATE";
     private String fetchNextSequence = "SELECT seq FROM TXNO_SEQUENCE WHERE topic = ? FOR UPDATE";
 
@@ -177,6 +192,85 @@ class DefaultDialect implements Dialect {
               "Add flush index to support ordering",
               "CREATE INDEX IX_TXNO_OUTBOX_2 ON TXNO_OUTBOX (topic, processed, seq)"));
       migrations.put(13, new Migration(13, "Enforce UTF8 collation for outbox messages", null));
+      migrations.put(
+          14,
+          new Migration(
+              14,
+              "Add topic head table",
+              "CREATE TABLE TXNO_TOPIC_HEAD (topic VARCHAR(250) NOT NULL, seq BIGINT NOT NULL, "
+                  + "nextAttemptTime TIMESTAMP(6) NULL, PRIMARY KEY (topic))"));
+      migrations.put(
+          15,
+          new Migration(
+              15,
+              "Add topic head index",
+              "CREATE INDEX IX_TXNO_TOPIC_HEAD_1 ON TXNO_TOPIC_HEAD (nextAttemptTime)"));
+      migrations.put(
+          16,
+          new Migration(
+              16,
+              "Populate topic head table",
+              "INSERT INTO TXNO_TOPIC_HEAD (topic, seq, nextAttemptTime)"
+                  + " SELECT a.topic, a.seq, a.nextAttemptTime FROM TXNO_OUTBOX a"
+                  + " WHERE a.processed = false AND a.topic <> '*' AND a.seq = ("
+                  + "SELECT MIN(b.seq) FROM TXNO_OUTBOX b"
+                  + " WHERE b.topic = a.topic AND b.processed = false"
+                  + ")"));
+      migrations.put(
+          17,
+          new Migration(
+              17, "Add topic bucket", "ALTER TABLE TXNO_OUTBOX ADD COLUMN topicBucket INT NULL"));
+      migrations.put(
+          18,
+          new Migration(
+              18,
+              "Add node lease table",
+              "CREATE TABLE TXNO_NODE (id VARCHAR(36) NOT NULL, expiresAt TIMESTAMP(6) NULL, "
+                  + "PRIMARY KEY (id))"));
+      migrations.put(
+          19,
+          new Migration(
+              19,
+              "Add topic bucket index",
+              "CREATE INDEX IX_TXNO_OUTBOX_3 ON TXNO_OUTBOX (topicBucket, processed, topic, seq)"));
+      migrations.put(
+          20,
+          new Migration(
+              20,
+              "Add priority",
+              "ALTER TABLE TXNO_OUTBOX ADD COLUMN priority INT DEFAULT 0 NOT NULL"));
+      migrations.put(
+          21,
+          new Migration(
+              21,
+              "Add dispatch order",
+              "ALTER TABLE TXNO_OUTBOX ADD COLUMN dispatchAfter TIMESTAMP(6) NULL"));
+      migrations.put(
+          22,
+          new Migration(
+              22,
+              "Populate dispatch order",
+              "UPDATE TXNO_OUTBOX SET dispatchAfter = nextAttemptTime"));
+      migrations.put(
+          23,
+          new Migration(
+              23,
+              "Add dispatch order index",
+              "CREATE INDEX IX_TXNO_OUTBOX_4 ON TXNO_OUTBOX "
+                  + "(topic, processed, blocked, dispatchAfter)"));
+      migrations.put(
+          24,
+          new Migration(
+              24,
+              "Add queue",
+              "ALTER TABLE TXNO_OUTBOX ADD COLUMN queue VARCHAR(250) NOT NULL DEFAULT 'default'"));
+      migrations.put(
+          25,
+          new Migration(
+              25,
+              "Add queue index",
+              "CREATE INDEX IX_TXNO_OUTBOX_5 ON TXNO_OUTBOX "
+                  + "(queue, topic, processed, blocked, dispatchAfter)"));
     }
 
     Builder setMigration(Migration migration) {
@@ -203,6 +297,8 @@ class DefaultDialect implements Dialect {
           checkSql,
           fetchNextInAllTopics,
           fetchNextInSelectedTopics,
+          fetchNextInAllTopicHeads,
+          fetchNextInSelectedTopicHeads,
           fetchNextBatchInTopics,
           fetchCurrentVersion,
           fetchNextSequence,
@@ -11,10 +11,13 @@ import java.sql.SQLIntegrityConstraintViolationException;
 import java.sql.SQLTimeoutException;
 import java.sql.Statement;
 import java.sql.Timestamp;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
@@ -41,7 +44,18 @@ import lombok.extern.slf4j.Slf4j;
 public class DefaultPersistor implements Persistor, Validatable {
 
   private static final String ALL_FIELDS =
-      "id, uniqueRequestId, invocation, topic, seq, lastAttemptTime, nextAttemptTime, attempts, blocked, processed, version";
+      "id, uniqueRequestId, invocation, topic, seq, lastAttemptTime, nextAttemptTime, attempts, blocked, processed, version, priority, queue";
+
+  private static final String INSERT_FIELDS = ALL_FIELDS + ", topicBucket, dispatchAfter";
+
+  /**
+   * The number of buckets into which topics are hashed, in order to share out ownership of topics
+   * between nodes. Changing this would reassign existing entries, so it is fixed.
+   */
+  private static final int TOPIC_BUCKETS = 1024;
+
+  private static final String ALL_FIELDS_ALIASED =
+      "a.id, a.uniqueRequestId, a.invocation, a.topic, a.seq, a.lastAttemptTime, a.nextAttemptTime, a.attempts, a.blocked, a.processed, a.version, a.priority, a.queue";
 
   /**
    * @param writeLockTimeoutSeconds How many seconds to wait before timing out on obtaining a write
@@ -87,6 +101,52 @@ public class DefaultPersistor implements Persistor, Validatable {
   private final InvocationSerializer serializer =
       InvocationSerializer.createDefaultJsonSerializer();
 
+  /**
+   * @param useTopicHeads Set to true to maintain the topic head table, which records the next
+   *     sequence number and due time of each topic, and to use it when selecting the next entries
+   *     in topics. Without it, finding the head of each topic requires a scan of every unprocessed
+   *     ordered entry, which becomes expensive with large numbers of topics or deep backlogs. With
+   *     it, the cost scales with the number of topics which are due. The cost is one or two extra
+   *     statements each time an ordered entry is saved, retried or completed.
+   *     <p>The table is populated from existing entries when it is created by migration, but is not
+   *     maintained while this is disabled. If it is enabled later on a database which has been
+   *     processing ordered entries in the meantime, call {@link #repopulateTopicHeads(Transaction)}
+   *     first, while no ordered entries are being saved or processed. All persistors writing to the
+   *     same database should use the same setting. Defaults to false.
+   */
+  @SuppressWarnings("JavaDoc")
+  @Builder.Default
+  private final boolean useTopicHeads = false;
+
+  /**
+   * @param topicHeadTableName The name of the table maintained when {@code useTopicHeads} is set.
+   *     The default is {@code TXNO_TOPIC_HEAD}.
+   */
+  @SuppressWarnings("JavaDoc")
+  @Builder.Default
+  private final String topicHeadTableName = "TXNO_TOPIC_HEAD";
+
+  /**
+   * @param nodeTableName The name of the table in which nodes record their leases when sharing out
+   *     ordered topics. The default is {@code TXNO_NODE}.
+   */
+  @SuppressWarnings("JavaDoc")
+  @Builder.Default
+  private final String nodeTableName = "TXNO_NODE";
+
+  /**
+   * @param priorityAging The amount of waiting time which is considered equivalent to one unit of
+   *     {@link TransactionOutboxEntry#getPriority()} when selecting unordered entries. An entry
+   *     with priority 2 which became due at 12:00 is selected alongside an entry with priority 0
+   *     which became due two units earlier, so low priority work is never starved indefinitely. The
+   *     resulting order is written to the {@code dispatchAfter} column whenever an entry is saved
+   *     or updated, so changing this only affects entries written afterwards. Defaults to one
+   *     minute.
+   */
+  @SuppressWarnings("JavaDoc")
+  @Builder.Default
+  private final Duration priorityAging = Duration.ofMinutes(1);
+
   @Override
   public void validate(Validator validator) {
     validator.notNull("dialect", dialect);
@@ -117,13 +177,16 @@ public class DefaultPersistor implements Persistor, Validatable {
         "INSERT INTO "
             + tableName
             + " ("
-            + ALL_FIELDS
-            + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+            + INSERT_FIELDS
+            + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
     var writer = new StringWriter();
     serializer.serializeInvocation(entry.getInvocation(), writer);
     if (entry.getTopic() != null) {
       setNextSequence(tx, entry);
       log.info("Assigned sequence number {} to topic {}", entry.getSequence(), entry.getTopic());
+      if (useTopicHeads) {
+        saveTopicHead(tx, entry);
+      }
     }
     PreparedStatement stmt = tx.prepareBatchStatement(insertSql);
     setupInsert(entry, writer, stmt);
@@ -211,6 +274,9 @@ public class DefaultPersistor implements Persistor, Validatable {
     // If topic is set, acquire sequence lock once, assign all sequences, update once
     if (batchTopic != null) {
       assignSequencesForBatch(tx, entriesToBatch, batchTopic);
+      if (useTopicHeads) {
+        saveTopicHead(tx, entriesToBatch.get(0));
+      }
     }
 
     // Batch insert all entries
@@ -218,8 +284,8 @@ public class DefaultPersistor implements Persistor, Validatable {
         "INSERT INTO "
             + tableName
             + " ("
-            + ALL_FIELDS
-            + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+            + INSERT_FIELDS
+            + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
 
     PreparedStatement stmt = tx.prepareBatchStatement(insertSql);
     for (TransactionOutboxEntry entry : entriesToBatch) {
@@ -237,16 +303,15 @@ public class DefaultPersistor implements Persistor, Validatable {
       }
     } catch (Exception e) {
       if (indexViolation(e)) {
-        throw new AlreadyScheduledException(
-            "One or more entries in batch already exist", e);
+        throw new AlreadyScheduledException("One or more entries in batch already exist", e);
       }
       throw e;
     }
   }
 
   /**
-   * Acquires the sequence lock once for the topic, assigns sequence numbers to all entries,
-   * and updates the sequence table once. The lock is held until the transaction commits.
+   * Acquires the sequence lock once for the topic, assigns sequence numbers to all entries, and
+   * updates the sequence table once. The lock is held until the transaction commits.
    */
   private void assignSequencesForBatch(
       Transaction tx, List<TransactionOutboxEntry> entries, String topic) throws SQLException {
@@ -297,17 +362,12 @@ public class DefaultPersistor implements Persistor, Validatable {
     // Update sequence table once: set to currentSeq + N
     long finalSeq = currentSeq + entries.size();
     //noinspection resource
-    var seqUpdate =
-        tx.prepareBatchStatement("UPDATE TXNO_SEQUENCE SET seq = ? WHERE topic = ?");
+    var seqUpdate = tx.prepareBatchStatement("UPDATE TXNO_SEQUENCE SET seq = ? WHERE topic = ?");
     seqUpdate.setLong(1, finalSeq);
     seqUpdate.setString(2, topic);
     seqUpdate.executeUpdate();
 
-    log.info(
-        "Assigned sequence numbers {} to {} for topic {}",
-        startSeq,
-        finalSeq,
-        topic);
+    log.info("Assigned sequence numbers {} to {} for topic {}", startSeq, finalSeq, topic);
   }
 
   /**
@@ -326,14 +386,157 @@ public class DefaultPersistor implements Persistor, Validatable {
           batchTopic = entry.getTopic();
         } else if (!batchTopic.equals(entry.getTopic())) {
           throw new IllegalArgumentException(
-              "All entries in a batch must have the same topic. Found topics: " + batchTopic
-                  + " and " + entry.getTopic());
+              "All entries in a batch must have the same topic. Found topics: "
+                  + batchTopic
+                  + " and "
+                  + entry.getTopic());
         }
       }
     }
     return batchTopic;
   }
 
+  /**
+   * Records the due time of a newly saved ordered entry against its topic head if the entry is at
+   * the head, or creates the head if the topic has none. This always updates the head row, even if
+   * the entry is not at the head, so that the row lock serializes it against {@link
+   * #advanceTopicHead(Transaction, TransactionOutboxEntry)}. Called while holding the lock on the
+   * topic's sequence.
+   */
+  private void saveTopicHead(Transaction tx, TransactionOutboxEntry entry) throws SQLException {
+    //noinspection resource
+    var headUpdate =
+        tx.prepareBatchStatement(
+            "UPDATE "
+                + topicHeadTableName
+                + " SET nextAttemptTime = "
+                + "CASE WHEN seq = ? THEN ? ELSE nextAttemptTime END WHERE topic = ?");
+    headUpdate.setLong(1, entry.getSequence());
+    headUpdate.setTimestamp(2, Timestamp.from(entry.getNextAttemptTime()));
+    headUpdate.setString(3, entry.getTopic());
+    if (headUpdate.executeUpdate() == 0) {
+      //noinspection resource
+      var headInsert =
+          tx.prepareBatchStatement(
+              "INSERT INTO "
+                  + topicHeadTableName
+                  + " (topic, seq, nextAttemptTime) VALUES (?, ?, ?)");
+      headInsert.setString(1, entry.getTopic());
+      headInsert.setLong(2, entry.getSequence());
+      headInsert.setTimestamp(3, Timestamp.from(entry.getNextAttemptTime()));
+      headInsert.executeUpdate();
+    }
+  }
+
+  private void updateTopicHead(Transaction tx, TransactionOutboxEntry entry, boolean removed)
+      throws SQLException {
+    if (entry.getTopic() == null || entry.getSequence() == null) {
+      return;
+    }
+    if (removed || entry.isProcessed()) {
+      advanceTopicHead(tx, entry);
+      return;
+    }
+    //noinspection resource
+    try (PreparedStatement stmt =
+        tx.connection()
+            .prepareStatement(
+                "UPDATE "
+                    + topicHeadTableName
+                    + " SET nextAttemptTime = ? WHERE topic = ? AND seq = ?")) {
+      stmt.setTimestamp(1, Timestamp.from(entry.getNextAttemptTime()));
+      stmt.setString(2, entry.getTopic());
+      stmt.setLong(3, entry.getSequence());
+      stmt.executeUpdate();
+    }
+  }
+
+  /**
+   * Moves the head of the entry's topic on to the next unprocessed entry in the topic, if the entry
+   * was at the head, or removes the head if there is none. Sequence numbers may have gaps, such as
+   * where entries after the head have been deleted, so the next entry is found by looking for the
+   * lowest unprocessed sequence number after the entry's. This is done in a separate statement
+   * after locking the head row so that entries saved by a transaction we had to wait for are
+   * visible.
+   */
+  private void advanceTopicHead(Transaction tx, TransactionOutboxEntry entry) throws SQLException {
+    //noinspection resource
+    try (PreparedStatement stmt =
+        tx.connection()
+            .prepareStatement(
+                "UPDATE "
+                    + topicHeadTableName
+                    + " SET nextAttemptTime = NULL WHERE topic = ? AND seq = ?")) {
+      stmt.setString(1, entry.getTopic());
+      stmt.setLong(2, entry.getSequence());
+      if (stmt.executeUpdate() == 0) {
+        return;
+      }
+    }
+    Long nextSeq = null;
+    Timestamp nextAttemptTime = null;
+    //noinspection resource
+    try (PreparedStatement stmt =
+        tx.connection()
+            .prepareStatement(
+                "SELECT a.seq, a.nextAttemptTime FROM "
+                    + tableName
+                    + " a WHERE a.topic = ? AND a.processed = "
+                    + dialect.booleanValue(false)
+                    + " AND a.seq = (SELECT MIN(b.seq) FROM "
+                    + tableName
+                    + " b WHERE b.topic = ? AND b.seq > ? AND b.processed = "
+                    + dialect.booleanValue(false)
+                    + ")")) {
+      stmt.setString(1, entry.getTopic());
+      stmt.setString(2, entry.getTopic());
+      stmt.setLong(3, entry.getSequence());
+      try (ResultSet rs = stmt.executeQuery()) {
+        if (rs.next()) {
+          nextSeq = rs.getLong(1);
+          nextAttemptTime = rs.getTimestamp(2);
+        }
+      }
+    }
+    if (nextSeq == null) {
+      //noinspection resource
+      try (PreparedStatement stmt =
+          tx.connection()
+              .prepareStatement("DELETE FROM " + topicHeadTableName + " WHERE topic = ?")) {
+        stmt.setString(1, entry.getTopic());
+        stmt.executeUpdate();
+      }
+      log.debug("Removed head of topic {} after {}", entry.getTopic(), entry.getSequence());
+      return;
+    }
+    //noinspection resource
+    try (PreparedStatement stmt =
+        tx.connection()
+            .prepareStatement(
+                "UPDATE "
+                    + topicHeadTableName
+                    + " SET seq = ?, nextAttemptTime = ? WHERE topic = ?")) {
+      stmt.setLong(1, nextSeq);
+      stmt.setTimestamp(2, nextAttemptTime);
+      stmt.setString(3, entry.getTopic());
+      stmt.executeUpdate();
+    }
+    log.debug(
+        "Advanced head of topic {} from {} to {}", entry.getTopic(), entry.getSequence(), nextSeq);
+  }
+
+  private void updateTopicHeads(
+      Transaction tx, List<TransactionOutboxEntry> entries, boolean removed) throws SQLException {
+    var ordered =
+        entries.stream()
+            .filter(entry -> entry.getTopic() != null && entry.getSequence() != null)
+            .sorted(Comparator.comparing(TransactionOutboxEntry::getSequence))
+            .collect(Collectors.toList());
+    for (TransactionOutboxEntry entry : ordered) {
+      updateTopicHead(tx, entry, removed);
+    }
+  }
+
   private boolean indexViolation(Exception e) {
     return (e instanceof SQLIntegrityConstraintViolationException)
         || (e.getClass().getName().equals("org.postgresql.util.PSQLException")
@@ -361,6 +564,31 @@ public class DefaultPersistor implements Persistor, Validatable {
     stmt.setBoolean(9, entry.isBlocked());
     stmt.setBoolean(10, entry.isProcessed());
     stmt.setInt(11, entry.getVersion());
+    stmt.setInt(12, entry.getPriority());
+    stmt.setString(
+        13, entry.getQueue() == null ? TransactionOutbox.DEFAULT_QUEUE : entry.getQueue());
+    if (entry.getTopic() == null) {
+      stmt.setObject(14, null);
+    } else {
+      stmt.setInt(14, topicBucket(entry.getTopic()));
+    }
+    stmt.setTimestamp(15, dispatchAfter(entry));
+  }
+
+  /**
+   * Returns the bucket to which a topic is assigned when sharing out ordered topics between nodes.
+   * Other persistors writing to the same table must assign the same buckets.
+   *
+   * @param topic The topic.
+   * @return The bucket.
+   */
+  public static int topicBucket(String topic) {
+    return Math.floorMod(topic.hashCode(), TOPIC_BUCKETS);
+  }
+
+  private Timestamp dispatchAfter(TransactionOutboxEntry entry) {
+    return Timestamp.from(
+        entry.getNextAttemptTime().minus(priorityAging.multipliedBy(entry.getPriority())));
   }
 
   @Override
@@ -375,6 +603,9 @@ public class DefaultPersistor implements Persistor, Validatable {
       }
       log.debug("Deleted {}", entry.description());
     }
+    if (useTopicHeads) {
+      updateTopicHead(tx, entry, true);
+    }
   }
 
   @Override
@@ -402,6 +633,9 @@ public class DefaultPersistor implements Persistor, Validatable {
       }
       log.debug("Batch deleted {} entries", results.length);
     }
+    if (useTopicHeads) {
+      updateTopicHeads(tx, entries, true);
+    }
   }
 
   @Override
@@ -414,7 +648,8 @@ public class DefaultPersistor implements Persistor, Validatable {
                 "UPDATE "
                     + tableName
                     + " "
-                    + "SET lastAttemptTime = ?, nextAttemptTime = ?, attempts = ?, blocked = ?, processed = ?, version = ? "
+                    + "SET lastAttemptTime = ?, nextAttemptTime = ?, attempts = ?, blocked = ?, processed = ?, version = ?, "
+                    + "dispatchAfter = ? "
                     + "WHERE id = ? and version = ?")) {
       stmt.setTimestamp(
           1,
@@ -424,14 +659,18 @@ public class DefaultPersistor implements Persistor, Validatable {
       stmt.setBoolean(4, entry.isBlocked());
       stmt.setBoolean(5, entry.isProcessed());
       stmt.setInt(6, entry.getVersion() + 1);
-      stmt.setString(7, entry.getId());
-      stmt.setInt(8, entry.getVersion());
+      stmt.setTimestamp(7, dispatchAfter(entry));
+      stmt.setString(8, entry.getId());
+      stmt.setInt(9, entry.getVersion());
       if (stmt.executeUpdate() != 1) {
         throw new OptimisticLockException();
       }
       entry.setVersion(entry.getVersion() + 1);
       log.debug("Updated {}", entry.description());
     }
+    if (useTopicHeads) {
+      updateTopicHead(tx, entry, false);
+    }
   }
 
   @Override
@@ -443,7 +682,7 @@ public class DefaultPersistor implements Persistor, Validatable {
                     + tableName
                     + " SET "
                     + "lastAttemptTime = ?, nextAttemptTime = ?, attempts = ?, "
-                    + "blocked = ?, processed = ?, version = ? "
+                    + "blocked = ?, processed = ?, version = ?, dispatchAfter = ? "
                     + "WHERE id = ? AND version = ?")) {
 
       for (TransactionOutboxEntry entry : entries) {
@@ -455,8 +694,9 @@ public class DefaultPersistor implements Persistor, Validatable {
         stmt.setBoolean(4, entry.isBlocked());
         stmt.setBoolean(5, entry.isProcessed());
         stmt.setInt(6, entry.getVersion() + 1);
-        stmt.setString(7, entry.getId());
-        stmt.setInt(8, entry.getVersion());
+        stmt.setTimestamp(7, dispatchAfter(entry));
+        stmt.setString(8, entry.getId());
+        stmt.setInt(9, entry.getVersion());
         stmt.addBatch();
       }
 
@@ -471,6 +711,9 @@ public class DefaultPersistor implements Persistor, Validatable {
       }
       log.debug("Batch updated {} entries", results.length);
     }
+    if (useTopicHeads) {
+      updateTopicHeads(tx, entries, false);
+    }
   }
 
   @Override
@@ -512,6 +755,76 @@ public class DefaultPersistor implements Persistor, Validatable {
       return true; // Nothing to lock is considered success
     }
 
+    Map<String, Invocation> invocationsById = lockAndFetchInvocations(tx, entries);
+    if (invocationsById == null) {
+      return false;
+    }
+
+    // If we didn't get all entries, return false
+    if (invocationsById.size() != entries.size()) {
+      log.debug("Could only lock {} out of {} entries", invocationsById.size(), entries.size());
+      return false;
+    }
+
+    // Update each entry with its deserialized invocation
+    for (TransactionOutboxEntry entry : entries) {
+      Invocation invocation = invocationsById.get(entry.getId());
+      if (invocation == null) {
+        log.error("Could not find result for entry {}", entry.getId());
+        return false;
+      }
+      entry.setInvocation(invocation);
+    }
+
+    return true;
+  }
+
+  @Override
+  public List<TransactionOutboxEntry> lockBatchPrefix(
+      Transaction tx, List<TransactionOutboxEntry> entries) throws Exception {
+    if (entries == null || entries.isEmpty()) {
+      return List.of();
+    }
+
+    Map<String, Invocation> invocationsById = lockAndFetchInvocations(tx, entries);
+    if (invocationsById == null) {
+      return List.of();
+    }
+
+    // Take entries from each topic in sequence order, stopping at the first we failed to lock
+    var sorted = new ArrayList<>(entries);
+    sorted.sort(
+        Comparator.comparing(
+                TransactionOutboxEntry::getTopic, Comparator.nullsFirst(Comparator.naturalOrder()))
+            .thenComparing(
+                TransactionOutboxEntry::getSequence,
+                Comparator.nullsFirst(Comparator.naturalOrder())));
+    var locked = new ArrayList<TransactionOutboxEntry>(sorted.size());
+    var stoppedTopics = new HashSet<String>();
+    for (TransactionOutboxEntry entry : sorted) {
+      if (stoppedTopics.contains(entry.getTopic())) {
+        continue;
+      }
+      Invocation invocation = invocationsById.get(entry.getId());
+      if (invocation == null) {
+        stoppedTopics.add(entry.getTopic());
+        continue;
+      }
+      entry.setInvocation(invocation);
+      locked.add(entry);
+    }
+    if (locked.size() != entries.size()) {
+      log.debug("Could only lock a prefix of {} out of {} entries", locked.size(), entries.size());
+    }
+    return locked;
+  }
+
+  /**
+   * Locks the specified entries where their versions still match, returning the invocations of
+   * those locked by id, or null if the lock attempt timed out.
+   */
+  private Map<String, Invocation> lockAndFetchInvocations(
+      Transaction tx, List<TransactionOutboxEntry> entries) throws Exception {
     // Create placeholders for each entry
     String placeholders = entries.stream().map(e -> "(?, ?)").collect(Collectors.joining(", "));
 
@@ -544,29 +857,11 @@ public class DefaultPersistor implements Persistor, Validatable {
               invocationsById.put(id, invocation);
             }
           }
-
-          // If we didn't get all entries, return false
-          if (invocationsById.size() != entries.size()) {
-            log.debug(
-                "Could only lock {} out of {} entries", invocationsById.size(), entries.size());
-            return false;
-          }
-
-          // Update each entry with its deserialized invocation
-          for (TransactionOutboxEntry entry : entries) {
-            Invocation invocation = invocationsById.get(entry.getId());
-            if (invocation == null) {
-              log.error("Could not find result for entry {}", entry.getId());
-              return false;
-            }
-            entry.setInvocation(invocation);
-          }
-
-          return true;
+          return invocationsById;
         }
       } catch (SQLTimeoutException e) {
         log.debug("Lock attempt timed out on batch of {} entries", entries.size());
-        return false;
+        return null;
       }
     }
   }
@@ -596,6 +891,38 @@ public class DefaultPersistor implements Persistor, Validatable {
   @Override
   public List<TransactionOutboxEntry> selectBatch(Transaction tx, int batchSize, Instant now)
       throws Exception {
+    return selectBatch(tx, List.of(), batchSize, null, now);
+  }
+
+  @Override
+  public List<TransactionOutboxEntry> selectBatchInQueues(
+      Transaction tx, Collection<String> queues, int batchSize, Instant now) throws Exception {
+    if (queues.isEmpty()) {
+      return List.of();
+    }
+    return selectBatch(tx, queues, batchSize, null, now);
+  }
+
+  @Override
+  public List<TransactionOutboxEntry> selectBatchDueBetween(
+      Transaction tx, Collection<String> queues, int batchSize, Instant after, Instant before)
+      throws Exception {
+    if (queues != null && queues.isEmpty()) {
+      return List.of();
+    }
+    return selectBatch(tx, queues == null ? List.of() : queues, batchSize, after, before);
+  }
+
+  private List<TransactionOutboxEntry> selectBatch(
+      Transaction tx, Collection<String> queues, int batchSize, Instant after, Instant now)
+      throws Exception {
+    var filter =
+        queues.isEmpty()
+            ? "1 = 1"
+            : "queue IN (" + queues.stream().map(it -> "?").collect(Collectors.joining(",")) + ")";
+    if (after != null) {
+      filter += " AND nextAttemptTime >= ?";
+    }
     //noinspection resource
     try (PreparedStatement stmt =
         tx.connection()
@@ -604,8 +931,17 @@ public class DefaultPersistor implements Persistor, Validatable {
                     .getSelectBatch()
                     .replace("{{table}}", tableName)
                     .replace("{{batchSize}}", Integer.toString(batchSize))
+                    .replace("{{queueFilter}}", filter)
                     .replace("{{allFields}}", ALL_FIELDS))) {
       stmt.setTimestamp(1, Timestamp.from(now));
+      var counter = 2;
+      for (var queue : queues) {
+        stmt.setString(counter, queue);
+        counter++;
+      }
+      if (after != null) {
+        stmt.setTimestamp(counter, Timestamp.from(after));
+      }
       var result = new ArrayList<TransactionOutboxEntry>(batchSize);
       gatherResults(stmt, result);
       return result;
@@ -616,11 +952,11 @@ public class DefaultPersistor implements Persistor, Validatable {
   public Collection<TransactionOutboxEntry> selectNextInTopics(
       Transaction tx, int batchSize, Instant now) throws Exception {
     var sql =
-        dialect
-            .getFetchNextInAllTopics()
+        (useTopicHeads ? dialect.getFetchNextInAllTopicHeads() : dialect.getFetchNextInAllTopics())
             .replace("{{table}}", tableName)
+            .replace("{{topicHeadTable}}", topicHeadTableName)
             .replace("{{batchSize}}", Integer.toString(batchSize))
-            .replace("{{allFields}}", ALL_FIELDS);
+            .replace("{{allFields}}", useTopicHeads ? ALL_FIELDS_ALIASED : ALL_FIELDS);
     //noinspection resource
     try (PreparedStatement stmt = tx.connection().prepareStatement(sql)) {
       stmt.setTimestamp(1, Timestamp.from(now));
@@ -636,12 +972,14 @@ public class DefaultPersistor implements Persistor, Validatable {
 
     var topicsInParameterList = topicNames.stream().map(it -> "?").collect(Collectors.joining(","));
     var sql =
-        dialect
-            .getFetchNextInSelectedTopics()
+        (useTopicHeads
+                ? dialect.getFetchNextInSelectedTopicHeads()
+                : dialect.getFetchNextInSelectedTopics())
             .replace("{{table}}", tableName)
+            .replace("{{topicHeadTable}}", topicHeadTableName)
             .replace("{{topicNames}}", topicsInParameterList)
             .replace("{{batchSize}}", Integer.toString(batchSize))
-            .replace("{{allFields}}", ALL_FIELDS);
+            .replace("{{allFields}}", useTopicHeads ? ALL_FIELDS_ALIASED : ALL_FIELDS);
     //noinspection resource
     try (PreparedStatement stmt = tx.connection().prepareStatement(sql)) {
       var counter = 1;
@@ -669,11 +1007,42 @@ public class DefaultPersistor implements Persistor, Validatable {
    */
   public Collection<TransactionOutboxEntry> selectNextBatchInTopics(
       Transaction tx, int batchSize, Instant now) throws Exception {
+    return selectNextBatchInTopics(tx, batchSize, now, "1 = 1");
+  }
+
+  /**
+   * Selects the next batch of entries in the topics owned by a node. Topics are hashed into a fixed
+   * number of buckets, and each of the live nodes owns a contiguous range of those buckets. Entries
+   * written before topic buckets were recorded are owned by the first node.
+   *
+   * @param tx The current transaction
+   * @param batchSize The maximum number of entries to return per topic
+   * @param now The current time
+   * @param nodeIndex The position of the current node in the list of live nodes.
+   * @param nodeCount The number of live nodes.
+   * @return A collection of entries ordered by topic and sequence
+   * @throws Exception If an error occurs during selection
+   */
+  @Override
+  public Collection<TransactionOutboxEntry> selectNextBatchInOwnedTopics(
+      Transaction tx, int batchSize, Instant now, int nodeIndex, int nodeCount) throws Exception {
+    int from = (int) ((long) nodeIndex * TOPIC_BUCKETS / nodeCount);
+    int to = (int) ((long) (nodeIndex + 1) * TOPIC_BUCKETS / nodeCount);
+    var filter = "topicBucket >= " + from + " AND topicBucket < " + to;
+    if (nodeIndex == 0) {
+      filter = "(" + filter + " OR topicBucket IS NULL)";
+    }
+    return selectNextBatchInTopics(tx, batchSize, now, filter);
+  }
+
+  private Collection<TransactionOutboxEntry> selectNextBatchInTopics(
+      Transaction tx, int batchSize, Instant now, String topicBucketFilter) throws Exception {
     var sql =
         dialect
             .getFetchNextBatchInTopics()
             .replace("{{table}}", tableName)
             .replace("{{batchSize}}", Integer.toString(batchSize))
+            .replace("{{topicBucketFilter}}", topicBucketFilter)
             .replace("{{allFields}}", ALL_FIELDS);
     log.debug("SQL: {}", sql);
     //noinspection resource
@@ -701,6 +1070,61 @@ public class DefaultPersistor implements Persistor, Validatable {
     }
   }
 
+  @Override
+  public List<String> renewNodeLease(Transaction tx, String nodeId, Instant expiresAt, Instant now)
+      throws Exception {
+    //noinspection resource
+    try (PreparedStatement stmt =
+        tx.connection()
+            .prepareStatement("UPDATE " + nodeTableName + " SET expiresAt = ? WHERE id = ?")) {
+      stmt.setTimestamp(1, Timestamp.from(expiresAt));
+      stmt.setString(2, nodeId);
+      if (stmt.executeUpdate() == 0) {
+        //noinspection resource
+        try (PreparedStatement insert =
+            tx.connection()
+                .prepareStatement(
+                    "INSERT INTO " + nodeTableName + " (id, expiresAt) VALUES (?, ?)")) {
+          insert.setString(1, nodeId);
+          insert.setTimestamp(2, Timestamp.from(expiresAt));
+          insert.executeUpdate();
+          log.info("Registered node {}", nodeId);
+        }
+      }
+    }
+    //noinspection resource
+    try (PreparedStatement stmt =
+        tx.connection().prepareStatement("DELETE FROM " + nodeTableName + " WHERE expiresAt < ?")) {
+      stmt.setTimestamp(1, Timestamp.from(now));
+      int expired = stmt.executeUpdate();
+      if (expired > 0) {
+        log.info("Removed {} nodes with expired leases", expired);
+      }
+    }
+    //noinspection resource
+    try (PreparedStatement stmt =
+            tx.connection().prepareStatement("SELECT id FROM " + nodeTableName + " ORDER BY id");
+        ResultSet rs = stmt.executeQuery()) {
+      var nodes = new ArrayList<String>();
+      while (rs.next()) {
+        nodes.add(rs.getString(1));
+      }
+      return nodes;
+    }
+  }
+
+  @Override
+  public void releaseNodeLease(Transaction tx, String nodeId) throws Exception {
+    //noinspection resource
+    try (PreparedStatement stmt =
+        tx.connection().prepareStatement("DELETE FROM " + nodeTableName + " WHERE id = ?")) {
+      stmt.setString(1, nodeId);
+      if (stmt.executeUpdate() > 0) {
+        log.info("Released lease for node {}", nodeId);
+      }
+    }
+  }
+
   private void gatherResults(PreparedStatement stmt, Collection<TransactionOutboxEntry> output)
       throws SQLException, IOException {
     try (ResultSet rs = stmt.executeQuery()) {
@@ -728,6 +1152,7 @@ public class DefaultPersistor implements Persistor, Validatable {
       } catch (IOException e) {
         invocation = new FailedDeserializingInvocation(e);
       }
+      String queue = rs.getString("queue");
       TransactionOutboxEntry entry =
           TransactionOutboxEntry.builder()
               .invocation(invocation)
@@ -744,18 +1169,54 @@ public class DefaultPersistor implements Persistor, Validatable {
               .blocked(rs.getBoolean("blocked"))
               .processed(rs.getBoolean("processed"))
               .version(rs.getInt("version"))
+              .priority(rs.getInt("priority"))
+              .queue(TransactionOutbox.DEFAULT_QUEUE.equals(queue) ? null : queue)
               .build();
       log.trace("Found {}", entry);
       return entry;
     }
   }
 
+  /**
+   * Rebuilds the topic head table from the outbox, so that {@code useTopicHeads} can be enabled on
+   * a database which has been processing ordered entries without it. Must be run while no ordered
+   * entries are being saved or processed, by a persistor with {@code useTopicHeads} enabled.
+   *
+   * @param tx The current transaction.
+   * @throws SQLException If there is a database error.
+   */
+  public void repopulateTopicHeads(Transaction tx) throws SQLException {
+    //noinspection resource
+    try (Statement stmt = tx.connection().createStatement()) {
+      stmt.execute("DELETE FROM " + topicHeadTableName);
+      int count =
+          stmt.executeUpdate(
+              "INSERT INTO "
+                  + topicHeadTableName
+                  + " (topic, seq, nextAttemptTime)"
+                  + " SELECT a.topic, a.seq, a.nextAttemptTime FROM "
+                  + tableName
+                  + " a WHERE a.processed = "
+                  + dialect.booleanValue(false)
+                  + " AND a.topic <> '*' AND a.seq = (SELECT MIN(b.seq) FROM "
+                  + tableName
+                  + " b WHERE b.topic = a.topic AND b.processed = "
+                  + dialect.booleanValue(false)
+                  + ")");
+      log.info("Repopulated {} topic heads", count);
+    }
+  }
+
   // For testing. Assumed low volume.
   @Override
   public void clear(Transaction tx) throws SQLException {
     //noinspection resource
     try (Statement stmt = tx.connection().createStatement()) {
       stmt.execute("DELETE FROM " + tableName);
+      stmt.execute("DELETE FROM " + nodeTableName);
+      if (useTopicHeads) {
+        stmt.execute("DELETE FROM " + topicHeadTableName);
+      }
     }
   }
 
@@ -14,6 +14,11 @@ public interface Dialect {
    */
   String getDeleteExpired();
 
+  /**
+   * @return SQL to select unordered entries which are due, highest priority first, as determined by
+   *     the {@code dispatchAfter} column. {@code {{queueFilter}}} is replaced with a condition
+   *     restricting the queues selected, and possibly the earliest due time.
+   */
   String getSelectBatch();
 
   String getLock();
@@ -29,13 +34,27 @@ public interface Dialect {
 
   String getFetchNextInSelectedTopics();
 
+  /**
+   * @return Format string for the SQL required to fetch the next entry in every topic with a due
+   *     head, using the topic head table ({@code {{topicHeadTable}}}) rather than scanning the
+   *     outbox. Used when {@code DefaultPersistor.useTopicHeads} is enabled.
+   */
+  String getFetchNextInAllTopicHeads();
+
+  /**
+   * @return Format string for the SQL required to fetch the next entry in the selected topics,
+   *     using the topic head table ({@code {{topicHeadTable}}}) rather than scanning the outbox.
+   */
+  String getFetchNextInSelectedTopicHeads();
+
   String getFetchCurrentVersion();
 
   String getFetchNextSequence();
 
   /**
    * @return Format string for the SQL required to fetch the next batch of ordered items in topics.
-   *     This query should return items ordered by topic and sequence, with a limit per topic.
+   *     This query should return items ordered by topic and sequence, with a limit per topic, and
+   *     restrict the topics searched using the {@code {{topicBucketFilter}}} condition.
    */
   String getFetchNextBatchInTopics();
 
@@ -56,18 +75,21 @@ public interface Dialect {
           .fetchNextInAllTopics(
               "WITH raw AS(SELECT {{allFields}}, (ROW_NUMBER() OVER(PARTITION BY topic ORDER BY seq)) as rn"
                   + " FROM {{table}} WHERE processed = false AND topic <> '*')"
-                  + " SELECT * FROM raw WHERE rn = 1 AND nextAttemptTime < ? LIMIT {{batchSize}}")
+                  + " SELECT * FROM raw WHERE rn = 1 AND blocked = false AND nextAttemptTime < ?"
+                  + " LIMIT {{batchSize}}")
           .fetchNextInSelectedTopics(
               "WITH raw AS(SELECT {{allFields}}, (ROW_NUMBER() OVER(PARTITION BY topic ORDER BY seq)) as rn"
                   + " FROM {{table}} WHERE processed = false AND topic IN ({{topicNames}}))"
-                  + " SELECT * FROM raw WHERE rn = 1 AND nextAttemptTime < ? LIMIT {{batchSize}}")
+                  + " SELECT * FROM raw WHERE rn = 1 AND blocked = false AND nextAttemptTime < ?"
+                  + " LIMIT {{batchSize}}")
           .deleteExpired(
               "DELETE FROM {{table}} WHERE nextAttemptTime < ? AND processed = true AND blocked = false"
                   + " LIMIT {{batchSize}}")
           .selectBatch(
               "SELECT {{allFields}} FROM {{table}} WHERE nextAttemptTime < ? "
-                  + "AND blocked = false AND processed = false AND topic = '*' LIMIT {{batchSize}} FOR UPDATE "
-                  + "SKIP LOCKED")
+                  + "AND blocked = false AND processed = false AND topic = '*' "
+                  + "AND {{queueFilter}} "
+                  + "ORDER BY dispatchAfter LIMIT {{batchSize}} FOR UPDATE SKIP LOCKED")
           .lock(
               "SELECT id, invocation FROM {{table}} WHERE id = ? AND version = ? FOR "
                   + "UPDATE SKIP LOCKED")
@@ -83,25 +105,30 @@ public interface Dialect {
           .fetchNextInAllTopics(
               "WITH raw AS(SELECT {{allFields}}, (ROW_NUMBER() OVER(PARTITION BY topic ORDER BY seq)) as rn"
                   + " FROM {{table}} WHERE processed = false AND topic <> '*')"
-                  + " SELECT * FROM raw WHERE rn = 1 AND nextAttemptTime < ? LIMIT {{batchSize}}")
+                  + " SELECT * FROM raw WHERE rn = 1 AND blocked = false AND nextAttemptTime < ?"
+                  + " LIMIT {{batchSize}}")
           .fetchNextInSelectedTopics(
               "WITH raw AS(SELECT {{allFields}}, (ROW_NUMBER() OVER(PARTITION BY topic ORDER BY seq)) as rn"
                   + " FROM {{table}} WHERE processed = false AND topic IN ({{topicNames}}))"
-                  + " SELECT * FROM raw WHERE rn = 1 AND nextAttemptTime < ? LIMIT {{batchSize}}")
+                  + " SELECT * FROM raw WHERE rn = 1 AND blocked = false AND nextAttemptTime < ?"
+                  + " LIMIT {{batchSize}}")
           .fetchNextBatchInTopics(
               "WITH raw AS ("
                   + " SELECT {{allFields}}, ROW_NUMBER() OVER (PARTITION BY topic ORDER BY seq) as rn"
                   + " FROM {{table}}"
-                  + " WHERE processed = false AND topic <> '*'"
+                  + " WHERE processed = false AND topic <> '*' AND {{topicBucketFilter}}"
                   + ")"
-                  + " SELECT * FROM raw WHERE rn <= {{batchSize}} AND nextAttemptTime < ? LIMIT {{batchSize}}")
+                  + " SELECT * FROM raw WHERE rn <= {{batchSize}} AND nextAttemptTime < ?"
+                  + " AND topic NOT IN (SELECT topic FROM raw WHERE blocked = true)"
+                  + " LIMIT {{batchSize}}")
           .deleteExpired(
               "DELETE FROM {{table}} WHERE id IN "
                   + "(SELECT id FROM {{table}} WHERE nextAttemptTime < ? AND processed = true AND blocked = false LIMIT {{batchSize}})")
           .selectBatch(
               "SELECT {{allFields}} FROM {{table}} WHERE nextAttemptTime < ? "
-                  + "AND blocked = false AND processed = false AND topic = '*' LIMIT "
-                  + "{{batchSize}} FOR UPDATE SKIP LOCKED")
+                  + "AND blocked = false AND processed = false AND topic = '*' "
+                  + "AND {{queueFilter}} "
+                  + "ORDER BY dispatchAfter LIMIT {{batchSize}} FOR UPDATE SKIP LOCKED")
           .lock(
               "SELECT id, invocation FROM {{table}} WHERE id = ? AND version = ? FOR "
                   + "UPDATE SKIP LOCKED")
@@ -126,25 +153,41 @@ public interface Dialect {
           .fetchNextInAllTopics(
               "WITH cte1 AS (SELECT {{allFields}}, (ROW_NUMBER() OVER(PARTITION BY topic ORDER BY seq)) as rn"
                   + " FROM {{table}} WHERE processed = 0 AND topic <> '*')"
-                  + " SELECT * FROM cte1 WHERE rn = 1 AND nextAttemptTime < ? AND ROWNUM <= {{batchSize}}")
+                  + " SELECT * FROM cte1 WHERE rn = 1 AND blocked = 0 AND nextAttemptTime < ?"
+                  + " AND ROWNUM <= {{batchSize}}")
           .fetchNextInSelectedTopics(
               "WITH cte1 AS (SELECT {{allFields}}, (ROW_NUMBER() OVER(PARTITION BY topic ORDER BY seq)) as rn"
                   + " FROM {{table}} WHERE processed = 0 AND topic IN ({{topicNames}}))"
-                  + " SELECT * FROM cte1 WHERE rn = 1 AND nextAttemptTime < ? AND ROWNUM <= {{batchSize}}")
+                  + " SELECT * FROM cte1 WHERE rn = 1 AND blocked = 0 AND nextAttemptTime < ?"
+                  + " AND ROWNUM <= {{batchSize}}")
+          .fetchNextInAllTopicHeads(
+              "SELECT {{allFields}} FROM {{topicHeadTable}} h"
+                  + " JOIN {{table}} a ON a.topic = h.topic AND a.seq = h.seq"
+                  + " WHERE h.nextAttemptTime < ? AND a.processed = 0 AND a.blocked = 0"
+                  + " AND ROWNUM <= {{batchSize}}")
+          .fetchNextInSelectedTopicHeads(
+              "SELECT {{allFields}} FROM {{topicHeadTable}} h"
+                  + " JOIN {{table}} a ON a.topic = h.topic AND a.seq = h.seq"
+                  + " WHERE h.topic IN ({{topicNames}}) AND h.nextAttemptTime < ?"
+                  + " AND a.processed = 0 AND a.blocked = 0 AND ROWNUM <= {{batchSize}}")
           .fetchNextBatchInTopics(
               "WITH raw AS ("
                   + " SELECT {{allFields}}, ROW_NUMBER() OVER (PARTITION BY topic ORDER BY seq) as rn"
                   + " FROM {{table}}"
-                  + " WHERE processed = 0 AND topic <> '*'"
+                  + " WHERE processed = 0 AND topic <> '*' AND {{topicBucketFilter}}"
                   + ")"
-                  + " SELECT * FROM raw WHERE rn <= {{batchSize}} AND nextAttemptTime < ? AND ROWNUM <= {{batchSize}}")
+                  + " SELECT * FROM raw WHERE rn <= {{batchSize}} AND nextAttemptTime < ?"
+                  + " AND topic NOT IN (SELECT topic FROM raw WHERE blocked = 1)"
+                  + " AND ROWNUM <= {{batchSize}}")
           .deleteExpired(
               "DELETE FROM {{table}} WHERE nextAttemptTime < ? AND processed = 1 AND blocked = 0 "
                   + "AND ROWNUM <= {{batchSize}}")
           .selectBatch(
-              "SELECT {{allFields}} FROM {{table}} WHERE nextAttemptTime < ? "
-                  + "AND blocked = 0 AND processed = 0 AND topic = '*' AND ROWNUM <= {{batchSize}} FOR UPDATE "
-                  + "SKIP LOCKED")
+              "SELECT {{allFields}} FROM {{table}} WHERE id IN ("
+                  + "SELECT id FROM (SELECT id FROM {{table}} WHERE nextAttemptTime < ? "
+                  + "AND blocked = 0 AND processed = 0 AND topic = '*' AND {{queueFilter}} "
+                  + "ORDER BY dispatchAfter) "
+                  + "WHERE ROWNUM <= {{batchSize}}) FOR UPDATE SKIP LOCKED")
           .lock(
               "SELECT id, invocation FROM {{table}} WHERE id = ? AND version = ? FOR "
                   + "UPDATE SKIP LOCKED")
@@ -174,6 +217,28 @@ public interface Dialect {
           .changeMigration(
               11,
               "CREATE TABLE TXNO_SEQUENCE (topic VARCHAR(250) NOT NULL, seq NUMBER NOT NULL, CONSTRAINT PK_TXNO_SEQUENCE PRIMARY KEY (topic, seq))")
+          .changeMigration(
+              14,
+              "CREATE TABLE TXNO_TOPIC_HEAD (topic VARCHAR(250) NOT NULL, seq NUMBER NOT NULL, "
+                  + "nextAttemptTime TIMESTAMP(6) NULL, "
+                  + "CONSTRAINT PK_TXNO_TOPIC_HEAD PRIMARY KEY (topic))")
+          .changeMigration(
+              16,
+              "INSERT INTO TXNO_TOPIC_HEAD (topic, seq, nextAttemptTime)"
+                  + " SELECT a.topic, a.seq, a.nextAttemptTime FROM TXNO_OUTBOX a"
+                  + " WHERE a.processed = 0 AND a.topic <> '*' AND a.seq = ("
+                  + "SELECT MIN(b.seq) FROM TXNO_OUTBOX b"
+                  + " WHERE b.topic = a.topic AND b.processed = 0"
+                  + ")")
+          .changeMigration(17, "ALTER TABLE TXNO_OUTBOX ADD topicBucket NUMBER NULL")
+          .changeMigration(20, "ALTER TABLE TXNO_OUTBOX ADD priority NUMBER DEFAULT 0 NOT NULL")
+          .changeMigration(21, "ALTER TABLE TXNO_OUTBOX ADD dispatchAfter TIMESTAMP(6) NULL")
+          .changeMigration(
+              24, "ALTER TABLE TXNO_OUTBOX ADD queue VARCHAR(250) DEFAULT 'default' NOT NULL")
+          .changeMigration(
+              18,
+              "CREATE TABLE TXNO_NODE (id VARCHAR2(36) NOT NULL, expiresAt TIMESTAMP(6) NULL, "
+                  + "CONSTRAINT PK_TXNO_NODE PRIMARY KEY (id))")
           .booleanValueFrom(v -> v ? "1" : "0")
           .createVersionTableBy(
               connection -> {
@@ -199,7 +264,8 @@ public interface Dialect {
           .selectBatch(
               "SELECT TOP ({{batchSize}}) {{allFields}} FROM {{table}} "
                   + "WITH (UPDLOCK, ROWLOCK, READPAST) WHERE nextAttemptTime < ? AND topic = '*' "
-                  + "AND blocked = 0 AND processed = 0")
+                  + "AND blocked = 0 AND processed = 0 AND {{queueFilter}} "
+                  + "ORDER BY dispatchAfter")
           .delete("DELETE FROM {{table}} WITH (ROWLOCK, READPAST) WHERE id = ? and version = ?")
           .deleteExpired(
               "DELETE  TOP ({{batchSize}}) FROM {{table}} "
@@ -207,23 +273,35 @@ public interface Dialect {
           .fetchCurrentVersion("SELECT version FROM TXNO_VERSION WITH (UPDLOCK, ROWLOCK, READPAST)")
           .fetchNextInAllTopics(
               "SELECT TOP {{batchSize}} {{allFields}} FROM {{table}} a"
-                  + " WHERE processed = 0 AND topic <> '*' AND nextAttemptTime < ?"
+                  + " WHERE processed = 0 AND blocked = 0 AND topic <> '*' AND nextAttemptTime < ?"
                   + " AND seq = ("
                   + "SELECT MIN(seq) FROM {{table}} b WHERE b.topic=a.topic AND b.processed = 0"
                   + ")")
           .fetchNextInSelectedTopics(
               "SELECT TOP {{batchSize}} {{allFields}} FROM {{table}} a"
-                  + " WHERE processed = 0 AND topic IN ({{topicNames}}) AND nextAttemptTime < ?"
+                  + " WHERE processed = 0 AND blocked = 0 AND topic IN ({{topicNames}})"
+                  + " AND nextAttemptTime < ?"
                   + " AND seq = ("
                   + "SELECT MIN(seq) FROM {{table}} b WHERE b.topic=a.topic AND b.processed = 0"
                   + ")")
+          .fetchNextInAllTopicHeads(
+              "SELECT TOP {{batchSize}} {{allFields}} FROM {{topicHeadTable}} h"
+                  + " JOIN {{table}} a ON a.topic = h.topic AND a.seq = h.seq"
+                  + " WHERE h.nextAttemptTime < ? AND a.processed = 0 AND a.blocked = 0")
+          .fetchNextInSelectedTopicHeads(
+              "SELECT TOP {{batchSize}} {{allFields}} FROM {{topicHeadTable}} h"
+                  + " JOIN {{table}} a ON a.topic = h.topic AND a.seq = h.seq"
+                  + " WHERE h.topic IN ({{topicNames}}) AND h.nextAttemptTime < ?"
+                  + " AND a.processed = 0 AND a.blocked = 0")
           .fetchNextBatchInTopics(
               "WITH raw AS ("
                   + " SELECT {{allFields}}, ROW_NUMBER() OVER (PARTITION BY topic ORDER BY seq) as rn"
                   + " FROM {{table}}"
-                  + " WHERE processed = 0 AND topic <> '*'"
+                  + " WHERE processed = 0 AND topic <> '*' AND {{topicBucketFilter}}"
                   + ")"
-                  + " SELECT TOP ({{batchSize}}) * FROM raw WHERE rn <= {{batchSize}} AND nextAttemptTime < ?")
+                  + " SELECT TOP ({{batchSize}}) * FROM raw"
+                  + " WHERE rn <= {{batchSize}} AND nextAttemptTime < ?"
+                  + " AND topic NOT IN (SELECT topic FROM raw WHERE blocked = 1)")
           .fetchNextSequence(
               "SELECT seq FROM TXNO_SEQUENCE WITH (UPDLOCK, ROWLOCK, READPAST) WHERE topic = ?")
           .booleanValueFrom(v -> v ? "1" : "0")
@@ -259,6 +337,28 @@ public interface Dialect {
               11,
               "CREATE TABLE TXNO_SEQUENCE (topic VARCHAR(250) NOT NULL, seq INT NOT NULL, CONSTRAINT "
                   + "PK_TXNO_SEQUENCE PRIMARY KEY (topic, seq))")
+          .changeMigration(
+              14,
+              "CREATE TABLE TXNO_TOPIC_HEAD (topic VARCHAR(250) NOT NULL, seq INT NOT NULL, "
+                  + "nextAttemptTime DATETIME2(6) NULL, "
+                  + "CONSTRAINT PK_TXNO_TOPIC_HEAD PRIMARY KEY (topic))")
+          .changeMigration(
+              16,
+              "INSERT INTO TXNO_TOPIC_HEAD (topic, seq, nextAttemptTime)"
+                  + " SELECT a.topic, a.seq, a.nextAttemptTime FROM TXNO_OUTBOX a"
+                  + " WHERE a.processed = 0 AND a.topic <> '*' AND a.seq = ("
+                  + "SELECT MIN(b.seq) FROM TXNO_OUTBOX b"
+                  + " WHERE b.topic = a.topic AND b.processed = 0"
+                  + ")")
+          .changeMigration(17, "ALTER TABLE TXNO_OUTBOX ADD topicBucket INT NULL")
+          .changeMigration(20, "ALTER TABLE TXNO_OUTBOX ADD priority INT DEFAULT 0 NOT NULL")
+          .changeMigration(21, "ALTER TABLE TXNO_OUTBOX ADD dispatchAfter DATETIME2(6) NULL")
+          .changeMigration(
+              24, "ALTER TABLE TXNO_OUTBOX ADD queue VARCHAR(250) DEFAULT 'default' NOT NULL")
+          .changeMigration(
+              18,
+              "CREATE TABLE TXNO_NODE (id VARCHAR(36) NOT NULL, expiresAt DATETIME2(6) NULL, "
+                  + "CONSTRAINT PK_TXNO_NODE PRIMARY KEY (id))")
           .createVersionTableBy(
               connection -> {
                 try (Statement s = connection.createStatement()) {
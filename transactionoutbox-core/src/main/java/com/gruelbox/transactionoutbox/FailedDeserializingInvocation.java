@@ -17,7 +17,7 @@ public class FailedDeserializingInvocation extends Invocation {
   }
 
   @Override
-  void invoke(Object instance, TransactionOutboxListener listener)
+  Object invoke(Object instance, TransactionOutboxListener listener)
       throws NoSuchMethodException, IllegalAccessException, InvocationTargetException {
     throw new UncheckedException(exceptionDuringDeserialization);
   }
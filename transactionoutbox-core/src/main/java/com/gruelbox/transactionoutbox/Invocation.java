@@ -131,7 +131,7 @@ public class Invocation {
     }
   }
 
-  void invoke(Object instance, TransactionOutboxListener listener)
+  Object invoke(Object instance, TransactionOutboxListener listener)
       throws NoSuchMethodException, IllegalAccessException, InvocationTargetException {
 
     Method method = instance.getClass().getDeclaredMethod(methodName, parameterTypes);
@@ -139,6 +139,8 @@ public class Invocation {
     if (log.isTraceEnabled()) {
       log.trace("Invoking method {} with args {}", method, Arrays.toString(args));
     }
-    listener.wrapInvocation(() -> method.invoke(instance, args));
+    Object[] result = new Object[1];
+    listener.wrapInvocation(() -> result[0] = method.invoke(instance, args));
+    return result[0];
   }
 }
@@ -0,0 +1,55 @@
+package com.gruelbox.transactionoutbox;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a method scheduled using {@link TransactionOutbox} as not needing a database transaction
+ * while it runs, such as a method which only calls a remote API. No connection or row lock is held
+ * while the method runs, so slow calls do not tie up the connection pool.
+ *
+ * <p>Tasks for the method are processed in three steps:
+ *
+ * <ol>
+ *   <li>The task is claimed in a short transaction, which increments its version and pushes its
+ *       next attempt time back by {@link
+ *       TransactionOutbox.TransactionOutboxBuilder#attemptFrequency(java.time.Duration)}, and is
+ *       committed. This acts as a lease, so no other instance picks the task up in the meantime.
+ *   <li>The method is invoked with no transaction active.
+ *   <li>The task is deleted, or marked as processed, in a second short transaction.
+ * </ol>
+ *
+ * <p>Since the work done by the method is not part of the transaction which completes the task, the
+ * task may be processed again if the method succeeds but completing the task fails. If the method
+ * runs for longer than {@code attemptFrequency}, the lease expires and another instance may process
+ * the task at the same time; when the first completes, the task is left for the second. The method
+ * should therefore be idempotent, and should finish well within {@code attemptFrequency}.
+ *
+ * <p>Methods returning a {@link java.util.concurrent.CompletionStage} are always processed this
+ * way, whether or not they are annotated. The worker thread is released as soon as the method
+ * returns, and the task is completed when the stage completes, or treated as failed if it does not
+ * complete within {@link
+ * TransactionOutbox.TransactionOutboxBuilder#asyncHandlerTimeout(java.time.Duration)}.
+ *
+ * <p>The annotation is ignored on methods with a {@link Transaction} or {@link
+ * TransactionContextPlaceholder} parameter, and on tasks with a topic, which are always processed
+ * within a transaction so that ordering is preserved. If such a method returns a {@code
+ * CompletionStage}, the stage is waited for before the transaction commits.
+ *
+ * <p>Usage:
+ *
+ * <pre>class WebhookService {
+ *
+ *   {@literal @}NonTransactional
+ *   void deliver(String url, String payload) {
+ *     httpClient.post(url, payload);
+ *   }
+ * }</pre>
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface NonTransactional {}
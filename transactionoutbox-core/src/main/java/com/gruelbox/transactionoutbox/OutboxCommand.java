@@ -11,9 +11,9 @@ import lombok.ToString;
  * A command object representing a method invocation to be scheduled via {@link
  * TransactionOutbox#addAll(java.util.List)}.
  *
- * <p>This allows building a list of commands explicitly and persisting them in a single batch insert
- * operation, avoiding proxy/reflection at the call site. Useful for bulk operations like CSV imports
- * or batch processing.
+ * <p>This allows building a list of commands explicitly and persisting them in a single batch
+ * insert operation, avoiding proxy/reflection at the call site. Useful for bulk operations like CSV
+ * imports or batch processing.
  *
  * <p>Example usage:
  *
@@ -42,14 +42,16 @@ public class OutboxCommand {
   private final Object[] args;
   private final String uniqueRequestId;
   private final Map<String, String> mdc;
+  private final int priority;
+  private final String queue;
 
   /**
    * Creates a new builder for an {@link OutboxCommand}.
    *
    * @param targetClass The target class to invoke the method on.
    * @param methodName The method name to invoke.
-   * @param parameterTypes The parameter types of the method. Required because they cannot be reliably
-   *     derived from args (null values, primitives).
+   * @param parameterTypes The parameter types of the method. Required because they cannot be
+   *     reliably derived from args (null values, primitives).
    * @return A new builder.
    */
   public static Builder call(Class<?> targetClass, String methodName, Class<?>... parameterTypes) {
@@ -64,6 +66,8 @@ public class OutboxCommand {
     private Object[] args;
     private String uniqueRequestId;
     private Map<String, String> mdc;
+    private int priority;
+    private String queue;
 
     private Builder(Class<?> targetClass, String methodName, Class<?>[] parameterTypes) {
       this.targetClass = targetClass;
@@ -72,8 +76,8 @@ public class OutboxCommand {
     }
 
     /**
-     * Sets the arguments for the method invocation. Must match the parameter types provided in {@link
-     * #call(Class, String, Class[])}.
+     * Sets the arguments for the method invocation. Must match the parameter types provided in
+     * {@link #call(Class, String, Class[])}.
      *
      * @param args The method arguments.
      * @return This builder.
@@ -123,6 +127,39 @@ public class OutboxCommand {
       return this;
     }
 
+    /**
+     * Sets the priority of this command. Higher priorities are selected first when unordered work
+     * is picked up by {@link TransactionOutbox#flush()}. Ignored for commands added to a topic.
+     *
+     * @param priority The priority. Defaults to zero.
+     * @return This builder.
+     */
+    public Builder withPriority(int priority) {
+      this.priority = priority;
+      return this;
+    }
+
+    /**
+     * Adds this command to a named work queue. See {@link
+     * TransactionOutbox.ParameterizedScheduleBuilder#queue(String)}. Ignored for commands added to
+     * a topic.
+     *
+     * @param queue The queue name, up to 250 characters. Defaults to {@link
+     *     TransactionOutbox#DEFAULT_QUEUE}.
+     * @return This builder.
+     * @throws IllegalArgumentException If the queue name is blank or too long.
+     */
+    public Builder withQueue(String queue) {
+      if (queue != null && queue.isBlank()) {
+        throw new IllegalArgumentException("queue may not be blank");
+      }
+      if (queue != null && queue.length() > 250) {
+        throw new IllegalArgumentException("queue may be up to 250 characters");
+      }
+      this.queue = queue;
+      return this;
+    }
+
     /**
      * Builds the {@link OutboxCommand}.
      *
@@ -139,7 +176,7 @@ public class OutboxCommand {
                 parameterTypes.length, parameterTypes.length, args.length));
       }
       return new OutboxCommand(
-          targetClass, methodName, parameterTypes, args, uniqueRequestId, mdc);
+          targetClass, methodName, parameterTypes, args, uniqueRequestId, mdc, priority, queue);
     }
   }
 }
@@ -3,6 +3,7 @@ package com.gruelbox.transactionoutbox;
 import java.time.Instant;
 import java.util.Collection;
 import java.util.List;
+import java.util.stream.Collectors;
 
 /**
  * Saves and loads {@link TransactionOutboxEntry}s. For most use cases, just use {@link
@@ -43,17 +44,18 @@ public interface Persistor {
   void save(Transaction tx, TransactionOutboxEntry entry) throws Exception;
 
   /**
-   * Saves a batch of new {@link TransactionOutboxEntry}s. Should throw {@link AlreadyScheduledException}
-   * if any record already exists based on the {@code id} or {@code uniqueRequestId}.
+   * Saves a batch of new {@link TransactionOutboxEntry}s. Should throw {@link
+   * AlreadyScheduledException} if any record already exists based on the {@code id} or {@code
+   * uniqueRequestId}.
    *
    * <p>Entries with {@code uniqueRequestId} set cannot be batched and should be saved individually
-   * using {@link #save(Transaction, TransactionOutboxEntry)}. Implementations should filter out such
-   * entries and save them individually before processing the batch.
+   * using {@link #save(Transaction, TransactionOutboxEntry)}. Implementations should filter out
+   * such entries and save them individually before processing the batch.
    *
    * <p>For entries with topics (ordered batches), all entries in the batch share the same topic.
    * Sequence numbers should be assigned sequentially starting from the current sequence value for
-   * that topic. The sequence lock should be acquired once for the entire batch, all sequence numbers
-   * assigned, and then the lock released when the transaction commits.
+   * that topic. The sequence lock should be acquired once for the entire batch, all sequence
+   * numbers assigned, and then the lock released when the transaction commits.
    *
    * @param tx The current {@link Transaction}.
    * @param entries The entries to save. All properties on each object should be saved recursively.
@@ -138,6 +140,26 @@ public interface Persistor {
    */
   boolean lockBatch(Transaction tx, List<TransactionOutboxEntry> entries) throws Exception;
 
+  /**
+   * Attempts to pessimistically lock the entries in a batch of ordered entries, returning the
+   * entries which can be processed: for each topic, the entries in sequence order up to, but not
+   * including, the first which could not be locked (for example because another instance updated it
+   * first). Entries after a gap in a topic may not be processed without breaking ordering, so are
+   * excluded even if they were locked.
+   *
+   * <p>The default implementation returns all the entries if {@link #lockBatch(Transaction, List)}
+   * succeeds, and none otherwise.
+   *
+   * @param tx The current {@link Transaction}.
+   * @param entries The list of entries to be locked.
+   * @return The locked entries which can be processed, in sequence order within each topic.
+   * @throws Exception Any exception.
+   */
+  default List<TransactionOutboxEntry> lockBatchPrefix(
+      Transaction tx, List<TransactionOutboxEntry> entries) throws Exception {
+    return lockBatch(tx, entries) ? entries : List.of();
+  }
+
   /**
    * Clears the blocked flag and resets the attempt count to zero.
    *
@@ -164,6 +186,59 @@ public interface Persistor {
   List<TransactionOutboxEntry> selectBatch(Transaction tx, int batchSize, Instant now)
       throws Exception;
 
+  /**
+   * As {@link #selectBatch(Transaction, int, Instant)}, but only selects records in the specified
+   * work queues. See {@link TransactionOutbox.ParameterizedScheduleBuilder#queue(String)}.
+   *
+   * <p>The default implementation filters the results of {@link #selectBatch(Transaction, int,
+   * Instant)}, so may return fewer than {@code batchSize} records even when more are available.
+   *
+   * @param tx The current {@link Transaction}.
+   * @param queues The queues to select records from.
+   * @param batchSize The number of records to select.
+   * @param now The time to use when selecting records.
+   * @return The records.
+   * @throws Exception Any exception.
+   */
+  default List<TransactionOutboxEntry> selectBatchInQueues(
+      Transaction tx, Collection<String> queues, int batchSize, Instant now) throws Exception {
+    return selectBatch(tx, batchSize, now).stream()
+        .filter(
+            entry ->
+                queues.contains(
+                    entry.getQueue() == null ? TransactionOutbox.DEFAULT_QUEUE : entry.getQueue()))
+        .collect(Collectors.toList());
+  }
+
+  /**
+   * As {@link #selectBatch(Transaction, int, Instant)}, but only selects records which fall due at
+   * or after {@code after}. Used to preload records which are not yet due, paging through them by
+   * passing the latest due time returned so far as {@code after}.
+   *
+   * <p>The default implementation filters the results of {@link #selectBatch(Transaction, int,
+   * Instant)} or {@link #selectBatchInQueues(Transaction, Collection, int, Instant)}, so may return
+   * fewer than {@code batchSize} records even when more are available.
+   *
+   * @param tx The current {@link Transaction}.
+   * @param queues The queues to select records from, or null to select from all queues.
+   * @param batchSize The number of records to select.
+   * @param after The earliest due time of the records to select.
+   * @param before The time before which selected records fall due.
+   * @return The records.
+   * @throws Exception Any exception.
+   */
+  default List<TransactionOutboxEntry> selectBatchDueBetween(
+      Transaction tx, Collection<String> queues, int batchSize, Instant after, Instant before)
+      throws Exception {
+    var batch =
+        queues == null
+            ? selectBatch(tx, batchSize, before)
+            : selectBatchInQueues(tx, queues, batchSize, before);
+    return batch.stream()
+        .filter(entry -> !entry.getNextAttemptTime().isBefore(after))
+        .collect(Collectors.toList());
+  }
+
   /**
    * Selects the next items in all the open topics as a batch for processing. Does not lock.
    *
@@ -203,6 +278,65 @@ public interface Persistor {
   Collection<TransactionOutboxEntry> selectNextBatchInTopics(
       Transaction tx, int batchSize, Instant now) throws Exception;
 
+  /**
+   * As {@link #selectNextBatchInTopics(Transaction, int, Instant)}, but only selects from the share
+   * of topics owned by one of a number of live nodes, so that nodes processing ordered batches do
+   * not compete for the same topics. Every topic must be owned by exactly one of the {@code
+   * nodeCount} nodes.
+   *
+   * <p>The default implementation ignores ownership and selects from all topics.
+   *
+   * @param tx The current transaction
+   * @param batchSize The maximum number of entries to return per topic
+   * @param now The current time
+   * @param nodeIndex The position of the current node in the list of live nodes returned by {@link
+   *     #renewNodeLease(Transaction, String, Instant, Instant)}.
+   * @param nodeCount The number of live nodes.
+   * @return A collection of entries ordered by topic and sequence
+   * @throws Exception If an error occurs during selection
+   */
+  default Collection<TransactionOutboxEntry> selectNextBatchInOwnedTopics(
+      Transaction tx, int batchSize, Instant now, int nodeIndex, int nodeCount) throws Exception {
+    return selectNextBatchInTopics(tx, batchSize, now);
+  }
+
+  /**
+   * Records that a node is alive until the specified time, forgets any nodes whose leases have
+   * expired, and returns the ids of all the nodes still alive. Used to share out ownership of
+   * topics between nodes; see {@link
+   * TransactionOutbox.TransactionOutboxBuilder#topicLeaseDuration(java.time.Duration)}.
+   *
+   * <p>The default implementation does not track other nodes and returns only the current node, so
+   * that it owns every topic.
+   *
+   * @param tx The current {@link Transaction}.
+   * @param nodeId The id of the current node.
+   * @param expiresAt The time at which the node should be considered dead if the lease is not
+   *     renewed.
+   * @param now The current time.
+   * @return The ids of all live nodes, including the current node, in a consistent order.
+   * @throws Exception Any exception.
+   */
+  default List<String> renewNodeLease(Transaction tx, String nodeId, Instant expiresAt, Instant now)
+      throws Exception {
+    return List.of(nodeId);
+  }
+
+  /**
+   * Removes a node's lease, so that the remaining nodes take over its topics at their next flush
+   * rather than once the lease expires. See {@link #renewNodeLease(Transaction, String, Instant,
+   * Instant)}.
+   *
+   * <p>The default implementation does nothing.
+   *
+   * @param tx The current {@link Transaction}.
+   * @param nodeId The id of the node shutting down.
+   * @throws Exception Any exception.
+   */
+  default void releaseNodeLease(Transaction tx, String nodeId) throws Exception {
+    // No-op
+  }
+
   /**
    * Deletes records which have processed and passed their expiry time, in specified batch sizes.
    *
@@ -0,0 +1,277 @@
+package com.gruelbox.transactionoutbox;
+
+import static com.gruelbox.transactionoutbox.spi.Utils.uncheckedly;
+
+import com.gruelbox.transactionoutbox.spi.Utils;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import lombok.Builder;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A lightweight pooling {@link ConnectionProvider} which requests physical connections directly
+ * from {@link java.sql.DriverManager} and keeps them open for re-use between transactions.
+ *
+ * <p>This is intended for applications which do not already have a pooling {@link
+ * javax.sql.DataSource} such as HikariCP available, and is a substantial improvement on {@link
+ * TransactionManager#fromConnectionDetails(String, String, String, String)}, which opens a new
+ * physical connection for every transaction. It is deliberately simple:
+ *
+ * <ul>
+ *   <li>At most {@code maxPoolSize} connections are open or in use at once. Callers requesting a
+ *       connection when the pool is exhausted wait, in arrival order, for up to {@code
+ *       connectionTimeout} before failing.
+ *   <li>Connections which have been idle for longer than {@code validationIdleThreshold} are
+ *       validated using {@link Connection#isValid(int)} before being handed out and discarded if
+ *       invalid. Connections returned more recently are assumed to be valid, saving a round trip to
+ *       the database when the pool is busy.
+ *   <li>Connections which have been idle for longer than {@code idleTimeout} are closed.
+ * </ul>
+ *
+ * <p>Usage:
+ *
+ * <pre>PooledConnectionProvider provider = PooledConnectionProvider.builder()
+ *   .driverClassName("org.postgresql.Driver")
+ *   .url(myJdbcUrl)
+ *   .user("myusername")
+ *   .password("mypassword")
+ *   .maxPoolSize(20)
+ *   .build();
+ * TransactionManager transactionManager = TransactionManager.fromConnectionProvider(provider);
+ * </pre>
+ */
+@Slf4j
+public final class PooledConnectionProvider
+    implements ConnectionProvider, Validatable, AutoCloseable {
+
+  private final ConnectionProvider physicalConnections;
+  private final int maxPoolSize;
+  private final Duration connectionTimeout;
+  private final Duration idleTimeout;
+  private final int validationTimeoutSeconds;
+  private final Duration validationIdleThreshold;
+
+  private final Semaphore permits;
+  private final Deque<IdleConnection> idle = new ConcurrentLinkedDeque<>();
+  private volatile boolean closed;
+
+  /**
+   * @param driverClassName The JDBC driver class name. Required.
+   * @param url The JDBC url. Required.
+   * @param user The username. Required.
+   * @param password The password. Required.
+   * @param maxPoolSize The maximum number of connections open at any one time. Defaults to 10.
+   * @param connectionTimeout How long to wait for a connection to become available when the pool is
+   *     exhausted. Defaults to 30 seconds.
+   * @param idleTimeout How long a connection may remain unused in the pool before it is closed.
+   *     Defaults to 10 minutes.
+   * @param validationTimeoutSeconds The timeout passed to {@link Connection#isValid(int)} when
+   *     validating an idle connection before re-use. Defaults to 2 seconds.
+   * @param validationIdleThreshold How long a connection must have been idle before it is validated
+   *     on re-use. Defaults to 500 milliseconds.
+   * @throws IllegalArgumentException If the configuration is invalid.
+   */
+  @Builder
+  private PooledConnectionProvider(
+      String driverClassName,
+      String url,
+      String user,
+      String password,
+      Integer maxPoolSize,
+      Duration connectionTimeout,
+      Duration idleTimeout,
+      Integer validationTimeoutSeconds,
+      Duration validationIdleThreshold) {
+    this.physicalConnections =
+        DriverConnectionProvider.builder()
+            .driverClassName(driverClassName)
+            .url(url)
+            .user(user)
+            .password(password)
+            .build();
+    this.maxPoolSize = maxPoolSize == null ? 10 : maxPoolSize;
+    this.connectionTimeout = Utils.firstNonNull(connectionTimeout, () -> Duration.ofSeconds(30));
+    this.idleTimeout = Utils.firstNonNull(idleTimeout, () -> Duration.ofMinutes(10));
+    this.validationTimeoutSeconds = validationTimeoutSeconds == null ? 2 : validationTimeoutSeconds;
+    this.validationIdleThreshold =
+        Utils.firstNonNull(validationIdleThreshold, () -> Duration.ofMillis(500));
+    this.permits = new Semaphore(Math.max(this.maxPoolSize, 0), true);
+    new Validator(Clock::systemDefaultZone).validate(this);
+  }
+
+  @Override
+  public Connection obtainConnection() {
+    return uncheckedly(
+        () -> {
+          if (closed) {
+            throw new IllegalStateException("Connection pool is closed");
+          }
+          if (!permits.tryAcquire(connectionTimeout.toMillis(), TimeUnit.MILLISECONDS)) {
+            throw new SQLTransientConnectionException(
+                "Timed out after " + connectionTimeout + " waiting for a pooled connection");
+          }
+          try {
+            return wrap(checkOut());
+          } catch (Exception e) {
+            permits.release();
+            throw e;
+          }
+        });
+  }
+
+  /**
+   * @return The number of connections currently held open but not in use.
+   */
+  public int idleConnections() {
+    return idle.size();
+  }
+
+  /**
+   * @return The number of connections currently checked out.
+   */
+  public int activeConnections() {
+    return maxPoolSize - permits.availablePermits();
+  }
+
+  /**
+   * Closes all idle connections and prevents further connections being obtained. Connections
+   * currently in use are closed when they are returned.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    IdleConnection next;
+    while ((next = idle.pollFirst()) != null) {
+      closeQuietly(next.connection);
+    }
+  }
+
+  @Override
+  public void validate(Validator validator) {
+    ((Validatable) physicalConnections).validate(validator);
+    validator.min("maxPoolSize", maxPoolSize, 1);
+    validator.notNull("connectionTimeout", connectionTimeout);
+    validator.notNull("idleTimeout", idleTimeout);
+    validator.positiveOrZero("validationTimeoutSeconds", validationTimeoutSeconds);
+    validator.notNull("validationIdleThreshold", validationIdleThreshold);
+  }
+
+  private Connection checkOut() throws SQLException {
+    IdleConnection candidate;
+    while ((candidate = idle.pollFirst()) != null) {
+      long now = System.nanoTime();
+      if (isExpired(candidate, now)) {
+        log.debug("Closing connection idle for more than {}", idleTimeout);
+        closeQuietly(candidate.connection);
+      } else if (now - candidate.idleSinceNanos <= validationIdleThreshold.toNanos()
+          || candidate.connection.isValid(validationTimeoutSeconds)) {
+        return candidate.connection;
+      } else {
+        log.debug("Discarding invalid pooled connection");
+        closeQuietly(candidate.connection);
+      }
+    }
+    return physicalConnections.obtainConnection();
+  }
+
+  private void checkIn(Connection connection) {
+    try {
+      if (closed || connection.isClosed()) {
+        closeQuietly(connection);
+        return;
+      }
+      if (!connection.getAutoCommit()) {
+        connection.rollback();
+        connection.setAutoCommit(true);
+      }
+      idle.offerFirst(new IdleConnection(connection, System.nanoTime()));
+      evictExpired();
+    } catch (Exception e) {
+      log.debug("Discarding pooled connection which could not be reset", e);
+      closeQuietly(connection);
+    } finally {
+      permits.release();
+    }
+  }
+
+  private void evictExpired() {
+    long now = System.nanoTime();
+    Iterator<IdleConnection> oldestFirst = idle.descendingIterator();
+    while (oldestFirst.hasNext()) {
+      IdleConnection candidate = oldestFirst.next();
+      if (!isExpired(candidate, now)) {
+        break;
+      }
+      if (idle.removeLastOccurrence(candidate)) {
+        log.debug("Closing connection idle for more than {}", idleTimeout);
+        closeQuietly(candidate.connection);
+      }
+    }
+  }
+
+  private boolean isExpired(IdleConnection candidate, long now) {
+    return now - candidate.idleSinceNanos > idleTimeout.toNanos();
+  }
+
+  private Connection wrap(Connection physical) {
+    AtomicBoolean returned = new AtomicBoolean();
+    return (Connection)
+        Proxy.newProxyInstance(
+            PooledConnectionProvider.class.getClassLoader(),
+            new Class<?>[] {Connection.class},
+            (proxy, method, args) -> {
+              switch (method.getName()) {
+                case "equals":
+                  return proxy == args[0];
+                case "hashCode":
+                  return System.identityHashCode(proxy);
+                case "toString":
+                  return "Pooled " + physical;
+                case "close":
+                  if (returned.compareAndSet(false, true)) {
+                    checkIn(physical);
+                  }
+                  return null;
+                case "isClosed":
+                  return returned.get() || physical.isClosed();
+                case "unwrap":
+                case "isWrapperFor":
+                  break;
+                default:
+                  if (returned.get()) {
+                    throw new SQLException("Connection has been returned to the pool");
+                  }
+              }
+              try {
+                return method.invoke(physical, args);
+              } catch (InvocationTargetException e) {
+                throw e.getCause();
+              }
+            });
+  }
+
+  private static void closeQuietly(Connection connection) {
+    Utils.safelyRun("closing pooled connection", connection::close);
+  }
+
+  private static final class IdleConnection {
+    private final Connection connection;
+    private final long idleSinceNanos;
+
+    private IdleConnection(Connection connection, long idleSinceNanos) {
+      this.connection = connection;
+      this.idleSinceNanos = idleSinceNanos;
+    }
+  }
+}
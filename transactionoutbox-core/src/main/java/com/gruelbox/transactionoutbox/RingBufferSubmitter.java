@@ -0,0 +1,354 @@
+package com.gruelbox.transactionoutbox;
+
+import com.gruelbox.transactionoutbox.spi.Utils;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import lombok.Builder;
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.event.Level;
+
+/**
+ * A {@link Submitter} which hands work to a fixed set of consumer threads through a preallocated,
+ * lock-free ring buffer, as an alternative to {@link ExecutorSubmitter}.
+ *
+ * <p>{@link ExecutorSubmitter} with a {@link java.util.concurrent.ThreadPoolExecutor} allocates a
+ * {@link Runnable} per task and takes a lock on the work queue for every submission and every poll.
+ * This is rarely a problem, but under sudden spikes, when many threads are firing post-commit hooks
+ * at once and {@link TransactionOutbox#flush()} is submitting whole batches, that lock can become
+ * contended. Here, producers claim a slot with a single compare-and-swap and write the task into it
+ * without allocating, and each consumer thread drains up to {@code drainBatchSize} tasks at a time
+ * before running them, only parking when the buffer is empty.
+ *
+ * <p>As with {@link ExecutorSubmitter}, when the buffer is full, tasks are not run immediately; the
+ * database absorbs the backpressure and they will be picked up by a later {@link
+ * TransactionOutbox#flush()}. {@link #occupancy()} can be monitored to detect saturation ahead of
+ * time.
+ *
+ * <p>The consumer threads are started on construction and run until {@link #close()} is called.
+ *
+ * <p>Usage:
+ *
+ * <pre>RingBufferSubmitter submitter = RingBufferSubmitter.builder()
+ *   .capacity(65536)
+ *   .consumerThreads(8)
+ *   .build();
+ * TransactionOutbox outbox = TransactionOutbox.builder()
+ *   ...
+ *   .submitter(submitter)
+ *   .build();</pre>
+ */
+@Slf4j
+public final class RingBufferSubmitter implements Submitter, Validatable, AutoCloseable {
+
+  private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+  private final int capacity;
+  private final int mask;
+  private final int drainBatchSize;
+  private final Level logLevelWorkQueueSaturation;
+
+  private final TransactionOutboxEntry[] entries;
+  private final Consumer<TransactionOutboxEntry>[] executors;
+  private final AtomicLongArray sequences;
+  private final AtomicLong head = new AtomicLong();
+  private final AtomicLong tail = new AtomicLong();
+
+  private final List<Worker> workers;
+  private final AtomicInteger parkedWorkers = new AtomicInteger();
+  private volatile boolean running = true;
+
+  /**
+   * @param capacity The number of tasks which may be queued awaiting a consumer thread. Rounded up
+   *     to the next power of two. Defaults to 16384.
+   * @param consumerThreads The number of threads processing tasks. Defaults to the parallelism of
+   *     {@link ForkJoinPool#commonPool()} or one thread, whichever is the larger.
+   * @param drainBatchSize The maximum number of tasks a consumer thread claims from the buffer at a
+   *     time. Larger values reduce contention between consumers, at the cost of tasks potentially
+   *     waiting behind a slow task claimed in the same batch. Defaults to 16.
+   * @param threadFactory Creates the consumer threads. Defaults to daemon threads named {@code
+   *     TransactionOutbox-Submitter-n}.
+   * @param logLevelWorkQueueSaturation The log level to use when a task is not queued because the
+   *     buffer is full. Defaults to {@code DEBUG}. See {@link
+   *     ExecutorSubmitter.ExecutorSubmitterBuilder#logLevelWorkQueueSaturation(Level)}.
+   */
+  @Builder
+  @SuppressWarnings("unchecked")
+  private RingBufferSubmitter(
+      Integer capacity,
+      Integer consumerThreads,
+      Integer drainBatchSize,
+      ThreadFactory threadFactory,
+      Level logLevelWorkQueueSaturation) {
+    this.capacity = roundUpToPowerOfTwo(capacity == null ? 16384 : capacity);
+    this.mask = this.capacity - 1;
+    this.drainBatchSize = drainBatchSize == null ? 16 : drainBatchSize;
+    this.logLevelWorkQueueSaturation =
+        Utils.firstNonNull(logLevelWorkQueueSaturation, () -> Level.DEBUG);
+    this.entries = new TransactionOutboxEntry[this.capacity];
+    this.executors = new Consumer[this.capacity];
+    this.sequences = new AtomicLongArray(this.capacity);
+    for (int i = 0; i < this.capacity; i++) {
+      sequences.set(i, i);
+    }
+    int threads =
+        consumerThreads == null
+            ? Math.max(1, ForkJoinPool.commonPool().getParallelism())
+            : consumerThreads;
+    ThreadFactory factory = threadFactory == null ? defaultThreadFactory() : threadFactory;
+    this.workers = new ArrayList<>(Math.max(0, threads));
+    for (int i = 0; i < threads; i++) {
+      Worker worker = new Worker(Math.max(1, this.drainBatchSize));
+      worker.thread = factory.newThread(worker::run);
+      workers.add(worker);
+    }
+    workers.forEach(worker -> worker.thread.start());
+  }
+
+  @Override
+  public void submit(TransactionOutboxEntry entry, Consumer<TransactionOutboxEntry> localExecutor) {
+    if (!running) {
+      log.warn("Submitter closed. {} will be re-attempted later.", entry.description());
+    } else if (offer(entry, localExecutor)) {
+      log.debug("Submitted {} for immediate processing", entry.description());
+      if (parkedWorkers.get() > 0) {
+        wakeOne();
+      }
+    } else {
+      Utils.logAtLevel(
+          log,
+          logLevelWorkQueueSaturation,
+          "Queued {} for processing when submitter is available",
+          entry.description());
+    }
+  }
+
+  /**
+   * Claims space in the buffer for as many of the entries as will fit with a single
+   * compare-and-swap, rather than one per entry, then wakes as many parked consumer threads as
+   * there are entries to run.
+   */
+  @Override
+  public void submitAll(
+      List<TransactionOutboxEntry> entries, Consumer<TransactionOutboxEntry> localExecutor) {
+    if (!running) {
+      log.warn("Submitter closed. {} tasks will be re-attempted later.", entries.size());
+      return;
+    }
+    int offered = offerAll(entries, localExecutor);
+    log.debug("Submitted {} of {} tasks for immediate processing", offered, entries.size());
+    for (int i = 0; i < offered && parkedWorkers.get() > 0; i++) {
+      wakeOne();
+    }
+    if (offered < entries.size()) {
+      Utils.logAtLevel(
+          log,
+          logLevelWorkQueueSaturation,
+          "Queued {} tasks for processing when submitter is available",
+          entries.size() - offered);
+    }
+  }
+
+  /**
+   * @return The number of tasks which can be queued before further submissions are rejected.
+   */
+  public int capacity() {
+    return capacity;
+  }
+
+  /**
+   * @return The approximate number of tasks queued awaiting a consumer thread.
+   */
+  public int size() {
+    long size = tail.get() - head.get();
+    return (int) Math.max(0, Math.min(size, capacity));
+  }
+
+  /**
+   * @return The approximate fraction of the buffer in use, between 0 and 1. Values approaching 1
+   *     indicate that consumers are not keeping up and that submissions will shortly start being
+   *     deferred to the next {@link TransactionOutbox#flush()}.
+   */
+  public double occupancy() {
+    return (double) size() / capacity;
+  }
+
+  /**
+   * Stops the consumer threads once they have finished the tasks they are currently running. Tasks
+   * still queued, including those a consumer thread has claimed but not yet started, are abandoned;
+   * they remain in the database and will be picked up by a later {@link TransactionOutbox#flush()}.
+   */
+  @Override
+  public void close() {
+    running = false;
+    workers.forEach(worker -> LockSupport.unpark(worker.thread));
+  }
+
+  @Override
+  public void validate(Validator validator) {
+    validator.min("consumerThreads", workers.size(), 1);
+    validator.min("drainBatchSize", drainBatchSize, 1);
+  }
+
+  private boolean offer(TransactionOutboxEntry entry, Consumer<TransactionOutboxEntry> executor) {
+    long position = tail.get();
+    while (true) {
+      int index = (int) (position & mask);
+      long difference = sequences.get(index) - position;
+      if (difference == 0) {
+        if (tail.compareAndSet(position, position + 1)) {
+          entries[index] = entry;
+          executors[index] = executor;
+          sequences.set(index, position + 1);
+          return true;
+        }
+        position = tail.get();
+      } else if (difference < 0) {
+        return false;
+      } else {
+        position = tail.get();
+      }
+    }
+  }
+
+  /**
+   * Claims a run of slots for as many of the entries as there is room for. The free space is judged
+   * from the consumers' position, which only moves forward, so it is never overestimated, but a
+   * consumer may not yet have released a slot it has just taken, so each slot is waited for before
+   * being written.
+   */
+  private int offerAll(
+      List<TransactionOutboxEntry> batch, Consumer<TransactionOutboxEntry> executor) {
+    long position;
+    int count;
+    do {
+      position = tail.get();
+      long free = capacity - (position - head.get());
+      count = (int) Math.max(0, Math.min(batch.size(), free));
+      if (count == 0) {
+        return 0;
+      }
+    } while (!tail.compareAndSet(position, position + count));
+    for (int i = 0; i < count; i++) {
+      long slot = position + i;
+      int index = (int) (slot & mask);
+      while (sequences.get(index) != slot) {
+        Thread.onSpinWait();
+      }
+      entries[index] = batch.get(i);
+      executors[index] = executor;
+      sequences.set(index, slot + 1);
+    }
+    return count;
+  }
+
+  private int drain(Worker worker) {
+    int count = 0;
+    while (count < worker.entries.length) {
+      long position = head.get();
+      int index = (int) (position & mask);
+      long difference = sequences.get(index) - (position + 1);
+      if (difference == 0) {
+        if (head.compareAndSet(position, position + 1)) {
+          worker.entries[count] = entries[index];
+          worker.executors[count] = executors[index];
+          entries[index] = null;
+          executors[index] = null;
+          sequences.set(index, position + capacity);
+          count++;
+        }
+      } else if (difference < 0) {
+        break;
+      }
+    }
+    return count;
+  }
+
+  private boolean isEmpty() {
+    long position = head.get();
+    return sequences.get((int) (position & mask)) - (position + 1) < 0;
+  }
+
+  private void wakeOne() {
+    for (Worker worker : workers) {
+      if (worker.parked.compareAndSet(true, false)) {
+        LockSupport.unpark(worker.thread);
+        return;
+      }
+    }
+  }
+
+  private static int roundUpToPowerOfTwo(int value) {
+    return value <= 1 ? 1 : Integer.highestOneBit(value - 1) << 1;
+  }
+
+  private static ThreadFactory defaultThreadFactory() {
+    AtomicInteger counter = new AtomicInteger();
+    return runnable -> {
+      Thread thread =
+          new Thread(runnable, "TransactionOutbox-Submitter-" + counter.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+
+  private final class Worker {
+    private final TransactionOutboxEntry[] entries;
+    private final Consumer<TransactionOutboxEntry>[] executors;
+    private final AtomicBoolean parked = new AtomicBoolean();
+    private Thread thread;
+
+    @SuppressWarnings("unchecked")
+    private Worker(int batchSize) {
+      this.entries = new TransactionOutboxEntry[batchSize];
+      this.executors = new Consumer[batchSize];
+    }
+
+    private void run() {
+      while (running) {
+        int count = drain(this);
+        if (count == 0) {
+          park();
+          continue;
+        }
+        for (int i = 0; i < count; i++) {
+          TransactionOutboxEntry entry = entries[i];
+          Consumer<TransactionOutboxEntry> executor = executors[i];
+          entries[i] = null;
+          executors[i] = null;
+          if (!running) {
+            log.debug("Submitter closed. {} will be re-attempted later.", entry.description());
+            continue;
+          }
+          try {
+            executor.accept(entry);
+          } catch (Throwable e) {
+            log.error(
+                "Failed to process {}. It will be re-attempted later.", entry.description(), e);
+          }
+        }
+      }
+    }
+
+    private void park() {
+      parked.set(true);
+      parkedWorkers.incrementAndGet();
+      try {
+        if (running && isEmpty()) {
+          LockSupport.parkNanos(RingBufferSubmitter.this, MAX_PARK_NANOS);
+        }
+      } finally {
+        parked.set(false);
+        parkedWorkers.decrementAndGet();
+      }
+    }
+  }
+}
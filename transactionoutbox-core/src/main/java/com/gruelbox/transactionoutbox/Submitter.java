@@ -1,5 +1,6 @@
 package com.gruelbox.transactionoutbox;
 
+import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ForkJoinPool;
@@ -72,4 +73,23 @@ public interface Submitter {
    *     just a call to {@link TransactionOutbox#processNow(TransactionOutboxEntry)}).
    */
   void submit(TransactionOutboxEntry entry, Consumer<TransactionOutboxEntry> localExecutor);
+
+  /**
+   * Submits several transaction outbox tasks for processing at once, such as a batch selected by
+   * {@link TransactionOutbox#flush()} or added using {@link TransactionOutbox#addAll(String,
+   * List)}. Each entry should be handled as described in {@link #submit(TransactionOutboxEntry,
+   * Consumer)}.
+   *
+   * <p>The default implementation calls {@link #submit(TransactionOutboxEntry, Consumer)} for each
+   * entry in turn. Implementations may override it to enqueue the whole batch in one operation, for
+   * example deciding once how many of the entries there is capacity for. Entries which are not run
+   * are picked up by a later {@link TransactionOutbox#flush()}.
+   *
+   * @param entries The entries to process.
+   * @param localExecutor Provides a means of running the work for each entry directly locally.
+   */
+  default void submitAll(
+      List<TransactionOutboxEntry> entries, Consumer<TransactionOutboxEntry> localExecutor) {
+    entries.forEach(entry -> submit(entry, localExecutor));
+  }
 }
@@ -0,0 +1,209 @@
+package com.gruelbox.transactionoutbox;
+
+import java.time.Duration;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Runs tasks after a delay using a hierarchical timing wheel, used by {@link TransactionOutbox} in
+ * place of a {@link java.util.concurrent.ScheduledExecutorService} for delayed work.
+ *
+ * <p>Time is divided into ticks. The wheel has {@value #LEVELS} levels of {@value #SLOTS} slots,
+ * each slot on a level spanning a full rotation of the level below, so it covers around 4 billion
+ * ticks. A task is placed in the lowest level whose current rotation contains its tick, and when a
+ * slot on a higher level is reached, its tasks are cascaded down to the levels below. Scheduling
+ * and expiring a task are therefore both O(1), with no heap to maintain, and each scheduled task
+ * costs a single small node.
+ *
+ * <p>Tasks are handed to a single ticker thread through a lock-free queue, so only the ticker
+ * thread touches the wheel itself. Tasks are run on the ticker thread, so should do no more than
+ * hand work off elsewhere. Tasks are never run early, but may run up to a tick late.
+ *
+ * <p>A task may be cancelled using the {@link Timeout} returned when it is scheduled. Cancelling
+ * drops the reference to the task straight away, but the node stays in the wheel until its slot is
+ * reached, when it is discarded.
+ *
+ * <p>The ticker thread is started when the first task is scheduled and runs until {@link #close()}
+ * is called.
+ */
+@Slf4j
+final class TimingWheel implements AutoCloseable {
+
+  private static final int BITS = 8;
+  private static final int SLOTS = 1 << BITS;
+  private static final int MASK = SLOTS - 1;
+  private static final int LEVELS = 4;
+  private static final AtomicReferenceFieldUpdater<Timeout, Runnable> TASK =
+      AtomicReferenceFieldUpdater.newUpdater(Timeout.class, Runnable.class, "task");
+
+  private final long tickNanos;
+  private final long startNanos = System.nanoTime();
+  private final Timeout[][] wheels = new Timeout[LEVELS][SLOTS];
+  private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger size = new AtomicInteger();
+  private final AtomicBoolean started = new AtomicBoolean();
+  private volatile boolean running = true;
+  private volatile Thread thread;
+  private long currentTick;
+
+  /**
+   * @param tick The resolution of the wheel. Tasks run up to this long after they are due.
+   */
+  TimingWheel(Duration tick) {
+    this.tickNanos = Math.max(1, tick.toNanos());
+  }
+
+  /**
+   * Schedules a task.
+   *
+   * @param task The task.
+   * @param delay The minimum delay before the task runs.
+   * @return A handle which may be used to cancel the task. If the wheel has been closed, the task
+   *     will not be run and the handle is already cancelled.
+   */
+  Timeout schedule(Runnable task, Duration delay) {
+    if (!running) {
+      return new Timeout(0, null);
+    }
+    long elapsed = System.nanoTime() - startNanos + Math.max(0, delay.toNanos());
+    var timeout = new Timeout((elapsed + tickNanos - 1) / tickNanos, task);
+    size.incrementAndGet();
+    pending.add(timeout);
+    if (started.compareAndSet(false, true)) {
+      thread = new Thread(this::run, "TransactionOutbox-TimingWheel");
+      thread.setDaemon(true);
+      thread.start();
+    }
+    return timeout;
+  }
+
+  /**
+   * @return The number of tasks scheduled but not yet run or cancelled.
+   */
+  int size() {
+    return size.get();
+  }
+
+  /** Stops the ticker thread. Tasks not yet run are abandoned. */
+  @Override
+  public void close() {
+    running = false;
+    Thread ticker = thread;
+    if (ticker != null) {
+      LockSupport.unpark(ticker);
+    }
+  }
+
+  private void run() {
+    while (running) {
+      long wait = startNanos + (currentTick + 1) * tickNanos - System.nanoTime();
+      if (wait > 0) {
+        LockSupport.parkNanos(this, wait);
+        continue;
+      }
+      currentTick++;
+      Timeout timeout;
+      while ((timeout = pending.poll()) != null) {
+        insert(timeout);
+      }
+      advance();
+    }
+  }
+
+  private void advance() {
+    int level = 1;
+    while (level < LEVELS && (currentTick & ((1L << (BITS * level)) - 1)) == 0) {
+      level++;
+    }
+    for (int l = level - 1; l >= 1; l--) {
+      Timeout timeout = detach(l, (int) ((currentTick >>> (BITS * l)) & MASK));
+      while (timeout != null) {
+        Timeout next = timeout.next;
+        insert(timeout);
+        timeout = next;
+      }
+    }
+    Timeout timeout = detach(0, (int) (currentTick & MASK));
+    while (timeout != null) {
+      Timeout next = timeout.next;
+      fire(timeout);
+      timeout = next;
+    }
+  }
+
+  private void insert(Timeout timeout) {
+    if (timeout.tick <= currentTick) {
+      fire(timeout);
+      return;
+    }
+    int level = 0;
+    while (level < LEVELS - 1
+        && (timeout.tick >>> (BITS * (level + 1))) != (currentTick >>> (BITS * (level + 1)))) {
+      level++;
+    }
+    int slot = (int) ((timeout.tick >>> (BITS * level)) & MASK);
+    timeout.next = wheels[level][slot];
+    wheels[level][slot] = timeout;
+  }
+
+  private Timeout detach(int level, int slot) {
+    Timeout head = wheels[level][slot];
+    wheels[level][slot] = null;
+    return head;
+  }
+
+  private void fire(Timeout timeout) {
+    timeout.next = null;
+    Runnable task = timeout.take();
+    if (task == null) {
+      return;
+    }
+    try {
+      task.run();
+    } catch (Exception e) {
+      log.error("Failed to run delayed task", e);
+    }
+  }
+
+  /** A scheduled task. */
+  final class Timeout {
+    private final long tick;
+    // Package-private rather than private so that TASK can update it reflectively
+    volatile Runnable task;
+    private Timeout next;
+
+    private Timeout(long tick, Runnable task) {
+      this.tick = tick;
+      this.task = task;
+    }
+
+    /**
+     * Cancels the task if it has not already run.
+     *
+     * @return True if the task was cancelled, false if it has already run or been cancelled.
+     */
+    boolean cancel() {
+      return take() != null;
+    }
+
+    /**
+     * @return True if the task has run or been cancelled.
+     */
+    boolean isDone() {
+      return task == null;
+    }
+
+    private Runnable take() {
+      Runnable taken = TASK.getAndSet(this, null);
+      if (taken != null) {
+        size.decrementAndGet();
+      }
+      return taken;
+    }
+  }
+}
@@ -58,6 +58,22 @@ public interface TransactionManager {
         .build();
   }
 
+  /**
+   * Creates a simple transaction manager which uses the specified {@link ConnectionProvider} to
+   * source connections. A new connection is requested for each transaction.
+   *
+   * <p>Mostly useful in combination with {@link PooledConnectionProvider} where no pooling {@code
+   * DataSource} is available but {@link #fromConnectionDetails(String, String, String, String)}
+   * does not perform adequately.
+   *
+   * @param connectionProvider The connection provider.
+   * @return The transaction manager.
+   */
+  static ThreadLocalContextTransactionManager fromConnectionProvider(
+      ConnectionProvider connectionProvider) {
+    return SimpleTransactionManager.builder().connectionProvider(connectionProvider).build();
+  }
+
   /**
    * Should do any work necessary to start a (new) transaction, call {@code runnable} and then
    * either commit on success or rollback on failure, flushing and closing any prepared statements
@@ -4,6 +4,8 @@ import java.time.Clock;
 import java.time.Duration;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Executor;
 import java.util.function.Supplier;
 import lombok.ToString;
@@ -16,7 +18,13 @@ import org.slf4j.event.Level;
  * pattern for Java. See <a href="https://github.com/gruelbox/transaction-outbox">README</a> for
  * usage instructions.
  */
-public interface TransactionOutbox {
+public interface TransactionOutbox extends AutoCloseable {
+
+  /**
+   * The name of the queue to which unordered tasks are added when no queue is specified using
+   * {@link ParameterizedScheduleBuilder#queue(String)}.
+   */
+  String DEFAULT_QUEUE = "default";
 
   /**
    * @return A builder for creating a new instance of {@link TransactionOutbox}.
@@ -96,8 +104,8 @@ public interface TransactionOutbox {
    * });
    * }</pre>
    *
-   * @param topic The topic for ordered processing. May be null for unordered processing. All commands
-   *     in the batch share this topic.
+   * @param topic The topic for ordered processing. May be null for unordered processing. All
+   *     commands in the batch share this topic.
    * @param commands The list of commands to add. May be null or empty (no-op).
    * @throws IllegalStateException If not initialized or no active transaction.
    * @throws UnsupportedOperationException If the transaction manager does not support thread-local
@@ -199,6 +207,36 @@ public interface TransactionOutbox {
 
   void processBatchNow(List<TransactionOutboxEntry> entries);
 
+  /**
+   * Stops this instance processing work, for example before the application is stopped during a
+   * deployment. This:
+   *
+   * <ul>
+   *   <li>stops {@link #flush()} and {@link #flushTopics(Executor, List)} claiming further work,
+   *       and causes tasks scheduled from now on to be left for other instances;
+   *   <li>waits, up to the specified timeout, for tasks already submitted for processing to
+   *       complete;
+   *   <li>makes any tasks claimed by this instance which have still not started available for other
+   *       instances to process immediately, rather than after {@link
+   *       TransactionOutboxBuilder#attemptFrequency(Duration)}; and
+   *   <li>releases this instance's share of topics if {@link
+   *       TransactionOutboxBuilder#topicLeaseDuration(Duration)} is in use.
+   * </ul>
+   *
+   * <p>The {@link Submitter} is not shut down, since it may be shared. Tasks submitted to it which
+   * start after this method returns are skipped.
+   *
+   * @param timeout The maximum time to wait for in-flight tasks to complete.
+   * @return True if all in-flight tasks completed within the timeout.
+   */
+  boolean shutdown(Duration timeout);
+
+  /** Calls {@link #shutdown(Duration)}, waiting up to 30 seconds for in-flight tasks. */
+  @Override
+  default void close() {
+    shutdown(Duration.ofSeconds(30));
+  }
+
   /** Builder for {@link TransactionOutbox}. */
   @ToString
   abstract class TransactionOutboxBuilder {
@@ -208,6 +246,20 @@ public interface TransactionOutbox {
     protected Submitter submitter;
     protected Duration attemptFrequency;
     protected int blockAfterAttempts;
+    protected int parkTopicsAfterAttempts;
+    protected int quickRetries;
+    protected Duration quickRetryDelay;
+    protected Duration preloadHorizon;
+    protected Map<String, Integer> concurrencyLimits;
+    protected int circuitBreakerThreshold;
+    protected Duration circuitBreakerOpenDuration;
+    protected Map<String, Double> rateLimits;
+    protected Map<String, Double> topicRateLimits;
+    protected Duration asyncHandlerTimeout;
+    protected Duration handlerTimeout;
+    protected Map<String, Duration> handlerTimeouts;
+    protected int groupCommitSize;
+    protected Duration postCommitGracePeriod;
     protected int flushBatchSize;
     protected Supplier<Clock> clockProvider;
     protected TransactionOutboxListener listener;
@@ -217,8 +269,13 @@ public interface TransactionOutbox {
     protected Duration retentionThreshold;
     protected Boolean initializeImmediately;
     protected Boolean useOrderedBatchProcessing;
+    protected Boolean isolateBatchFailures;
     protected int batchLockBackoffSeedMs;
     protected int batchLockBackoffMaxMs;
+    protected int orderedDispatchLanes;
+    protected Duration topicLeaseDuration;
+    protected Set<String> queues;
+    protected Duration coalesceWindow;
 
     protected TransactionOutboxBuilder() {}
 
@@ -277,6 +334,216 @@ public interface TransactionOutbox {
       return this;
     }
 
+    /**
+     * @param parkTopicsAfterAttempts How many attempts a task in an ordered topic (see {@link
+     *     ParameterizedScheduleBuilder#ordered(String)}) should be retried before it is blocked,
+     *     parking the whole topic. No further tasks in a parked topic are selected for processing
+     *     until the blocked task is resumed using {@link TransactionOutbox#unblock(String)}, at
+     *     which point processing continues in order from that task. If zero, tasks in ordered
+     *     topics are never blocked and are retried indefinitely. Defaults to zero.
+     * @return Builder.
+     */
+    public TransactionOutboxBuilder parkTopicsAfterAttempts(int parkTopicsAfterAttempts) {
+      this.parkTopicsAfterAttempts = parkTopicsAfterAttempts;
+      return this;
+    }
+
+    /**
+     * @param quickRetries How many times a task which fails when submitted for immediate processing
+     *     should be re-attempted straight away on the same instance before the failure is recorded
+     *     in the database and the task left for a later {@link #flush()}. Quick retries do not
+     *     count towards {@link #blockAfterAttempts(int)} and are not reported to the {@link
+     *     TransactionOutboxListener} unless they all fail. This is useful when most failures are
+     *     transient, such as deadlocks or brief downstream outages, since it avoids waiting for
+     *     {@link #attemptFrequency(Duration)} to elapse. Before the first quick retry, the task's
+     *     next attempt time is pushed back past all the quick retries, so that other instances
+     *     leave it alone in the meantime. Note that the thread processing the task is held for the
+     *     duration. Does not apply to batches processed using {@link
+     *     #useOrderedBatchProcessing(boolean)}. Defaults to zero.
+     * @return Builder.
+     */
+    public TransactionOutboxBuilder quickRetries(int quickRetries) {
+      this.quickRetries = quickRetries;
+      return this;
+    }
+
+    /**
+     * @param quickRetryDelay The delay before the first quick retry (see {@link
+     *     #quickRetries(int)}). The delay doubles for each subsequent quick retry. Defaults to 100
+     *     milliseconds.
+     * @return Builder.
+     */
+    public TransactionOutboxBuilder quickRetryDelay(Duration quickRetryDelay) {
+      this.quickRetryDelay = quickRetryDelay;
+      return this;
+    }
+
+    /**
+     * @param preloadHorizon If set, each {@link #flush()} also loads unordered tasks which will
+     *     fall due within this period and holds them in memory, submitting each one for processing
+     *     as soon as it is due rather than waiting for the first {@link #flush()} after that time.
+     *     This makes delayed tasks (see {@link ParameterizedScheduleBuilder#delayForAtLeast}) and
+     *     retries fire on time regardless of how often {@link #flush()} is called. It should be
+     *     longer than the interval between flushes. Tasks scheduled with a delay shorter than
+     *     {@link #attemptFrequency(Duration)} are always held in memory. Defaults to null, meaning
+     *     tasks are only processed when found by {@link #flush()}.
+     * @return Builder.
+     */
+    public TransactionOutboxBuilder preloadHorizon(Duration preloadHorizon) {
+      this.preloadHorizon = preloadHorizon;
+      return this;
+    }
+
+    /**
+     * @param concurrencyLimits The maximum number of tasks which may be claimed for processing at
+     *     once by this instance for specific handlers, keyed either by class name (as provided by
+     *     the {@link Instantiator}, so usually the fully-qualified class name) or by class name and
+     *     method name separated by a period, e.g. {@code com.acme.PaymentService.charge}. A method
+     *     limit takes precedence over a class limit, which is shared between all the methods of the
+     *     class without their own limit. Tasks over the limit are not claimed, submitted or queued,
+     *     but left in the database for a later {@link #flush()}, so a slow handler cannot occupy
+     *     every thread of the {@link Submitter} and starve others. Does not apply to ordered batch
+     *     processing (see {@link #useOrderedBatchProcessing(boolean)}). Defaults to no limits.
+     * @return Builder.
+     */
+    public TransactionOutboxBuilder concurrencyLimits(Map<String, Integer> concurrencyLimits) {
+      this.concurrencyLimits = concurrencyLimits;
+      return this;
+    }
+
+    /**
+     * @param circuitBreakerThreshold If non-zero, enables a circuit breaker for each handler
+     *     method, which opens after this many consecutive failures of the method on this instance.
+     *     While it is open, tasks for the method are not claimed or submitted, but left in the
+     *     database, so a downstream outage does not cause a failed attempt, and a database write,
+     *     for every task, nor cause tasks to be blocked by {@link #blockAfterAttempts(int)}. After
+     *     {@link #circuitBreakerOpenDuration(Duration)}, a single task is let through as a probe,
+     *     and the breaker closes again if it succeeds. Does not apply to ordered batch processing
+     *     (see {@link #useOrderedBatchProcessing(boolean)}). Defaults to zero.
+     * @return Builder.
+     */
+    public TransactionOutboxBuilder circuitBreakerThreshold(int circuitBreakerThreshold) {
+      this.circuitBreakerThreshold = circuitBreakerThreshold;
+      return this;
+    }
+
+    /**
+     * @param circuitBreakerOpenDuration How long a circuit breaker (see {@link
+     *     #circuitBreakerThreshold(int)}) stays open before letting a probe task through. Defaults
+     *     to 30 seconds.
+     * @return Builder.
+     */
+    public TransactionOutboxBuilder circuitBreakerOpenDuration(
+        Duration circuitBreakerOpenDuration) {
+      this.circuitBreakerOpenDuration = circuitBreakerOpenDuration;
+      return this;
+    }
+
+    /**
+     * @param rateLimits The maximum number of tasks per second which this instance will submit for
+     *     specific handlers, keyed in the same way as {@link #concurrencyLimits(Map)}. Each limit
+     *     is enforced using a token bucket which allows bursts of up to a second's worth of tasks.
+     *     Tasks over the limit are not claimed, so they do not use up an attempt or cause a
+     *     database write, and are picked up by a later {@link #flush()}. Note that the limit
+     *     applies per instance, so should be divided by the number of instances to stay within a
+     *     shared quota. Does not apply to ordered batch processing (see {@link
+     *     #useOrderedBatchProcessing(boolean)}). Defaults to no limits.
+     * @return Builder.
+     */
+    public TransactionOutboxBuilder rateLimits(Map<String, Double> rateLimits) {
+      this.rateLimits = rateLimits;
+      return this;
+    }
+
+    /**
+     * @param topicRateLimits The maximum number of tasks per second which this instance will submit
+     *     for specific ordered topics (see {@link ParameterizedScheduleBuilder#ordered}), keyed by
+     *     topic. Enforced in the same way as {@link #rateLimits(Map)}. Defaults to no limits.
+     * @return Builder.
+     */
+    public TransactionOutboxBuilder topicRateLimits(Map<String, Double> topicRateLimits) {
+      this.topicRateLimits = topicRateLimits;
+      return this;
+    }
+
+    /**
+     * @param asyncHandlerTimeout How long to wait for the {@link
+     *     java.util.concurrent.CompletionStage} returned by an asynchronous handler method to
+     *     complete before treating the attempt as failed with a {@link
+     *     java.util.concurrent.TimeoutException}. Handler methods returning a {@code
+     *     CompletionStage} are processed outside a transaction (see {@link NonTransactional}),
+     *     releasing the worker thread as soon as they return, and the task is completed when the
+     *     stage completes. Defaults to {@link #attemptFrequency(Duration)}, after which the task
+     *     may be picked up again anyway.
+     * @return Builder.
+     */
+    public TransactionOutboxBuilder asyncHandlerTimeout(Duration asyncHandlerTimeout) {
+      this.asyncHandlerTimeout = asyncHandlerTimeout;
+      return this;
+    }
+
+    /**
+     * @param handlerTimeout The maximum time a handler method may run for. If it is still running
+     *     when the timeout expires, its thread is interrupted and the attempt fails with a {@link
+     *     java.util.concurrent.TimeoutException}, which is passed to {@link
+     *     TransactionOutboxListener#failure(TransactionOutboxEntry, Throwable)}. The transaction is
+     *     rolled back, releasing the row lock, and the failure counts towards {@link
+     *     #blockAfterAttempts(int)} as normal. Interruption is cooperative: a handler which ignores
+     *     it still holds its thread until it returns, but its work is rolled back. Also used in
+     *     place of {@link #asyncHandlerTimeout(Duration)} where set. Does not apply to bulk methods
+     *     (see {@link Batchable}). Defaults to no timeout.
+     * @return Builder.
+     */
+    public TransactionOutboxBuilder handlerTimeout(Duration handlerTimeout) {
+      this.handlerTimeout = handlerTimeout;
+      return this;
+    }
+
+    /**
+     * @param handlerTimeouts Timeouts for specific handlers, overriding {@link
+     *     #handlerTimeout(Duration)}, keyed by class name or by class and method name in the same
+     *     way as {@link #concurrencyLimits(Map)}. Defaults to none.
+     * @return Builder.
+     */
+    public TransactionOutboxBuilder handlerTimeouts(Map<String, Duration> handlerTimeouts) {
+      this.handlerTimeouts = handlerTimeouts;
+      return this;
+    }
+
+    /**
+     * @param groupCommitSize If greater than 1, unordered tasks submitted for immediate processing
+     *     are queued, and each worker takes up to this many queued tasks and processes them in a
+     *     single transaction, with a savepoint around each task and a single batched delete. When
+     *     the {@link Submitter} is keeping up, tasks are still processed one at a time; when it
+     *     falls behind, the cost of each commit is shared between many tasks. A failing task only
+     *     rolls back its own work, but failures within a group are recorded straight away rather
+     *     than retried in-process (see {@link #quickRetries(int)}). Does not apply to ordered tasks
+     *     or tasks run outside a transaction (see {@link NonTransactional}). Defaults to 0
+     *     (disabled).
+     * @return Builder.
+     */
+    public TransactionOutboxBuilder groupCommitSize(int groupCommitSize) {
+      this.groupCommitSize = groupCommitSize;
+      return this;
+    }
+
+    /**
+     * @param postCommitGracePeriod If set, unordered tasks which this instance will process
+     *     immediately after commit are saved with their first attempt this far in the future,
+     *     reserving them for this instance. Other instances calling {@link #flush()} then leave
+     *     them alone, rather than racing this instance to claim them, unless this instance fails to
+     *     process them within the period (for example because it crashed). Should be a few seconds
+     *     at most, and longer than {@link #coalesceWindow(Duration)} if set, since tasks which this
+     *     instance defers, for example due to {@link #rateLimits(Map)}, also wait this long before
+     *     another instance can pick them up. Does not apply to delayed or ordered tasks. Defaults
+     *     to no grace period.
+     * @return Builder.
+     */
+    public TransactionOutboxBuilder postCommitGracePeriod(Duration postCommitGracePeriod) {
+      this.postCommitGracePeriod = postCommitGracePeriod;
+      return this;
+    }
+
     /**
      * @param flushBatchSize How many items should be attempted in each flush. This should be
      *     balanced with {@link #attemptFrequency} and the frequency with which {@link #flush()} is
@@ -376,6 +643,23 @@ public interface TransactionOutbox {
       return this;
     }
 
+    /**
+     * @param isolateBatchFailures If true, when processing ordered batches (see {@link
+     *     #useOrderedBatchProcessing(boolean)}), each entry is invoked within its own JDBC {@link
+     *     java.sql.Savepoint}. If an entry fails, only its own work is rolled back: the entries
+     *     before it in the batch are committed as processed, the failing entry alone has its
+     *     attempt count increased, and the remaining entries in its topic are left for a later
+     *     {@link TransactionOutbox#flush()}, preserving order. Otherwise, any failure rolls back
+     *     the whole batch and counts as a failed attempt for every entry in it. Requires a {@link
+     *     TransactionManager} whose transactions expose a JDBC connection and a database which
+     *     supports savepoints. Defaults to false.
+     * @return Builder.
+     */
+    public TransactionOutboxBuilder isolateBatchFailures(boolean isolateBatchFailures) {
+      this.isolateBatchFailures = isolateBatchFailures;
+      return this;
+    }
+
     /**
      * @param batchLockBackoffSeedMs The initial backoff time (in milliseconds) to use when lock
      *     contention occurs. This value is used as the base for exponential backoff. Defaults to
@@ -398,6 +682,70 @@ public interface TransactionOutbox {
       return this;
     }
 
+    /**
+     * @param orderedDispatchLanes If greater than zero, entries scheduled with {@link
+     *     ParameterizedScheduleBuilder#ordered(String)} are dispatched for processing immediately
+     *     after commit rather than waiting for the next {@link TransactionOutbox#flush()}. Each
+     *     topic is assigned to one of this many single-threaded lanes on the committing node, so
+     *     entries in the same topic run one at a time in sequence order. Before running, each entry
+     *     is checked against the database to confirm that it is still the first unprocessed entry
+     *     in its topic, so ordering is preserved across nodes; if not (for example because an
+     *     earlier entry failed), it is left for {@link TransactionOutbox#flush()} to pick up as
+     *     usual. Delayed entries are never dispatched this way. Defaults to 0 (disabled).
+     * @return Builder.
+     */
+    public TransactionOutboxBuilder orderedDispatchLanes(int orderedDispatchLanes) {
+      this.orderedDispatchLanes = orderedDispatchLanes;
+      return this;
+    }
+
+    /**
+     * @param topicLeaseDuration If set when {@link #useOrderedBatchProcessing(boolean)} is enabled,
+     *     each {@link TransactionOutbox} registers itself as a node with a lease of this duration,
+     *     renewed during {@link TransactionOutbox#flush()}. Topics are hashed into a fixed number
+     *     of buckets which are shared out in contiguous ranges between the live nodes, and each
+     *     node only selects and locks batches from its own range. This avoids nodes competing for
+     *     the same topics and backing off after failing to lock them. Ownership is rebalanced as
+     *     nodes join and as the leases of nodes which stop flushing expire, so this should be
+     *     comfortably longer than the interval between calls to {@link TransactionOutbox#flush()}.
+     *     Defaults to null (disabled), in which case every node competes for every topic.
+     * @return Builder.
+     */
+    public TransactionOutboxBuilder topicLeaseDuration(Duration topicLeaseDuration) {
+      this.topicLeaseDuration = topicLeaseDuration;
+      return this;
+    }
+
+    /**
+     * @param queues The names of the queues from which this instance processes unordered tasks. See
+     *     {@link ParameterizedScheduleBuilder#queue(String)}. Tasks in other queues are neither
+     *     selected by {@link TransactionOutbox#flush()} nor run immediately after commit when
+     *     scheduled from this instance; they are left for an instance subscribed to their queue.
+     *     Include {@link TransactionOutbox#DEFAULT_QUEUE} to process tasks scheduled without a
+     *     queue. Defaults to null, in which case all queues are processed.
+     * @return Builder.
+     */
+    public TransactionOutboxBuilder queues(Set<String> queues) {
+      this.queues = queues;
+      return this;
+    }
+
+    /**
+     * @param coalesceWindow If set, unordered tasks for methods annotated with {@link Batchable}
+     *     are not processed immediately after commit, but held for up to this long so that they can
+     *     be processed alongside other tasks for the same method in a single call. A group is
+     *     released early once it reaches {@link Batchable#maxBatchSize()}. Tasks held this way are
+     *     already committed, so are picked up by {@link TransactionOutbox#flush()} as usual if the
+     *     application stops in the meantime. Defaults to null, in which case tasks are only grouped
+     *     when they are picked up together by {@link TransactionOutbox#flush()} or added together
+     *     using {@link TransactionOutbox#addAll(String, List)}.
+     * @return Builder.
+     */
+    public TransactionOutboxBuilder coalesceWindow(Duration coalesceWindow) {
+      this.coalesceWindow = coalesceWindow;
+      return this;
+    }
+
     /**
      * Creates and initialises the {@link TransactionOutbox}.
      *
@@ -447,7 +795,8 @@ public interface TransactionOutbox {
      *       that other topics will be unaffected.
      *   <lI>For the same reason, {@link TransactionOutboxBuilder#blockAfterAttempts} is ignored for
      *       all requests that use this option. The only safe way to recover from a failing request
-     *       is to make the request succeed.
+     *       is to make the request succeed. To stop a permanently failing request being retried
+     *       indefinitely, use {@link TransactionOutboxBuilder#parkTopicsAfterAttempts(int)}.
      *   <li>A single topic can only be processed in single-threaded fashion, so if your requests
      *       use a small number of topics, scalability will be affected since the degree of
      *       parallelism will be reduced.
@@ -494,6 +843,35 @@ public interface TransactionOutbox {
      */
     ParameterizedScheduleBuilder delayForAtLeast(Duration duration);
 
+    /**
+     * Sets the priority of the request. When {@link #flush()} selects unordered work, requests with
+     * a higher priority are picked up ahead of those with a lower priority. To avoid low priority
+     * work starving indefinitely under sustained load, each unit of priority is equivalent to a
+     * fixed amount of waiting time (see {@link
+     * DefaultPersistor.DefaultPersistorBuilder#priorityAging(Duration)}), so a task which has been
+     * due for long enough will eventually be selected ahead of newer, more urgent work.
+     *
+     * <p>Priority has no effect on requests added to a topic using {@link #ordered(String)}, which
+     * are always processed in sequence.
+     *
+     * @param priority The priority. Higher is more urgent. Defaults to zero.
+     * @return Builder.
+     */
+    ParameterizedScheduleBuilder priority(int priority);
+
+    /**
+     * Adds the request to a named work queue. Instances of {@link TransactionOutbox} may be
+     * restricted to a set of queues using {@link TransactionOutboxBuilder#queues(Set)}, so that
+     * slow or resource-hungry work can be isolated on dedicated nodes without delaying other work.
+     *
+     * <p>Queues have no effect on requests added to a topic using {@link #ordered(String)}.
+     *
+     * @param queue The queue name, up to 250 characters. Defaults to {@link
+     *     TransactionOutbox#DEFAULT_QUEUE}.
+     * @return Builder.
+     */
+    ParameterizedScheduleBuilder queue(String queue);
+
     /**
      * Equivalent to {@link TransactionOutbox#schedule(Class)}, but applying additional parameters
      * to the request as configured using {@link TransactionOutbox#with()}.
@@ -47,6 +47,24 @@ public class TransactionOutboxEntry implements Validatable {
   @Setter
   private Long sequence;
 
+  /**
+   * @param priority The relative priority of the task when selected by {@link
+   *     TransactionOutbox#flush()}. Higher values are selected first. Defaults to zero.
+   * @return The relative priority of the task.
+   */
+  @SuppressWarnings("JavaDoc")
+  @Getter
+  private final int priority;
+
+  /**
+   * @param queue The work queue to which the task belongs, or null for {@link
+   *     TransactionOutbox#DEFAULT_QUEUE}. Only applies to tasks without a {@code topic}.
+   * @return The work queue to which the task belongs.
+   */
+  @SuppressWarnings("JavaDoc")
+  @Getter
+  private final String queue;
+
   /**
    * @param invocation The method invocation to perform.
    * @return The method invocation to perform.
@@ -162,6 +180,7 @@ public class TransactionOutboxEntry implements Validatable {
     validator.notNull("id", id);
     validator.nullOrNotBlank("uniqueRequestId", uniqueRequestId);
     validator.nullOrNotBlank("topic", topic);
+    validator.nullOrNotBlank("queue", queue);
     validator.notNull("invocation", invocation);
     validator.positiveOrZero("attempts", attempts);
     validator.positiveOrZero("version", version);
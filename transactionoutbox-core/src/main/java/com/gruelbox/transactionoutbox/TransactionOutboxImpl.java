@@ -8,25 +8,40 @@ import static java.time.temporal.ChronoUnit.MINUTES;
 import com.gruelbox.transactionoutbox.spi.ProxyFactory;
 import com.gruelbox.transactionoutbox.spi.Utils;
 import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Savepoint;
 import java.time.Clock;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import lombok.AccessLevel;
+import lombok.Getter;
 import lombok.RequiredArgsConstructor;
 import lombok.Setter;
 import lombok.ToString;
+import lombok.Value;
 import lombok.experimental.Accessors;
 import lombok.extern.slf4j.Slf4j;
 import org.slf4j.MDC;
@@ -36,6 +51,8 @@ import org.slf4j.event.Level;
 @RequiredArgsConstructor(access = AccessLevel.PRIVATE)
 final class TransactionOutboxImpl implements TransactionOutbox, Validatable {
 
+  private static final CompletableFuture<Void> COMPLETED = CompletableFuture.completedFuture(null);
+
   private final TransactionManager transactionManager;
   private final Persistor persistor;
   private final Instantiator instantiator;
@@ -54,9 +71,43 @@ final class TransactionOutboxImpl implements TransactionOutbox, Validatable {
   private final AtomicInteger consecutiveFailures = new AtomicInteger(0);
   private final AtomicBoolean initialized = new AtomicBoolean();
   private final ProxyFactory proxyFactory = new ProxyFactory();
-  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+  private final TimingWheel timingWheel = new TimingWheel(Duration.ofMillis(10));
   private final int batchLockBackoffSeedMs;
   private final int batchLockBackoffMaxMs;
+  private final ExecutorService[] orderedLanes;
+  private final Duration topicLeaseDuration;
+  private final Set<String> queues;
+  private final Duration coalesceWindow;
+  private final boolean isolateBatchFailures;
+  private final int parkTopicsAfterAttempts;
+  private final int quickRetries;
+  private final Duration quickRetryDelay;
+  private final Duration preloadHorizon;
+  private final Set<String> preloaded = ConcurrentHashMap.newKeySet();
+  private volatile Instant preloadedUntil = Instant.MIN;
+  private final Map<String, Claim> claimed = new ConcurrentHashMap<>();
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final AtomicBoolean shutdown = new AtomicBoolean();
+  private final Map<String, Integer> concurrencyLimits;
+  private final Map<String, Bulkhead> bulkheads = new ConcurrentHashMap<>();
+  private final Map<String, Bulkhead> permits = new ConcurrentHashMap<>();
+  private final CircuitBreakers circuitBreakers;
+  private final Map<String, Double> rateLimits;
+  private final Map<String, Double> topicRateLimits;
+  private final Duration asyncHandlerTimeout;
+  private final Duration handlerTimeout;
+  private final Map<String, Duration> handlerTimeouts;
+  private final int groupCommitSize;
+  private final Duration postCommitGracePeriod;
+  private final Queue<TransactionOutboxEntry> groupCommits = new ConcurrentLinkedQueue<>();
+  private final Map<String, TokenBucket> rateLimiters = new ConcurrentHashMap<>();
+  private final Map<String, TokenBucket> topicRateLimiters = new ConcurrentHashMap<>();
+  private final Map<String, Optional<BulkHandler>> bulkHandlers = new ConcurrentHashMap<>();
+  private final Map<String, Boolean> nonTransactional = new ConcurrentHashMap<>();
+  private final Map<BulkHandler, List<TransactionOutboxEntry>> coalescing = new HashMap<>();
+  private final String nodeId = UUID.randomUUID().toString();
+  private volatile List<String> liveNodes = List.of();
+  private volatile Instant nodeLeaseRenewalDue = Instant.MIN;
 
   @Override
   public void validate(Validator validator) {
@@ -67,10 +118,72 @@ final class TransactionOutboxImpl implements TransactionOutbox, Validatable {
     validator.notNull("attemptFrequency", attemptFrequency);
     validator.notNull("logLevelTemporaryFailure", logLevelTemporaryFailure);
     validator.min("blockAfterAttempts", blockAfterAttempts, 1);
+    validator.min("parkTopicsAfterAttempts", parkTopicsAfterAttempts, 0);
+    validator.min("quickRetries", quickRetries, 0);
+    validator.min("groupCommitSize", groupCommitSize, 0);
+    validator.notNull("quickRetryDelay", quickRetryDelay);
     validator.min("flushBatchSize", flushBatchSize, 1);
     validator.notNull("clockProvider", clockProvider);
     validator.notNull("listener", listener);
     validator.notNull("retentionThreshold", retentionThreshold);
+    if (topicLeaseDuration != null) {
+      validator.isTrue(
+          "topicLeaseDuration",
+          !topicLeaseDuration.isNegative() && !topicLeaseDuration.isZero(),
+          "must be positive");
+    }
+    if (queues != null) {
+      validator.isTrue("queues", !queues.isEmpty(), "may not be empty");
+    }
+    if (preloadHorizon != null) {
+      validator.isTrue(
+          "preloadHorizon",
+          !preloadHorizon.isNegative() && !preloadHorizon.isZero(),
+          "must be positive");
+    }
+    if (circuitBreakers != null) {
+      validator.valid("circuitBreakers", circuitBreakers);
+    }
+    if (rateLimits != null) {
+      rateLimits.forEach(
+          (name, rate) ->
+              validator.isTrue("rateLimits[" + name + "]", rate > 0, "must be positive"));
+    }
+    if (topicRateLimits != null) {
+      topicRateLimits.forEach(
+          (topic, rate) ->
+              validator.isTrue("topicRateLimits[" + topic + "]", rate > 0, "must be positive"));
+    }
+    if (concurrencyLimits != null) {
+      concurrencyLimits.forEach(
+          (name, limit) -> validator.min("concurrencyLimits[" + name + "]", limit, 1));
+    }
+    if (asyncHandlerTimeout != null) {
+      validator.isTrue(
+          "asyncHandlerTimeout",
+          !asyncHandlerTimeout.isNegative() && !asyncHandlerTimeout.isZero(),
+          "must be positive");
+    }
+    if (postCommitGracePeriod != null) {
+      validator.isTrue(
+          "postCommitGracePeriod",
+          !postCommitGracePeriod.isNegative() && !postCommitGracePeriod.isZero(),
+          "must be positive");
+    }
+    if (handlerTimeout != null) {
+      validator.isTrue(
+          "handlerTimeout",
+          !handlerTimeout.isNegative() && !handlerTimeout.isZero(),
+          "must be positive");
+    }
+    if (handlerTimeouts != null) {
+      handlerTimeouts.forEach(
+          (name, timeout) ->
+              validator.isTrue(
+                  "handlerTimeouts[" + name + "]",
+                  !timeout.isNegative() && !timeout.isZero(),
+                  "must be positive"));
+    }
   }
 
   static TransactionOutboxBuilder builder() {
@@ -91,7 +204,58 @@ final class TransactionOutboxImpl implements TransactionOutbox, Validatable {
 
   @Override
   public <T> T schedule(Class<T> clazz) {
-    return schedule(clazz, null, null, null);
+    return schedule(clazz, null, null, null, 0, null);
+  }
+
+  @Override
+  public boolean shutdown(Duration timeout) {
+    if (!shutdown.compareAndSet(false, true)) {
+      return claimed.isEmpty() && inFlight.get() == 0;
+    }
+    log.info(
+        "Shutting down. Waiting up to {} for {} in-flight tasks",
+        timeout,
+        claimed.size() + inFlight.get());
+    long deadline = System.nanoTime() + timeout.toNanos();
+    for (ExecutorService lane : orderedLanes) {
+      lane.shutdown();
+    }
+    List<TransactionOutboxEntry> abandoned = new ArrayList<>();
+    synchronized (coalescing) {
+      coalescing.values().forEach(abandoned::addAll);
+      coalescing.clear();
+    }
+    while ((!claimed.isEmpty() || inFlight.get() > 0) && System.nanoTime() < deadline) {
+      try {
+        Thread.sleep(10);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    for (var claim : List.copyOf(claimed.values())) {
+      var entry = claim.getEntry();
+      if (claimed.remove(entry.getId(), claim)) {
+        releasePermit(entry);
+        abandoned.add(entry);
+      }
+    }
+    int released = release(abandoned);
+    // Only now, so that handler and async timeouts still fire for tasks running during the drain
+    timingWheel.close();
+    if (topicLeaseDuration != null) {
+      try {
+        transactionManager.inTransactionThrows(tx -> persistor.releaseNodeLease(tx, nodeId));
+      } catch (Exception e) {
+        log.warn("Failed to release lease for node {}. It will expire", nodeId, e);
+      }
+    }
+    int running = inFlight.get();
+    log.info(
+        "Shut down with {} tasks released for other instances and {} still running",
+        released,
+        running);
+    return claimed.isEmpty() && abandoned.isEmpty() && running == 0;
   }
 
   @Override
@@ -120,6 +284,7 @@ final class TransactionOutboxImpl implements TransactionOutbox, Validatable {
                 List<TransactionOutboxEntry> entries = new ArrayList<>(commands.size());
                 for (OutboxCommand cmd : commands) {
                   TransactionOutboxEntry entry = entryFromCommand(cmd, topic);
+                  reserveForPostCommit(entry);
                   validator.validate(entry);
                   entries.add(entry);
                 }
@@ -130,15 +295,22 @@ final class TransactionOutboxImpl implements TransactionOutbox, Validatable {
                 // Register post-commit hook for all entries
                 tx.addPostCommitHook(
                     () -> {
+                      List<TransactionOutboxEntry> unordered = new ArrayList<>();
                       for (TransactionOutboxEntry entry : entries) {
                         listener.scheduled(entry);
                         if (entry.getTopic() != null) {
-                          log.debug("Queued {} in topic {}", entry.description(), entry.getTopic());
-                        } else {
-                          submitNow(entry);
+                          if (dispatchOrdered(entry)) {
+                            log.debug("Dispatched {} to ordered lane", entry.description());
+                          } else {
+                            log.debug(
+                                "Queued {} in topic {}", entry.description(), entry.getTopic());
+                          }
+                        } else if (circuitAllows(entry) && withinRateLimits(entry)) {
+                          unordered.add(entry);
                           log.debug("Scheduled {} for post-commit execution", entry.description());
                         }
                       }
+                      submitAll(unordered);
                       log.debug("Batch scheduled {} entries", entries.size());
                     });
                 return null;
@@ -149,24 +321,44 @@ final class TransactionOutboxImpl implements TransactionOutbox, Validatable {
   }
 
   private boolean doFlush(Function<Transaction, Collection<TransactionOutboxEntry>> batchSource) {
-    var batch =
-        transactionManager.inTransactionReturns(
-            transaction -> {
-              var entries = batchSource.apply(transaction);
-              List<TransactionOutboxEntry> result = new ArrayList<>(entries.size());
-              for (var entry : entries) {
-                log.trace("Triggering {}", entry.description());
-                try {
-                  pushBack(transaction, entry);
-                  result.add(entry);
-                } catch (OptimisticLockException e) {
-                  log.trace("Beaten to optimistic lock on {}", entry.description());
+    List<TransactionOutboxEntry> acquired = new ArrayList<>();
+    List<TransactionOutboxEntry> batch;
+    try {
+      batch =
+          transactionManager.inTransactionReturns(
+              transaction -> {
+                var entries = batchSource.apply(transaction);
+                List<TransactionOutboxEntry> result = new ArrayList<>(entries.size());
+                for (var entry : entries) {
+                  if (claimed.containsKey(entry.getId())) {
+                    log.trace("{} is already claimed locally", entry.description());
+                    continue;
+                  }
+                  if (!acquirePermit(entry)) {
+                    continue;
+                  }
+                  if (!circuitAllows(entry) || !withinRateLimits(entry)) {
+                    releasePermit(entry);
+                    continue;
+                  }
+                  acquired.add(entry);
+                  log.trace("Triggering {}", entry.description());
+                  try {
+                    pushBack(transaction, entry);
+                    result.add(entry);
+                  } catch (OptimisticLockException e) {
+                    log.trace("Beaten to optimistic lock on {}", entry.description());
+                    releasePermit(entry);
+                  }
                 }
-              }
-              return result;
-            });
+                return result;
+              });
+    } catch (RuntimeException e) {
+      acquired.forEach(this::releasePermit);
+      throw e;
+    }
     log.debug("Got batch of {}", batch.size());
-    batch.forEach(this::submitNow);
+    submitAll(batch);
     log.debug("Submitted batch");
     return !batch.isEmpty();
   }
@@ -228,16 +420,29 @@ final class TransactionOutboxImpl implements TransactionOutbox, Validatable {
     if (!initialized.get()) {
       throw new IllegalStateException("Not initialized");
     }
+    if (shutdown.get()) {
+      log.debug("Shutting down. Skipping flush");
+      return false;
+    }
 
     Instant now = clockProvider.get().instant();
+    claimed
+        .values()
+        .removeIf(
+            claim -> {
+              if (claim.getExpires().isBefore(now)) {
+                releasePermit(claim.getEntry());
+                return true;
+              }
+              return false;
+            });
     List<CompletableFuture<Boolean>> futures = new ArrayList<>();
 
     futures.add(
         CompletableFuture.supplyAsync(
             () -> {
               log.debug("Flushing stale tasks");
-              return doFlush(
-                  tx -> uncheckedly(() -> persistor.selectBatch(tx, flushBatchSize, now)));
+              return doFlush(tx -> uncheckedly(() -> selectBatch(tx, now)));
             },
             executor));
 
@@ -245,6 +450,11 @@ final class TransactionOutboxImpl implements TransactionOutbox, Validatable {
         CompletableFuture.runAsync(() -> expireIdempotencyProtection(now), executor)
             .thenApply(it -> false));
 
+    if (preloadHorizon != null) {
+      futures.add(
+          CompletableFuture.runAsync(() -> preloadDelayed(now), executor).thenApply(it -> false));
+    }
+
     if (enableOrderedBatchProcessing) {
 
       // Check if we're in backoff period - if so, skip processing entirely
@@ -258,10 +468,9 @@ final class TransactionOutboxImpl implements TransactionOutbox, Validatable {
             CompletableFuture.supplyAsync(
                 () -> {
                   log.debug("Flushing topics in batches");
+                  var nodes = topicLeaseDuration == null ? null : renewNodeLease(now);
                   return doBatchFlush(
-                      tx ->
-                          uncheckedly(
-                              () -> persistor.selectNextBatchInTopics(tx, flushBatchSize, now)),
+                      tx -> uncheckedly(() -> selectNextBatchInOwnedTopics(tx, now, nodes)),
                       executor);
                 },
                 executor));
@@ -289,6 +498,10 @@ final class TransactionOutboxImpl implements TransactionOutbox, Validatable {
     if (!initialized.get()) {
       throw new IllegalStateException("Not initialized");
     }
+    if (shutdown.get()) {
+      log.debug("Shutting down. Skipping flush");
+      return false;
+    }
     Instant now = clockProvider.get().instant();
 
     log.debug("Flushing selected topics {}", topicNames);
@@ -298,6 +511,46 @@ final class TransactionOutboxImpl implements TransactionOutbox, Validatable {
                 () -> persistor.selectNextInSelectedTopics(tx, topicNames, flushBatchSize, now)));
   }
 
+  /**
+   * Puts entries which fall due within the preload horizon on the timing wheel. Each call carries
+   * on from the latest due time preloaded by the last, so that a full batch of entries already on
+   * the wheel does not stop later entries being preloaded.
+   */
+  private void preloadDelayed(Instant now) {
+    Instant from = preloadedUntil.isAfter(now) ? preloadedUntil : now;
+    var entries =
+        transactionManager.inTransactionReturns(
+            tx ->
+                uncheckedly(
+                    () ->
+                        persistor.selectBatchDueBetween(
+                            tx, queues, flushBatchSize, from, now.plus(preloadHorizon))));
+    int count = 0;
+    Instant latest = from;
+    for (var entry : entries) {
+      if (entry.getNextAttemptTime().isAfter(latest)) {
+        latest = entry.getNextAttemptTime();
+      }
+      if (entry.getNextAttemptTime().isAfter(now)
+          && !claimed.containsKey(entry.getId())
+          && preloaded.add(entry.getId())) {
+        timingWheel.schedule(
+            () -> {
+              preloaded.remove(entry.getId());
+              if (!shutdown.get()) {
+                submitNow(entry);
+              }
+            },
+            Duration.between(now, entry.getNextAttemptTime()));
+        count++;
+      }
+    }
+    preloadedUntil = latest;
+    if (count > 0) {
+      log.debug("Preloaded {} tasks due within {}", count, preloadHorizon);
+    }
+  }
+
   private void expireIdempotencyProtection(Instant now) {
     long totalRecordsDeleted = 0;
     int recordsDeleted;
@@ -368,7 +621,12 @@ final class TransactionOutboxImpl implements TransactionOutbox, Validatable {
   }
 
   private <T> T schedule(
-      Class<T> clazz, String uniqueRequestId, String topic, Duration delayForAtLeast) {
+      Class<T> clazz,
+      String uniqueRequestId,
+      String topic,
+      Duration delayForAtLeast,
+      int priority,
+      String queue) {
     if (!initialized.get()) {
       throw new IllegalStateException("Not initialized");
     }
@@ -385,8 +643,12 @@ final class TransactionOutboxImpl implements TransactionOutbox, Validatable {
                           extracted.getParameters(),
                           extracted.getArgs(),
                           uniqueRequestId,
-                          topic);
-                  if (delayForAtLeast != null) {
+                          topic,
+                          priority,
+                          queue);
+                  if (delayForAtLeast == null) {
+                    reserveForPostCommit(entry);
+                  } else {
                     entry.setNextAttemptTime(entry.getNextAttemptTime().plus(delayForAtLeast));
                   }
                   validator.validate(entry);
@@ -397,16 +659,17 @@ final class TransactionOutboxImpl implements TransactionOutbox, Validatable {
                           () -> {
                             listener.scheduled(entry);
                             if (entry.getTopic() != null) {
-                              log.debug("Queued {} in topic {}", entry.description(), topic);
+                              if (delayForAtLeast == null && dispatchOrdered(entry)) {
+                                log.debug("Dispatched {} to ordered lane", entry.description());
+                              } else {
+                                log.debug("Queued {} in topic {}", entry.description(), topic);
+                              }
                             } else if (delayForAtLeast == null) {
-                              submitNow(entry);
+                              submitOrCoalesce(entry);
                               log.debug(
                                   "Scheduled {} for post-commit execution", entry.description());
                             } else if (delayForAtLeast.compareTo(attemptFrequency) < 0) {
-                              scheduler.schedule(
-                                  () -> submitNow(entry),
-                                  delayForAtLeast.toMillis(),
-                                  TimeUnit.MILLISECONDS);
+                              timingWheel.schedule(() -> submitNow(entry), delayForAtLeast);
                               log.info(
                                   "Scheduled {} for post-commit execution after at least {}",
                                   entry.description(),
@@ -422,55 +685,535 @@ final class TransactionOutboxImpl implements TransactionOutbox, Validatable {
                 }));
   }
 
+  /**
+   * Pushes back the first attempt time of an unordered entry which this instance will submit
+   * straight after commit by {@code postCommitGracePeriod}, so that other instances polling for
+   * work leave it alone unless this instance fails to process it.
+   */
+  private void reserveForPostCommit(TransactionOutboxEntry entry) {
+    if (postCommitGracePeriod != null && entry.getTopic() == null && subscribed(entry)) {
+      entry.setNextAttemptTime(entry.getNextAttemptTime().plus(postCommitGracePeriod));
+    }
+  }
+
   private void submitNow(TransactionOutboxEntry entry) {
-    submitter.submit(entry, this::processNow);
+    submitNow(List.of(entry));
+  }
+
+  /**
+   * Claims entries and hands them to the {@link Submitter}, in as few calls as possible so that it
+   * can enqueue them in bulk.
+   */
+  private void submitNow(List<TransactionOutboxEntry> entries) {
+    List<TransactionOutboxEntry> individual = new ArrayList<>(entries.size());
+    List<TransactionOutboxEntry> grouped = new ArrayList<>();
+    List<TransactionOutboxEntry> released = new ArrayList<>();
+    for (var entry : entries) {
+      if (!subscribed(entry)) {
+        continue;
+      }
+      if (shutdown.get()) {
+        log.debug("Shutting down. Leaving {} for another instance", entry.description());
+        releasePermit(entry);
+        released.add(entry);
+        continue;
+      }
+      if (!acquirePermit(entry)) {
+        continue;
+      }
+      claim(entry);
+      if (groupCommitSize > 1 && entry.getTopic() == null && !isNonTransactional(entry)) {
+        groupCommits.add(entry);
+        grouped.add(entry);
+      } else {
+        individual.add(entry);
+      }
+    }
+    if (!released.isEmpty()) {
+      release(released);
+    }
+    submit(grouped, it -> drainGroupCommits());
+    submit(individual, it -> runClaimed(List.of(it), owned -> process(it, false)));
+  }
+
+  private void submit(
+      List<TransactionOutboxEntry> entries, Consumer<TransactionOutboxEntry> localExecutor) {
+    if (entries.size() == 1) {
+      submitter.submit(entries.get(0), localExecutor);
+    } else if (!entries.isEmpty()) {
+      submitter.submitAll(entries, localExecutor);
+    }
+  }
+
+  /**
+   * Takes up to {@code groupCommitSize} queued entries and processes them together. One of these is
+   * submitted for each queued entry, so when workers are keeping up each processes a single entry,
+   * but when a backlog builds up the first to run takes a whole group and the rest find nothing to
+   * do.
+   */
+  private void drainGroupCommits() {
+    List<TransactionOutboxEntry> group = new ArrayList<>(groupCommitSize);
+    TransactionOutboxEntry entry;
+    while (group.size() < groupCommitSize && (entry = groupCommits.poll()) != null) {
+      group.add(entry);
+    }
+    if (group.isEmpty()) {
+      return;
+    }
+    runClaimed(
+        group,
+        owned -> {
+          if (owned.size() == 1) {
+            return process(owned.get(0), false);
+          }
+          processGroup(owned);
+          return COMPLETED;
+        });
+  }
+
+  /**
+   * Processes several unordered entries in a single transaction, with a savepoint around each so
+   * that failures are recorded individually, then deletes or updates them all at once. If the
+   * entries cannot all be locked, or the transaction fails, they are processed individually
+   * instead.
+   */
+  private void processGroup(List<TransactionOutboxEntry> entries) {
+    initialize();
+    try {
+      Runnable notifyListeners =
+          transactionManager.inTransactionReturnsThrows(
+              tx -> {
+                if (!persistor.lockBatch(tx, entries)) {
+                  return null;
+                }
+                log.debug("Processing {} tasks in a single transaction", entries.size());
+                return processBatchIsolated(entries, tx);
+              });
+      if (notifyListeners != null) {
+        notifyListeners.run();
+        return;
+      }
+      log.debug("Could not lock all of {} tasks. Processing individually", entries.size());
+    } catch (Exception e) {
+      log.warn("Failed to process {} tasks together. Processing individually", entries.size(), e);
+    }
+    entries.forEach(entry -> process(entry, false));
+  }
+
+  private boolean subscribed(TransactionOutboxEntry entry) {
+    if (queues != null && entry.getTopic() == null) {
+      var queue = Utils.firstNonNull(entry.getQueue(), () -> DEFAULT_QUEUE);
+      if (!queues.contains(queue)) {
+        log.debug("Leaving {} in queue {} for a subscribed instance", entry.description(), queue);
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void submitAll(Collection<TransactionOutboxEntry> entries) {
+    Map<BulkHandler, List<TransactionOutboxEntry>> groups = new LinkedHashMap<>();
+    List<TransactionOutboxEntry> individual = new ArrayList<>(entries.size());
+    for (var entry : entries) {
+      var handler = bulkHandler(entry);
+      if (handler.isPresent() && subscribed(entry)) {
+        groups.computeIfAbsent(handler.get(), k -> new ArrayList<>()).add(entry);
+      } else {
+        individual.add(entry);
+      }
+    }
+    submitNow(individual);
+    groups.forEach(
+        (handler, group) -> {
+          for (int i = 0; i < group.size(); i += handler.getMaxBatchSize()) {
+            submitCoalesced(
+                handler, group.subList(i, Math.min(group.size(), i + handler.getMaxBatchSize())));
+          }
+        });
+  }
+
+  private void submitOrCoalesce(TransactionOutboxEntry entry) {
+    if (!circuitAllows(entry) || !withinRateLimits(entry)) {
+      return;
+    }
+    var handler = coalesceWindow == null ? Optional.<BulkHandler>empty() : bulkHandler(entry);
+    if (handler.isEmpty() || !subscribed(entry) || shutdown.get()) {
+      submitNow(entry);
+      return;
+    }
+    List<TransactionOutboxEntry> ready = null;
+    synchronized (coalescing) {
+      var pending = coalescing.computeIfAbsent(handler.get(), k -> new ArrayList<>());
+      pending.add(entry);
+      if (pending.size() >= handler.get().getMaxBatchSize()) {
+        ready = coalescing.remove(handler.get());
+      } else if (pending.size() == 1) {
+        timingWheel.schedule(() -> releaseCoalesced(handler.get()), coalesceWindow);
+      }
+    }
+    log.debug("Holding {} for up to {} to coalesce", entry.description(), coalesceWindow);
+    if (ready != null) {
+      submitCoalesced(handler.get(), ready);
+    }
+  }
+
+  private void releaseCoalesced(BulkHandler handler) {
+    List<TransactionOutboxEntry> ready;
+    synchronized (coalescing) {
+      ready = coalescing.remove(handler);
+    }
+    if (ready != null) {
+      submitCoalesced(handler, ready);
+    }
+  }
+
+  private void submitCoalesced(BulkHandler handler, List<TransactionOutboxEntry> entries) {
+    if (entries.size() == 1) {
+      submitNow(entries.get(0));
+      return;
+    }
+    var group = List.copyOf(entries);
+    if (shutdown.get()) {
+      log.debug("Shutting down. Leaving {} tasks for another instance", group.size());
+      release(group);
+      return;
+    }
+    group.forEach(this::claim);
+    submitter.submit(
+        group.get(0),
+        first ->
+            runClaimed(
+                group,
+                owned -> {
+                  processCoalesced(handler, owned);
+                  return COMPLETED;
+                }));
+  }
+
+  private void processCoalesced(BulkHandler handler, List<TransactionOutboxEntry> entries) {
+    initialize();
+    List<TransactionOutboxEntry> locked = new ArrayList<>(entries.size());
+    try {
+      transactionManager.inTransactionThrows(
+          tx -> {
+            locked.clear();
+            for (var entry : entries) {
+              if (persistor.lock(tx, entry)) {
+                locked.add(entry);
+              } else {
+                log.debug("Skipped task {} - may be locked or already processed", entry.getId());
+              }
+            }
+            if (locked.isEmpty()) {
+              return;
+            }
+            log.info("Processing {} tasks with {}", locked.size(), handler.getMethod());
+            invokeCoalesced(handler, locked);
+            markExecutedBatchEntries(locked, tx);
+          });
+    } catch (InvocationTargetException e) {
+      locked.forEach(entry -> updateAttemptCount(entry, e.getCause()));
+      return;
+    } catch (Exception e) {
+      locked.forEach(entry -> updateAttemptCount(entry, e));
+      return;
+    }
+    for (var entry : locked) {
+      log.info("Processed {}", entry.description());
+      listener.success(entry);
+    }
+  }
+
+  private void invokeCoalesced(BulkHandler handler, List<TransactionOutboxEntry> entries)
+      throws Exception {
+    var first = entries.get(0).getInvocation();
+    Object instance = instantiator.getInstance(first.getClassName());
+    List<Object> args =
+        entries.stream()
+            .map(entry -> entry.getInvocation().getArgs()[0])
+            .collect(Collectors.toList());
+    first.withinMDC(
+        () -> {
+          listener.wrapInvocation(() -> handler.getMethod().invoke(instance, args));
+          return null;
+        });
+  }
+
+  private Optional<BulkHandler> bulkHandler(TransactionOutboxEntry entry) {
+    var invocation = entry.getInvocation();
+    if (entry.getTopic() != null || invocation instanceof FailedDeserializingInvocation) {
+      return Optional.empty();
+    }
+    return bulkHandlers.computeIfAbsent(methodKey(invocation), key -> findBulkHandler(invocation));
+  }
+
+  private static String methodKey(Invocation invocation) {
+    return invocation.getClassName()
+        + "#"
+        + invocation.getMethodName()
+        + Arrays.toString(invocation.getParameterTypes());
+  }
+
+  private Optional<BulkHandler> findBulkHandler(Invocation invocation) {
+    try {
+      Class<?> clazz = instantiator.getInstance(invocation.getClassName()).getClass();
+      Method method =
+          clazz.getDeclaredMethod(invocation.getMethodName(), invocation.getParameterTypes());
+      Batchable batchable = method.getAnnotation(Batchable.class);
+      if (batchable == null) {
+        return Optional.empty();
+      }
+      if (invocation.getParameterTypes().length != 1) {
+        log.warn("Ignoring @Batchable on {}, which does not take exactly one argument", method);
+        return Optional.empty();
+      }
+      Method bulkMethod = clazz.getDeclaredMethod(batchable.value(), List.class);
+      bulkMethod.setAccessible(true);
+      return Optional.of(new BulkHandler(bulkMethod, Math.max(1, batchable.maxBatchSize())));
+    } catch (Exception e) {
+      log.warn(
+          "Unable to resolve bulk method for {}.{}. Tasks will be processed individually",
+          invocation.getClassName(),
+          invocation.getMethodName(),
+          e);
+      return Optional.empty();
+    }
+  }
+
+  private boolean isNonTransactional(TransactionOutboxEntry entry) {
+    var invocation = entry.getInvocation();
+    if (entry.getTopic() != null || invocation instanceof FailedDeserializingInvocation) {
+      return false;
+    }
+    return nonTransactional.computeIfAbsent(
+        methodKey(invocation), key -> findNonTransactional(invocation));
+  }
+
+  private boolean findNonTransactional(Invocation invocation) {
+    try {
+      Method method =
+          instantiator
+              .getInstance(invocation.getClassName())
+              .getClass()
+              .getDeclaredMethod(invocation.getMethodName(), invocation.getParameterTypes());
+      if (!method.isAnnotationPresent(NonTransactional.class)
+          && !CompletionStage.class.isAssignableFrom(method.getReturnType())) {
+        return false;
+      }
+      for (Class<?> parameterType : invocation.getParameterTypes()) {
+        if (Transaction.class.isAssignableFrom(parameterType)
+            || parameterType.equals(TransactionContextPlaceholder.class)) {
+          log.warn("Processing {} within a transaction, since it takes a transaction", method);
+          return false;
+        }
+      }
+      return true;
+    } catch (Exception e) {
+      log.warn(
+          "Unable to resolve {}.{}. Tasks will be processed within a transaction",
+          invocation.getClassName(),
+          invocation.getMethodName(),
+          e);
+      return false;
+    }
   }
 
   @Override
   @SuppressWarnings("WeakerAccess")
   public void processNow(TransactionOutboxEntry entry) {
+    process(entry, false);
+  }
+
+  /**
+   * Processes an entry, retrying in-process on failure if configured. The returned stage completes
+   * once the outcome has been recorded, which for a handler returning a {@link CompletionStage} is
+   * after that stage completes. Failures of such handlers after they return are recorded straight
+   * away rather than retried in-process, since there is no worker thread to wait on.
+   */
+  private CompletionStage<Void> process(TransactionOutboxEntry entry, boolean requireTopicHead) {
     initialize();
-    Boolean success = null;
+    CompletableFuture<Boolean> outcome = null;
+    int quickRetry = 0;
+    while (outcome == null) {
+      try {
+        outcome = attempt(entry, requireTopicHead);
+      } catch (Exception e) {
+        Throwable cause = e instanceof InvocationTargetException ? e.getCause() : e;
+        if (quickRetry < quickRetries) {
+          try {
+            if (awaitQuickRetry(entry, ++quickRetry, cause)) {
+              continue;
+            }
+          } catch (OptimisticLockException ole) {
+            log.debug("{} was picked up elsewhere. Abandoning quick retries", entry.description());
+            return COMPLETED;
+          }
+        }
+        updateAttemptCount(entry, cause);
+        return COMPLETED;
+      }
+    }
+    BiFunction<Boolean, Throwable, Void> record =
+        (success, failure) -> {
+          if (failure != null) {
+            updateAttemptCount(entry, unwrap(failure));
+          } else if (success) {
+            log.info("Processed {}", entry.description());
+            listener.success(entry);
+          } else {
+            log.debug("Skipped task {} - may be locked or already processed", entry.getId());
+          }
+          return null;
+        };
+    if (outcome.isDone() && !outcome.isCompletedExceptionally()) {
+      record.apply(outcome.join(), null);
+      return COMPLETED;
+    }
+    return outcome.handleAsync(record);
+  }
+
+  private static Throwable unwrap(Throwable e) {
+    while ((e instanceof InvocationTargetException
+            || e instanceof CompletionException
+            || e instanceof UncheckedException)
+        && e.getCause() != null) {
+      e = e.getCause();
+    }
+    return e;
+  }
+
+  private CompletableFuture<Boolean> attempt(TransactionOutboxEntry entry, boolean requireTopicHead)
+      throws Exception {
+    if (isNonTransactional(entry)) {
+      return entry.getInvocation().withinMDC(() -> attemptOutsideTransaction(entry));
+    }
+    return CompletableFuture.completedFuture(
+        entry
+            .getInvocation()
+            .withinMDC(
+                () ->
+                    transactionManager.inTransactionReturnsThrows(
+                        tx -> {
+                          if (requireTopicHead && !isTopicHead(tx, entry)) {
+                            return false;
+                          }
+                          if (!persistor.lock(tx, entry)) {
+                            return false;
+                          }
+                          log.info("Processing {}", entry.description());
+                          invoke(entry, tx);
+                          complete(tx, entry);
+                          return true;
+                        })));
+  }
+
+  /**
+   * Processes an entry for a {@link NonTransactional} method: claims it under a lease in one
+   * transaction, invokes it with no transaction active and then completes it in another. If the
+   * lease expired while the method ran and another instance has since claimed the entry, the entry
+   * is left for that instance. If the method returns a {@link CompletionStage}, the entry is
+   * completed when the stage completes, without holding the calling thread.
+   */
+  private CompletableFuture<Boolean> attemptOutsideTransaction(TransactionOutboxEntry entry)
+      throws Exception {
+    boolean claimed =
+        transactionManager.inTransactionReturnsThrows(
+            tx -> {
+              if (!persistor.lock(tx, entry)) {
+                return false;
+              }
+              pushBack(tx, entry);
+              return true;
+            });
+    if (!claimed) {
+      return CompletableFuture.completedFuture(false);
+    }
+    log.info("Processing {} outside transaction", entry.description());
+    Object instance = instantiator.getInstance(entry.getInvocation().getClassName());
+    Object result = invokeWithTimeout(entry, entry.getInvocation(), instance);
+    if (result instanceof CompletionStage) {
+      log.debug("Awaiting completion of {}", entry.description());
+      return withTimeout(entry, (CompletionStage<?>) result)
+          .thenApplyAsync(
+              it ->
+                  uncheckedly(
+                      () ->
+                          entry
+                              .getInvocation()
+                              .withinMDC(() -> completeOutsideTransaction(entry))));
+    }
+    return CompletableFuture.completedFuture(completeOutsideTransaction(entry));
+  }
+
+  private boolean completeOutsideTransaction(TransactionOutboxEntry entry) throws Exception {
     try {
-      success =
-          entry
-              .getInvocation()
-              .withinMDC(
-                  () ->
-                      transactionManager.inTransactionReturnsThrows(
-                          tx -> {
-                            if (!persistor.lock(tx, entry)) {
-                              return false;
-                            }
-                            log.info("Processing {}", entry.description());
-                            invoke(entry, tx);
-                            if (entry.getUniqueRequestId() == null) {
-                              persistor.delete(tx, entry);
-                            } else {
-                              log.debug(
-                                  "Deferring deletion of {} by {}",
-                                  entry.description(),
-                                  retentionThreshold);
-                              entry.setProcessed(true);
-                              entry.setLastAttemptTime(Instant.now(clockProvider.get()));
-                              entry.setNextAttemptTime(after(retentionThreshold));
-                              persistor.update(tx, entry);
-                            }
-                            return true;
-                          }));
-    } catch (InvocationTargetException e) {
-      updateAttemptCount(entry, e.getCause());
-    } catch (Exception e) {
-      updateAttemptCount(entry, e);
+      transactionManager.inTransactionThrows(tx -> complete(tx, entry));
+    } catch (OptimisticLockException e) {
+      log.warn(
+          "Lease on {} expired before it was completed. It may be processed again",
+          entry.description());
+      return false;
     }
-    if (success != null) {
-      if (success) {
-        log.info("Processed {}", entry.description());
-        listener.success(entry);
-      } else {
-        log.debug("Skipped task {} - may be locked or already processed", entry.getId());
+    return true;
+  }
+
+  private void complete(Transaction tx, TransactionOutboxEntry entry) throws Exception {
+    if (entry.getUniqueRequestId() == null) {
+      persistor.delete(tx, entry);
+    } else {
+      log.debug("Deferring deletion of {} by {}", entry.description(), retentionThreshold);
+      entry.setProcessed(true);
+      entry.setLastAttemptTime(Instant.now(clockProvider.get()));
+      entry.setNextAttemptTime(after(retentionThreshold));
+      persistor.update(tx, entry);
+    }
+  }
+
+  /**
+   * Waits before re-attempting a failed entry in-process, without recording the failure. Before the
+   * first retry, the entry's next attempt time is pushed back past the whole retry window, plus
+   * {@link #attemptFrequency} for the final attempt, so that other instances leave it alone in the
+   * meantime. Returns false if interrupted, in which case the failure should be recorded as normal.
+   *
+   * @throws OptimisticLockException If the entry has been picked up elsewhere since it was locked.
+   */
+  private boolean awaitQuickRetry(TransactionOutboxEntry entry, int quickRetry, Throwable cause)
+      throws OptimisticLockException {
+    if (quickRetry == 1) {
+      long multiples = 0;
+      for (int i = 1; i <= quickRetries; i++) {
+        multiples += quickRetryDelayMultiple(i);
+      }
+      Duration lease = attemptFrequency.plus(quickRetryDelay.multipliedBy(multiples));
+      try {
+        transactionManager.inTransactionThrows(tx -> pushBack(tx, entry, lease));
+      } catch (OptimisticLockException e) {
+        throw e;
+      } catch (Exception e) {
+        log.warn("Failed to reserve {} for quick retries", entry.description(), e);
+        return false;
       }
     }
+    long delayMs = quickRetryDelay.toMillis() * quickRetryDelayMultiple(quickRetry);
+    log.debug(
+        "Quick retry {} of {} for {} in {}ms after failure: {}",
+        quickRetry,
+        quickRetries,
+        entry.description(),
+        delayMs,
+        cause.toString());
+    try {
+      Thread.sleep(delayMs);
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  /** The delay before a quick retry, as a multiple of {@link #quickRetryDelay}. */
+  private static long quickRetryDelayMultiple(int quickRetry) {
+    return 1L << Math.min(quickRetry - 1, 16);
   }
 
   @Override
@@ -483,8 +1226,9 @@ final class TransactionOutboxImpl implements TransactionOutbox, Validatable {
     try {
       transactionManager.inTransactionThrows(
           tx -> {
-            if (!persistor.lockBatch(tx, entries)) {
-              log.debug("Could not lock all entries in batch, skipping processing.");
+            List<TransactionOutboxEntry> locked = persistor.lockBatchPrefix(tx, entries);
+            if (locked.isEmpty()) {
+              log.debug("Could not lock any entries in batch, skipping processing.");
 
               // Apply exponential backoff with fixed exponent formula
               int failures = consecutiveFailures.incrementAndGet();
@@ -501,15 +1245,26 @@ final class TransactionOutboxImpl implements TransactionOutbox, Validatable {
 
             // Reset counter on success
             consecutiveFailures.set(0);
+            if (locked.size() < entries.size()) {
+              log.debug(
+                  "Locked {} of {} entries in batch, processing those in sequence",
+                  locked.size(),
+                  entries.size());
+            }
+
+            if (isolateBatchFailures) {
+              processBatchIsolated(locked, tx).run();
+              return;
+            }
 
             try {
-              invokeBatchEntries(entries, tx);
-              markExecutedBatchEntries(entries, tx);
-              notifyListeners(entries);
+              invokeBatchEntries(locked, tx);
+              markExecutedBatchEntries(locked, tx);
+              notifyListeners(locked);
             } catch (InvocationTargetException e) {
-              handleBatchInvocationException(entries, tx, e.getCause());
+              handleBatchInvocationException(locked, tx, e.getCause());
             } catch (Exception e) {
-              handleBatchInvocationException(entries, tx, e);
+              handleBatchInvocationException(locked, tx, e);
             }
           });
     } catch (Exception e) {
@@ -517,6 +1272,58 @@ final class TransactionOutboxImpl implements TransactionOutbox, Validatable {
     }
   }
 
+  /**
+   * Processes entries in the current transaction, with a savepoint around each so that a failure
+   * only rolls back that entry's work, and records the outcomes. Returns the notification of
+   * listeners, which the caller should run once the transaction has committed.
+   */
+  private Runnable processBatchIsolated(List<TransactionOutboxEntry> entries, Transaction tx)
+      throws Exception {
+    List<TransactionOutboxEntry> succeeded = new ArrayList<>(entries.size());
+    Map<TransactionOutboxEntry, Throwable> failed = new LinkedHashMap<>();
+    Set<String> stoppedTopics = new HashSet<>();
+    for (TransactionOutboxEntry entry : entries) {
+      if (stoppedTopics.contains(entry.getTopic())) {
+        log.debug("Leaving {} until earlier failure in topic is resolved", entry.description());
+        continue;
+      }
+      Savepoint savepoint = tx.connection().setSavepoint();
+      try {
+        log.trace("Processing item in batch: {}", entry.description());
+        invoke(entry, tx);
+        releaseSavepoint(tx, savepoint);
+        succeeded.add(entry);
+        log.trace("Processed item in batch: {}", entry.description());
+      } catch (Exception e) {
+        tx.connection().rollback(savepoint);
+        failed.put(entry, e instanceof InvocationTargetException ? e.getCause() : e);
+        if (entry.getTopic() != null) {
+          stoppedTopics.add(entry.getTopic());
+        }
+      }
+    }
+
+    markExecutedBatchEntries(succeeded, tx);
+    if (!failed.isEmpty()) {
+      List<TransactionOutboxEntry> failedEntries = new ArrayList<>(failed.keySet());
+      updateAttemptCountForBatch(failedEntries);
+      persistor.updateBatch(tx, failedEntries);
+    }
+
+    return () -> {
+      notifyListeners(succeeded);
+      failed.forEach((entry, cause) -> notifyListenersOfBatchFailure(List.of(entry), cause));
+    };
+  }
+
+  private void releaseSavepoint(Transaction tx, Savepoint savepoint) throws SQLException {
+    try {
+      tx.connection().releaseSavepoint(savepoint);
+    } catch (SQLFeatureNotSupportedException e) {
+      // Some databases (e.g. Oracle) release savepoints implicitly on commit
+    }
+  }
+
   private void notifyListeners(List<TransactionOutboxEntry> entries) {
     for (TransactionOutboxEntry entry : entries) {
       listener.success(entry);
@@ -580,9 +1387,109 @@ final class TransactionOutboxImpl implements TransactionOutbox, Validatable {
       throws NoSuchMethodException, IllegalAccessException, InvocationTargetException {
     Object instance = instantiator.getInstance(entry.getInvocation().getClassName());
     log.trace("Created instance {}", instance);
-    transactionManager
-        .injectTransaction(entry.getInvocation(), transaction)
-        .invoke(instance, listener);
+    Invocation invocation =
+        transactionManager.injectTransaction(entry.getInvocation(), transaction);
+    Object result = invokeWithTimeout(entry, invocation, instance);
+    if (result instanceof CompletionStage) {
+      awaitInTransaction(entry, (CompletionStage<?>) result);
+    }
+  }
+
+  /**
+   * Waits for a {@link CompletionStage} returned by a handler which is being processed within a
+   * transaction, so that the entry is not completed before the handler's work is done.
+   */
+  private void awaitInTransaction(TransactionOutboxEntry entry, CompletionStage<?> stage)
+      throws InvocationTargetException {
+    try {
+      toFuture(stage).get(asyncTimeout(entry).toMillis(), TimeUnit.MILLISECONDS);
+    } catch (ExecutionException e) {
+      throw new InvocationTargetException(unwrap(e.getCause()));
+    } catch (TimeoutException e) {
+      throw new InvocationTargetException(timedOut(entry, asyncTimeout(entry)));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InvocationTargetException(e);
+    }
+  }
+
+  /**
+   * Bridges a {@link CompletionStage} returned by a handler to a future which fails with a {@link
+   * TimeoutException} if the stage does not complete within the handler's timeout. The stage itself
+   * is left alone, since it may not be ours to cancel.
+   */
+  private CompletableFuture<Object> withTimeout(
+      TransactionOutboxEntry entry, CompletionStage<?> stage) {
+    CompletableFuture<Object> future = toFuture(stage);
+    Duration timeout = asyncTimeout(entry);
+    var timer =
+        timingWheel.schedule(() -> future.completeExceptionally(timedOut(entry, timeout)), timeout);
+    future.whenComplete((result, failure) -> timer.cancel());
+    return future;
+  }
+
+  private static CompletableFuture<Object> toFuture(CompletionStage<?> stage) {
+    CompletableFuture<Object> future = new CompletableFuture<>();
+    stage.whenComplete(
+        (result, failure) -> {
+          if (failure == null) {
+            future.complete(result);
+          } else {
+            future.completeExceptionally(failure);
+          }
+        });
+    return future;
+  }
+
+  private static TimeoutException timedOut(TransactionOutboxEntry entry, Duration timeout) {
+    return new TimeoutException(
+        "Task " + entry.description() + " did not complete within " + timeout);
+  }
+
+  private Duration asyncTimeout(TransactionOutboxEntry entry) {
+    return Utils.firstNonNull(
+        handlerTimeout(entry.getInvocation()),
+        () -> asyncHandlerTimeout == null ? attemptFrequency : asyncHandlerTimeout);
+  }
+
+  private Duration handlerTimeout(Invocation invocation) {
+    var name = limitKey(handlerTimeouts, invocation);
+    return name == null ? handlerTimeout : handlerTimeouts.get(name);
+  }
+
+  /**
+   * Invokes a handler, interrupting it if it runs for longer than its configured timeout. If the
+   * timeout expires, the attempt fails with a {@link TimeoutException} whatever the handler does in
+   * response to the interrupt, so that any transaction is rolled back and the failure recorded. A
+   * handler which ignores the interrupt still holds its thread until it returns.
+   */
+  private Object invokeWithTimeout(
+      TransactionOutboxEntry entry, Invocation invocation, Object instance)
+      throws NoSuchMethodException, IllegalAccessException, InvocationTargetException {
+    Duration timeout = handlerTimeout(invocation);
+    if (timeout == null) {
+      return invocation.invoke(instance, listener);
+    }
+    Watchdog watchdog = new Watchdog(Thread.currentThread());
+    var timer = timingWheel.schedule(watchdog::expire, timeout);
+    Object result;
+    try {
+      result = invocation.invoke(instance, listener);
+    } catch (InvocationTargetException e) {
+      if (watchdog.finish()) {
+        throw new InvocationTargetException(timedOut(entry, timeout));
+      }
+      throw e;
+    } catch (Exception e) {
+      watchdog.finish();
+      throw e;
+    } finally {
+      timer.cancel();
+    }
+    if (watchdog.finish()) {
+      throw new InvocationTargetException(timedOut(entry, timeout));
+    }
+    return result;
   }
 
   private TransactionOutboxEntry newEntry(
@@ -591,7 +1498,9 @@ final class TransactionOutboxImpl implements TransactionOutbox, Validatable {
       Class<?>[] params,
       Object[] args,
       String uniqueRequestId,
-      String topic) {
+      String topic,
+      int priority,
+      String queue) {
     return TransactionOutboxEntry.builder()
         .id(UUID.randomUUID().toString())
         .invocation(
@@ -605,6 +1514,8 @@ final class TransactionOutboxImpl implements TransactionOutbox, Validatable {
         .nextAttemptTime(clockProvider.get().instant())
         .uniqueRequestId(uniqueRequestId)
         .topic(topic)
+        .priority(priority)
+        .queue(queue)
         .build();
   }
 
@@ -631,14 +1542,21 @@ final class TransactionOutboxImpl implements TransactionOutbox, Validatable {
         .nextAttemptTime(clockProvider.get().instant())
         .uniqueRequestId(cmd.getUniqueRequestId())
         .topic(topic)
+        .priority(cmd.getPriority())
+        .queue(cmd.getQueue())
         .build();
   }
 
   private void pushBack(Transaction transaction, TransactionOutboxEntry entry)
       throws OptimisticLockException {
+    pushBack(transaction, entry, attemptFrequency);
+  }
+
+  private void pushBack(Transaction transaction, TransactionOutboxEntry entry, Duration delay)
+      throws OptimisticLockException {
     try {
       entry.setLastAttemptTime(clockProvider.get().instant());
-      entry.setNextAttemptTime(after(attemptFrequency));
+      entry.setNextAttemptTime(after(delay));
       validator.validate(entry);
       persistor.update(transaction, entry);
     } catch (OptimisticLockException e) {
@@ -655,17 +1573,12 @@ final class TransactionOutboxImpl implements TransactionOutbox, Validatable {
   private void updateAttemptCount(TransactionOutboxEntry entry, Throwable cause) {
     try {
       entry.setAttempts(entry.getAttempts() + 1);
-      var blocked = (entry.getTopic() == null) && (entry.getAttempts() >= blockAfterAttempts);
+      var blocked = isEntryBlocked(entry);
       entry.setBlocked(blocked);
       transactionManager.inTransactionThrows(tx -> pushBack(tx, entry));
       listener.failure(entry, cause);
       if (blocked) {
-        log.error(
-            "Blocking failing entry {} after {} attempts: {}",
-            entry.getId(),
-            entry.getAttempts(),
-            entry.description(),
-            cause);
+        logBlocked(entry, cause);
         listener.blocked(entry, cause);
       } else {
         logAtLevel(
@@ -688,6 +1601,8 @@ final class TransactionOutboxImpl implements TransactionOutbox, Validatable {
     for (TransactionOutboxEntry entry : entries) {
       entry.setAttempts(entry.getAttempts() + 1);
       entry.setBlocked(isEntryBlocked(entry));
+      entry.setLastAttemptTime(clockProvider.get().instant());
+      entry.setNextAttemptTime(after(attemptFrequency));
     }
   }
 
@@ -697,12 +1612,7 @@ final class TransactionOutboxImpl implements TransactionOutbox, Validatable {
       try {
         listener.failure(entry, cause);
         if (isEntryBlocked(entry)) {
-          log.error(
-              "Blocking failing entry {} after {} attempts: {}",
-              entry.getId(),
-              entry.getAttempts(),
-              entry.description(),
-              cause);
+          logBlocked(entry, cause);
           listener.blocked(entry, cause);
         } else {
           logAtLevel(
@@ -720,7 +1630,293 @@ final class TransactionOutboxImpl implements TransactionOutbox, Validatable {
   }
 
   private boolean isEntryBlocked(TransactionOutboxEntry entry) {
-    return entry.getTopic() == null && entry.getAttempts() >= blockAfterAttempts;
+    if (entry.getTopic() == null) {
+      return entry.getAttempts() >= blockAfterAttempts;
+    }
+    return parkTopicsAfterAttempts > 0 && entry.getAttempts() >= parkTopicsAfterAttempts;
+  }
+
+  private void logBlocked(TransactionOutboxEntry entry, Throwable cause) {
+    if (entry.getTopic() == null) {
+      log.error(
+          "Blocking failing entry {} after {} attempts: {}",
+          entry.getId(),
+          entry.getAttempts(),
+          entry.description(),
+          cause);
+    } else {
+      log.error(
+          "Parking topic {} behind failing entry {} after {} attempts: {}",
+          entry.getTopic(),
+          entry.getId(),
+          entry.getAttempts(),
+          entry.description(),
+          cause);
+    }
+  }
+
+  private boolean dispatchOrdered(TransactionOutboxEntry entry) {
+    if (orderedLanes.length == 0 || shutdown.get() || !acquirePermit(entry)) {
+      return false;
+    }
+    if (!circuitAllows(entry) || !withinRateLimits(entry)) {
+      releasePermit(entry);
+      return false;
+    }
+    var lane = orderedLanes[Math.floorMod(entry.getTopic().hashCode(), orderedLanes.length)];
+    claim(entry);
+    try {
+      lane.execute(() -> runClaimed(List.of(entry), owned -> process(entry, true)));
+      return true;
+    } catch (RejectedExecutionException e) {
+      claimed.remove(entry.getId());
+      releasePermit(entry);
+      log.debug("Ordered lane saturated. {} will be picked up by flush", entry.description());
+      return false;
+    }
+  }
+
+  /**
+   * Records that an entry has been handed to a local worker, so that {@link #flush()} leaves it
+   * alone and {@link #shutdown(Duration)} can release it if it never starts. The claim lapses after
+   * {@link #attemptFrequency}, in case the worker never runs it.
+   */
+  private void claim(TransactionOutboxEntry entry) {
+    claimed.put(entry.getId(), new Claim(entry, after(attemptFrequency)));
+  }
+
+  /**
+   * Runs work for entries previously claimed for local processing, skipping any which have been
+   * released by {@link #shutdown(Duration)} in the meantime.
+   */
+  private void runClaimed(
+      List<TransactionOutboxEntry> entries,
+      Function<List<TransactionOutboxEntry>, CompletionStage<Void>> work) {
+    inFlight.incrementAndGet();
+    CompletionStage<Void> done = null;
+    try {
+      List<TransactionOutboxEntry> owned = new ArrayList<>(entries.size());
+      for (var entry : entries) {
+        if (claimed.remove(entry.getId()) != null) {
+          owned.add(entry);
+        } else {
+          log.debug("Skipping {}, released for another instance", entry.description());
+        }
+      }
+      if (!owned.isEmpty()) {
+        done = work.apply(owned);
+      }
+    } finally {
+      if (done == null) {
+        finishClaimed(entries);
+      } else {
+        done.whenComplete((result, failure) -> finishClaimed(entries));
+      }
+    }
+  }
+
+  private void finishClaimed(List<TransactionOutboxEntry> entries) {
+    entries.forEach(this::releasePermit);
+    inFlight.decrementAndGet();
+  }
+
+  /**
+   * Takes a permit from the {@link Bulkhead} for the entry's handler, if there is one and the entry
+   * does not already hold a permit. If the handler is at its concurrency limit, the entry is left
+   * unclaimed for a later {@link #flush()}.
+   */
+  private boolean acquirePermit(TransactionOutboxEntry entry) {
+    if (concurrencyLimits == null || permits.containsKey(entry.getId())) {
+      return true;
+    }
+    var bulkhead = bulkhead(entry.getInvocation());
+    if (bulkhead == null) {
+      return true;
+    }
+    if (!bulkhead.tryAcquire()) {
+      log.debug(
+          "{} is at its concurrency limit of {}. Deferring {}",
+          bulkhead.getName(),
+          bulkhead.getLimit(),
+          entry.description());
+      return false;
+    }
+    permits.put(entry.getId(), bulkhead);
+    return true;
+  }
+
+  private boolean circuitAllows(TransactionOutboxEntry entry) {
+    if (circuitBreakers == null || circuitBreakers.allows(entry)) {
+      return true;
+    }
+    log.debug("Circuit breaker open. Deferring {}", entry.description());
+    return false;
+  }
+
+  private void releasePermit(TransactionOutboxEntry entry) {
+    if (concurrencyLimits == null) {
+      return;
+    }
+    var bulkhead = permits.remove(entry.getId());
+    if (bulkhead != null) {
+      bulkhead.release();
+    }
+  }
+
+  private Bulkhead bulkhead(Invocation invocation) {
+    var name = limitKey(concurrencyLimits, invocation);
+    if (name == null) {
+      return null;
+    }
+    int max = concurrencyLimits.get(name);
+    return bulkheads.computeIfAbsent(name, it -> new Bulkhead(it, max));
+  }
+
+  /**
+   * Takes a token from the rate limiters for the entry's handler and topic, if any. If either is
+   * exhausted, the entry is left unclaimed for a later {@link #flush()}.
+   */
+  private boolean withinRateLimits(TransactionOutboxEntry entry) {
+    var name = limitKey(rateLimits, entry.getInvocation());
+    var handlerLimiter =
+        name == null
+            ? null
+            : rateLimiters.computeIfAbsent(name, it -> new TokenBucket(rateLimits.get(it)));
+    if (handlerLimiter != null && !handlerLimiter.tryAcquire()) {
+      log.debug("Rate limit reached for {}. Deferring {}", name, entry.description());
+      return false;
+    }
+    var topic = entry.getTopic();
+    var topicLimiter =
+        topic == null || topicRateLimits == null || !topicRateLimits.containsKey(topic)
+            ? null
+            : topicRateLimiters.computeIfAbsent(
+                topic, it -> new TokenBucket(topicRateLimits.get(it)));
+    if (topicLimiter != null && !topicLimiter.tryAcquire()) {
+      if (handlerLimiter != null) {
+        handlerLimiter.refund();
+      }
+      log.debug("Rate limit reached for topic {}. Deferring {}", topic, entry.description());
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Finds the key for the entry's handler in a map of per-handler limits, preferring a key for the
+   * method over a key for the class.
+   */
+  private static String limitKey(Map<String, ?> limits, Invocation invocation) {
+    if (limits == null || invocation == null) {
+      return null;
+    }
+    var name = invocation.getClassName() + "." + invocation.getMethodName();
+    if (limits.containsKey(name)) {
+      return name;
+    }
+    name = invocation.getClassName();
+    return limits.containsKey(name) ? name : null;
+  }
+
+  /**
+   * Makes entries which were claimed for processing by this instance but not started available to
+   * other instances immediately, rather than after {@link #attemptFrequency}.
+   */
+  private int release(Collection<TransactionOutboxEntry> entries) {
+    Instant now = clockProvider.get().instant().truncatedTo(MILLIS);
+    int released = 0;
+    for (var entry : entries) {
+      if (!entry.getNextAttemptTime().isAfter(now)) {
+        continue;
+      }
+      try {
+        entry.setNextAttemptTime(now);
+        transactionManager.inTransactionThrows(tx -> persistor.update(tx, entry));
+        released++;
+      } catch (OptimisticLockException e) {
+        log.debug("{} has already been picked up elsewhere", entry.description());
+      } catch (Exception e) {
+        log.warn("Failed to release {}. It will be retried later", entry.description(), e);
+      }
+    }
+    return released;
+  }
+
+  private boolean isTopicHead(Transaction tx, TransactionOutboxEntry entry) throws Exception {
+    var heads =
+        persistor.selectNextInSelectedTopics(
+            tx, List.of(entry.getTopic()), 1, clockProvider.get().instant().plusMillis(1));
+    if (heads.stream().anyMatch(head -> head.getId().equals(entry.getId()))) {
+      return true;
+    }
+    log.debug("{} is not at the head of its topic. Leaving for flush", entry.description());
+    return false;
+  }
+
+  private List<TransactionOutboxEntry> selectBatch(Transaction tx, Instant now) throws Exception {
+    if (queues == null) {
+      return persistor.selectBatch(tx, flushBatchSize, now);
+    }
+    return persistor.selectBatchInQueues(tx, queues, flushBatchSize, now);
+  }
+
+  /**
+   * Selects the next batch of entries in the topics owned by this node, given the live nodes
+   * returned by {@link #renewNodeLease(Instant)}, or in all topics if topics are not shared out.
+   */
+  private Collection<TransactionOutboxEntry> selectNextBatchInOwnedTopics(
+      Transaction tx, Instant now, List<String> nodes) throws Exception {
+    if (nodes == null) {
+      return persistor.selectNextBatchInTopics(tx, flushBatchSize, now);
+    }
+    int nodeIndex = nodes.indexOf(nodeId);
+    if (nodeIndex < 0) {
+      log.debug("Node {} does not hold a lease. Skipping ordered batches", nodeId);
+      return List.of();
+    }
+    log.debug("Node {} owns topic share {} of {}", nodeId, nodeIndex + 1, nodes.size());
+    return persistor.selectNextBatchInOwnedTopics(tx, flushBatchSize, now, nodeIndex, nodes.size());
+  }
+
+  /**
+   * Renews this node's lease, if due, in its own transaction. Must not be called from within
+   * another transaction, since that would need a second connection at the same time.
+   */
+  private List<String> renewNodeLease(Instant now) {
+    if (now.isBefore(nodeLeaseRenewalDue)) {
+      return liveNodes;
+    }
+    try {
+      liveNodes =
+          transactionManager.inTransactionReturnsThrows(
+              tx -> persistor.renewNodeLease(tx, nodeId, now.plus(topicLeaseDuration), now));
+      nodeLeaseRenewalDue = now.plus(topicLeaseDuration.dividedBy(3));
+      log.debug("Renewed lease for node {}. {} live nodes", nodeId, liveNodes.size());
+    } catch (Exception e) {
+      log.warn("Failed to renew lease for node {}. Will retry on next flush", nodeId, e);
+      liveNodes = List.of();
+    }
+    return liveNodes;
+  }
+
+  private static ExecutorService[] createOrderedLanes(int count) {
+    var lanes = new ExecutorService[Math.max(0, count)];
+    for (int i = 0; i < lanes.length; i++) {
+      String name = "TransactionOutbox-OrderedLane-" + i;
+      lanes[i] =
+          new ThreadPoolExecutor(
+              1,
+              1,
+              0L,
+              TimeUnit.MILLISECONDS,
+              new ArrayBlockingQueue<>(4096),
+              runnable -> {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+              });
+    }
+    return lanes;
   }
 
   @ToString
@@ -732,6 +1928,16 @@ final class TransactionOutboxImpl implements TransactionOutbox, Validatable {
 
     public TransactionOutboxImpl build() {
       Validator validator = new Validator(this.clockProvider);
+      Supplier<Clock> clock = clockProvider == null ? Clock::systemDefaultZone : clockProvider;
+      TransactionOutboxListener baseListener =
+          Utils.firstNonNull(listener, () -> TransactionOutboxListener.EMPTY);
+      CircuitBreakers circuitBreakers =
+          circuitBreakerThreshold == 0
+              ? null
+              : new CircuitBreakers(
+                  circuitBreakerThreshold,
+                  Utils.firstNonNull(circuitBreakerOpenDuration, () -> Duration.ofSeconds(30)),
+                  clock);
       TransactionOutboxImpl impl =
           new TransactionOutboxImpl(
               transactionManager,
@@ -742,14 +1948,32 @@ final class TransactionOutboxImpl implements TransactionOutbox, Validatable {
               Utils.firstNonNull(logLevelTemporaryFailure, () -> Level.WARN),
               blockAfterAttempts < 1 ? 5 : blockAfterAttempts,
               flushBatchSize < 1 ? 4096 : flushBatchSize,
-              clockProvider == null ? Clock::systemDefaultZone : clockProvider,
-              Utils.firstNonNull(listener, () -> TransactionOutboxListener.EMPTY),
+              clock,
+              circuitBreakers == null ? baseListener : baseListener.andThen(circuitBreakers),
               serializeMdc == null || serializeMdc,
               validator,
               retentionThreshold == null ? Duration.ofDays(7) : retentionThreshold,
               this.useOrderedBatchProcessing != null && this.useOrderedBatchProcessing,
               this.batchLockBackoffSeedMs <= 0 ? 1000 : this.batchLockBackoffSeedMs,
-              this.batchLockBackoffMaxMs <= 0 ? 60000 : this.batchLockBackoffMaxMs);
+              this.batchLockBackoffMaxMs <= 0 ? 60000 : this.batchLockBackoffMaxMs,
+              createOrderedLanes(orderedDispatchLanes),
+              topicLeaseDuration,
+              queues == null ? null : Set.copyOf(queues),
+              coalesceWindow,
+              isolateBatchFailures != null && isolateBatchFailures,
+              parkTopicsAfterAttempts,
+              quickRetries,
+              Utils.firstNonNull(quickRetryDelay, () -> Duration.ofMillis(100)),
+              preloadHorizon,
+              concurrencyLimits == null ? null : Map.copyOf(concurrencyLimits),
+              circuitBreakers,
+              rateLimits == null ? null : Map.copyOf(rateLimits),
+              topicRateLimits == null ? null : Map.copyOf(topicRateLimits),
+              asyncHandlerTimeout,
+              handlerTimeout,
+              handlerTimeouts == null ? null : Map.copyOf(handlerTimeouts),
+              groupCommitSize,
+              postCommitGracePeriod);
       validator.validate(impl);
       if (initializeImmediately == null || initializeImmediately) {
         impl.initialize();
@@ -765,13 +1989,116 @@ final class TransactionOutboxImpl implements TransactionOutbox, Validatable {
     private String uniqueRequestId;
     private String ordered;
     private Duration delayForAtLeast;
+    private int priority;
+    private String queue;
 
     @Override
     public <T> T schedule(Class<T> clazz) {
       if (uniqueRequestId != null && uniqueRequestId.length() > 250) {
         throw new IllegalArgumentException("uniqueRequestId may be up to 250 characters");
       }
-      return TransactionOutboxImpl.this.schedule(clazz, uniqueRequestId, ordered, delayForAtLeast);
+      if (queue != null && queue.length() > 250) {
+        throw new IllegalArgumentException("queue may be up to 250 characters");
+      }
+      return TransactionOutboxImpl.this.schedule(
+          clazz, uniqueRequestId, ordered, delayForAtLeast, priority, queue);
+    }
+  }
+
+  @Value
+  private static class Claim {
+    TransactionOutboxEntry entry;
+    Instant expires;
+  }
+
+  @Value
+  private static class BulkHandler {
+    Method method;
+    int maxBatchSize;
+  }
+
+  /**
+   * Interrupts a thread running a handler once its timeout expires, unless the handler has already
+   * finished. Synchronized so that an interrupt is never delivered after {@link #finish()}, where
+   * it would leak into whatever the thread runs next.
+   */
+  @RequiredArgsConstructor
+  private static final class Watchdog {
+    private final Thread thread;
+    private boolean finished;
+    private boolean expired;
+
+    synchronized void expire() {
+      if (!finished) {
+        expired = true;
+        thread.interrupt();
+      }
+    }
+
+    /**
+     * @return True if the timeout expired, in which case the interrupt is cleared.
+     */
+    synchronized boolean finish() {
+      finished = true;
+      if (expired) {
+        Thread.interrupted();
+      }
+      return expired;
+    }
+  }
+
+  /** Limits the number of tasks for a handler which may be claimed or running at once. */
+  @RequiredArgsConstructor
+  private static final class Bulkhead {
+    @Getter private final String name;
+    @Getter private final int limit;
+    private final AtomicInteger active = new AtomicInteger();
+
+    boolean tryAcquire() {
+      int current;
+      do {
+        current = active.get();
+        if (current >= limit) {
+          return false;
+        }
+      } while (!active.compareAndSet(current, current + 1));
+      return true;
+    }
+
+    void release() {
+      active.decrementAndGet();
+    }
+  }
+
+  /**
+   * Allows tasks through at an average rate, with bursts of up to a second's worth of tasks (or a
+   * single task, for rates below one per second).
+   */
+  private static final class TokenBucket {
+    private final double ratePerNano;
+    private final double capacity;
+    private double tokens;
+    private long refilledAt = System.nanoTime();
+
+    TokenBucket(double ratePerSecond) {
+      this.ratePerNano = ratePerSecond / TimeUnit.SECONDS.toNanos(1);
+      this.capacity = Math.max(1, ratePerSecond);
+      this.tokens = capacity;
+    }
+
+    synchronized boolean tryAcquire() {
+      long now = System.nanoTime();
+      tokens = Math.min(capacity, tokens + (now - refilledAt) * ratePerNano);
+      refilledAt = now;
+      if (tokens < 1) {
+        return false;
+      }
+      tokens--;
+      return true;
+    }
+
+    synchronized void refund() {
+      tokens = Math.min(capacity, tokens + 1);
     }
   }
 }
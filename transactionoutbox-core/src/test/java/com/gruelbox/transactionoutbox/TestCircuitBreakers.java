@@ -0,0 +1,65 @@
+package com.gruelbox.transactionoutbox;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.jupiter.api.Test;
+
+class TestCircuitBreakers {
+
+  private final AtomicReference<Clock> clock =
+      new AtomicReference<>(Clock.fixed(Instant.parse("2026-01-01T00:00:00Z"), ZoneOffset.UTC));
+  private final CircuitBreakers breakers =
+      new CircuitBreakers(2, Duration.ofSeconds(10), clock::get);
+
+  @Test
+  void opensAfterConsecutiveFailuresAndProbesOnce() {
+    var failure = new RuntimeException("Down");
+    breakers.failure(createEntry("charge"), failure);
+    assertThat(breakers.allows(createEntry("charge")), is(true));
+    breakers.failure(createEntry("charge"), failure);
+    assertThat(breakers.allows(createEntry("charge")), is(false));
+    assertThat(breakers.allows(createEntry("refund")), is(true));
+
+    advance(Duration.ofSeconds(10));
+    assertThat(breakers.allows(createEntry("charge")), is(true));
+    assertThat(breakers.allows(createEntry("charge")), is(false));
+
+    breakers.failure(createEntry("charge"), failure);
+    advance(Duration.ofSeconds(5));
+    assertThat(breakers.allows(createEntry("charge")), is(false));
+
+    advance(Duration.ofSeconds(5));
+    assertThat(breakers.allows(createEntry("charge")), is(true));
+    breakers.success(createEntry("charge"));
+    assertThat(breakers.allows(createEntry("charge")), is(true));
+    assertThat(breakers.allows(createEntry("charge")), is(true));
+  }
+
+  @Test
+  void successResetsFailureCount() {
+    var failure = new RuntimeException("Down");
+    breakers.failure(createEntry("charge"), failure);
+    breakers.success(createEntry("charge"));
+    breakers.failure(createEntry("charge"), failure);
+    assertThat(breakers.allows(createEntry("charge")), is(true));
+  }
+
+  private void advance(Duration duration) {
+    clock.set(Clock.offset(clock.get(), duration));
+  }
+
+  private TransactionOutboxEntry createEntry(String method) {
+    return TransactionOutboxEntry.builder()
+        .id(UUID.randomUUID().toString())
+        .invocation(new Invocation("PaymentService", method, new Class<?>[0], new Object[0]))
+        .nextAttemptTime(Instant.now())
+        .build();
+  }
+}
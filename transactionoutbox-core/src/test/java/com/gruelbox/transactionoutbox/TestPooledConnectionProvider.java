@@ -0,0 +1,134 @@
+package com.gruelbox.transactionoutbox;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.sql.Connection;
+import java.time.Duration;
+import org.junit.jupiter.api.Test;
+
+class TestPooledConnectionProvider {
+
+  @Test
+  void reusesPhysicalConnections() throws Exception {
+    try (PooledConnectionProvider provider = provider(2, Duration.ofMinutes(1))) {
+      Connection physical;
+      try (Connection connection = provider.obtainConnection()) {
+        physical = connection.unwrap(Connection.class);
+        assertThat(provider.activeConnections(), is(1));
+      }
+      assertThat(provider.activeConnections(), is(0));
+      assertThat(provider.idleConnections(), is(1));
+      try (Connection connection = provider.obtainConnection()) {
+        assertThat(connection.unwrap(Connection.class), sameInstance(physical));
+      }
+    }
+  }
+
+  @Test
+  void timesOutWhenExhausted() throws Exception {
+    try (PooledConnectionProvider provider = provider(1, Duration.ofMinutes(1))) {
+      try (Connection ignored = provider.obtainConnection()) {
+        assertThrows(UncheckedException.class, provider::obtainConnection);
+      }
+      try (Connection connection = provider.obtainConnection()) {
+        assertThat(connection.isClosed(), is(false));
+      }
+    }
+  }
+
+  @Test
+  void evictsIdleConnections() throws Exception {
+    try (PooledConnectionProvider provider = provider(2, Duration.ofMillis(5))) {
+      Connection first = provider.obtainConnection();
+      Connection second = provider.obtainConnection();
+      Connection physical = first.unwrap(Connection.class);
+      first.close();
+      Thread.sleep(50);
+      second.close();
+      assertThat(provider.idleConnections(), is(1));
+      assertThat(physical.isClosed(), is(true));
+    }
+  }
+
+  @Test
+  void rollsBackAbandonedTransactions() throws Exception {
+    try (PooledConnectionProvider provider = provider(1, Duration.ofMinutes(1));
+        Connection setup = provider.obtainConnection()) {
+      setup.createStatement().execute("CREATE TABLE IF NOT EXISTS POOL_TEST (id INT)");
+      setup.createStatement().execute("DELETE FROM POOL_TEST");
+    }
+    try (PooledConnectionProvider provider = provider(1, Duration.ofMinutes(1))) {
+      try (Connection connection = provider.obtainConnection()) {
+        connection.setAutoCommit(false);
+        connection.createStatement().execute("INSERT INTO POOL_TEST VALUES (1)");
+      }
+      try (Connection connection = provider.obtainConnection();
+          var rs = connection.createStatement().executeQuery("SELECT COUNT(*) FROM POOL_TEST")) {
+        assertThat(connection.getAutoCommit(), is(true));
+        rs.next();
+        assertThat(rs.getInt(1), is(0));
+      }
+    }
+  }
+
+  @Test
+  void returnedConnectionsCannotBeUsed() throws Exception {
+    try (PooledConnectionProvider provider = provider(1, Duration.ofMinutes(1))) {
+      Connection connection = provider.obtainConnection();
+      connection.close();
+      assertThat(connection.isClosed(), is(true));
+      assertThrows(Exception.class, connection::createStatement);
+    }
+  }
+
+  @Test
+  void discardsInvalidConnectionsIdleBeyondThreshold() throws Exception {
+    try (PooledConnectionProvider provider =
+        PooledConnectionProvider.builder()
+            .driverClassName("org.h2.Driver")
+            .url("jdbc:h2:mem:pooltest;DB_CLOSE_DELAY=-1;MV_STORE=TRUE")
+            .user("test")
+            .password("test")
+            .validationIdleThreshold(Duration.ofMillis(5))
+            .build()) {
+      Connection physical;
+      try (Connection connection = provider.obtainConnection()) {
+        physical = connection.unwrap(Connection.class);
+      }
+      physical.close();
+      Thread.sleep(50);
+      try (Connection connection = provider.obtainConnection()) {
+        assertThat(connection.unwrap(Connection.class), not(sameInstance(physical)));
+        assertThat(connection.isValid(1), is(true));
+      }
+    }
+  }
+
+  @Test
+  void rejectsInvalidConfiguration() {
+    assertThrows(
+        IllegalArgumentException.class,
+        () ->
+            PooledConnectionProvider.builder()
+                .driverClassName("org.h2.Driver")
+                .url("jdbc:h2:mem:pooltest;DB_CLOSE_DELAY=-1;MV_STORE=TRUE")
+                .user("test")
+                .password("test")
+                .maxPoolSize(0)
+                .build());
+  }
+
+  private PooledConnectionProvider provider(int maxPoolSize, Duration idleTimeout) {
+    return PooledConnectionProvider.builder()
+        .driverClassName("org.h2.Driver")
+        .url("jdbc:h2:mem:pooltest;DB_CLOSE_DELAY=-1;MV_STORE=TRUE")
+        .user("test")
+        .password("test")
+        .maxPoolSize(maxPoolSize)
+        .connectionTimeout(Duration.ofMillis(100))
+        .idleTimeout(idleTimeout)
+        .build();
+  }
+}
@@ -0,0 +1,187 @@
+package com.gruelbox.transactionoutbox;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.junit.jupiter.api.Test;
+
+class TestRingBufferSubmitter {
+
+  @Test
+  void processesEverythingSubmittedFromManyThreads() throws Exception {
+    int producers = 4;
+    int perProducer = 5000;
+    Set<String> processed = ConcurrentHashMap.newKeySet();
+    CountDownLatch done = new CountDownLatch(producers * perProducer);
+    Consumer<TransactionOutboxEntry> executor =
+        entry -> {
+          processed.add(entry.getId());
+          done.countDown();
+        };
+    try (RingBufferSubmitter submitter =
+        RingBufferSubmitter.builder().capacity(1 << 16).consumerThreads(3).build()) {
+      Thread[] threads = new Thread[producers];
+      for (int p = 0; p < producers; p++) {
+        threads[p] =
+            new Thread(
+                () -> {
+                  for (int i = 0; i < perProducer; i++) {
+                    submitter.submit(createEntry(), executor);
+                  }
+                });
+        threads[p].start();
+      }
+      for (Thread thread : threads) {
+        thread.join();
+      }
+      assertThat(done.await(10, TimeUnit.SECONDS), is(true));
+      assertThat(processed, hasSize(producers * perProducer));
+      assertThat(submitter.size(), is(0));
+    }
+  }
+
+  @Test
+  void rejectsWhenFullAndReportsOccupancy() throws Exception {
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    Set<String> processed = ConcurrentHashMap.newKeySet();
+    Consumer<TransactionOutboxEntry> executor =
+        entry -> {
+          started.countDown();
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          processed.add(entry.getId());
+        };
+    try (RingBufferSubmitter submitter =
+        RingBufferSubmitter.builder().capacity(3).consumerThreads(1).drainBatchSize(1).build()) {
+      assertThat(submitter.capacity(), is(4));
+      submitter.submit(createEntry(), executor);
+      assertThat(started.await(10, TimeUnit.SECONDS), is(true));
+      for (int i = 0; i < 4; i++) {
+        submitter.submit(createEntry(), executor);
+      }
+      assertThat(submitter.occupancy(), closeTo(1.0, 0.001));
+
+      TransactionOutboxEntry rejected = createEntry();
+      submitter.submit(rejected, executor);
+      release.countDown();
+
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+      while (processed.size() < 5 && System.nanoTime() < deadline) {
+        Thread.sleep(10);
+      }
+      assertThat(processed, hasSize(5));
+      assertThat(processed, not(hasItem(rejected.getId())));
+      assertThat(submitter.occupancy(), closeTo(0.0, 0.001));
+    }
+  }
+
+  @Test
+  void submitsAsMuchOfABatchAsFits() throws Exception {
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    Set<String> processed = ConcurrentHashMap.newKeySet();
+    Consumer<TransactionOutboxEntry> executor =
+        entry -> {
+          started.countDown();
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          processed.add(entry.getId());
+        };
+    try (RingBufferSubmitter submitter =
+        RingBufferSubmitter.builder().capacity(4).consumerThreads(1).drainBatchSize(1).build()) {
+      submitter.submit(createEntry(), executor);
+      assertThat(started.await(10, TimeUnit.SECONDS), is(true));
+
+      List<TransactionOutboxEntry> batch =
+          IntStream.range(0, 6).mapToObj(i -> createEntry()).collect(Collectors.toList());
+      submitter.submitAll(batch, executor);
+      assertThat(submitter.size(), is(4));
+      release.countDown();
+
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+      while (processed.size() < 5 && System.nanoTime() < deadline) {
+        Thread.sleep(10);
+      }
+      assertThat(processed, hasSize(5));
+      batch.subList(0, 4).forEach(entry -> assertThat(processed, hasItem(entry.getId())));
+      assertThat(submitter.size(), is(0));
+    }
+  }
+
+  @Test
+  void survivesErrorsThrownByTasks() throws Exception {
+    Set<String> processed = ConcurrentHashMap.newKeySet();
+    CountDownLatch done = new CountDownLatch(2);
+    TransactionOutboxEntry failing = createEntry();
+    Consumer<TransactionOutboxEntry> executor =
+        entry -> {
+          if (entry == failing) {
+            throw new StackOverflowError();
+          }
+          processed.add(entry.getId());
+          done.countDown();
+        };
+    try (RingBufferSubmitter submitter =
+        RingBufferSubmitter.builder().consumerThreads(1).drainBatchSize(1).build()) {
+      submitter.submit(failing, executor);
+      submitter.submit(createEntry(), executor);
+      submitter.submit(createEntry(), executor);
+      assertThat(done.await(10, TimeUnit.SECONDS), is(true));
+      assertThat(processed, hasSize(2));
+      assertThat(processed, not(hasItem(failing.getId())));
+    }
+  }
+
+  @Test
+  void abandonsClaimedTasksOnClose() throws Exception {
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    Set<String> processed = ConcurrentHashMap.newKeySet();
+    Consumer<TransactionOutboxEntry> executor =
+        entry -> {
+          started.countDown();
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          processed.add(entry.getId());
+        };
+    RingBufferSubmitter submitter =
+        RingBufferSubmitter.builder().consumerThreads(1).drainBatchSize(4).build();
+    List<TransactionOutboxEntry> batch =
+        IntStream.range(0, 4).mapToObj(i -> createEntry()).collect(Collectors.toList());
+    submitter.submitAll(batch, executor);
+    assertThat(started.await(10, TimeUnit.SECONDS), is(true));
+    submitter.close();
+    release.countDown();
+
+    Thread.sleep(200);
+    assertThat(processed, hasSize(1));
+  }
+
+  private TransactionOutboxEntry createEntry() {
+    return TransactionOutboxEntry.builder()
+        .id(UUID.randomUUID().toString())
+        .invocation(new Invocation("Foo", "bar", new Class<?>[0], new Object[0]))
+        .nextAttemptTime(Instant.now())
+        .build();
+  }
+}
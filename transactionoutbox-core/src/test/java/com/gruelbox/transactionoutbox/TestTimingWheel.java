@@ -0,0 +1,67 @@
+package com.gruelbox.transactionoutbox;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class TestTimingWheel {
+
+  @Test
+  void runsTasksNoEarlierThanDueAcrossLevels() throws Exception {
+    int tasks = 2000;
+    List<Long> earlyByNanos = new CopyOnWriteArrayList<>();
+    CountDownLatch done = new CountDownLatch(tasks);
+    try (TimingWheel wheel = new TimingWheel(Duration.ofMillis(1))) {
+      for (int i = 0; i < tasks; i++) {
+        // Spread over several rotations of the lowest level so that tasks are cascaded
+        long delayNanos = TimeUnit.MILLISECONDS.toNanos((i * 7) % 1500);
+        long due = System.nanoTime() + delayNanos;
+        wheel.schedule(
+            () -> {
+              long early = due - System.nanoTime();
+              if (early > 0) {
+                earlyByNanos.add(early);
+              }
+              done.countDown();
+            },
+            Duration.ofNanos(delayNanos));
+      }
+      assertThat(done.await(10, TimeUnit.SECONDS), is(true));
+      assertThat(earlyByNanos, empty());
+      assertThat(wheel.size(), is(0));
+    }
+  }
+
+  @Test
+  void doesNotAcceptTasksOnceClosed() throws Exception {
+    CountDownLatch ran = new CountDownLatch(1);
+    TimingWheel wheel = new TimingWheel(Duration.ofMillis(1));
+    var timeout = wheel.schedule(ran::countDown, Duration.ZERO);
+    assertThat(ran.await(10, TimeUnit.SECONDS), is(true));
+    assertThat(timeout.isDone(), is(true));
+    wheel.close();
+    assertThat(wheel.schedule(ran::countDown, Duration.ZERO).isDone(), is(true));
+  }
+
+  @Test
+  void doesNotRunCancelledTasks() throws Exception {
+    CountDownLatch ran = new CountDownLatch(1);
+    CountDownLatch later = new CountDownLatch(1);
+    try (TimingWheel wheel = new TimingWheel(Duration.ofMillis(1))) {
+      var cancelled = wheel.schedule(ran::countDown, Duration.ofMillis(50));
+      assertThat(wheel.size(), is(1));
+      assertThat(cancelled.cancel(), is(true));
+      assertThat(cancelled.cancel(), is(false));
+      assertThat(wheel.size(), is(0));
+      wheel.schedule(later::countDown, Duration.ofMillis(100));
+      assertThat(later.await(10, TimeUnit.SECONDS), is(true));
+      assertThat(ran.getCount(), is(1L));
+    }
+  }
+}
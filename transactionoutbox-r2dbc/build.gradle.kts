@@ -0,0 +1,21 @@
+plugins {
+    alias(libs.plugins.lombok)
+}
+
+dependencies {
+    api(project(":transactionoutbox-core"))
+    api(libs.io.r2dbc.r2dbc.spi)
+    
+    compileOnly(libs.org.projectlombok.lombok)
+    
+    testImplementation(platform(libs.org.junit.bom))
+    testImplementation(libs.io.r2dbc.r2dbc.h2)
+    testImplementation(libs.com.h2database.h2)
+    testImplementation(libs.ch.qos.logback.logback.classic)
+    testImplementation(libs.ch.qos.logback.logback.core)
+    testImplementation(libs.org.hamcrest.hamcrest.core)
+    testImplementation(libs.org.junit.jupiter.junit.jupiter.engine)
+    testRuntimeOnly(libs.org.junit.platform.junit.platform.launcher)
+}
+
+description = "Transaction Outbox R2DBC"
@@ -0,0 +1,154 @@
+package com.gruelbox.transactionoutbox.r2dbc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+/**
+ * Minimal bridging from Reactive Streams {@link Publisher}s, as returned by R2DBC, to {@link
+ * CompletableFuture}s. Avoids taking a dependency on a full reactive library such as Reactor for
+ * the handful of operations we actually need.
+ */
+final class Publishers {
+
+  private Publishers() {}
+
+  /**
+   * Subscribes to the publisher, requesting everything, and completes with all the items emitted.
+   *
+   * @param publisher The publisher.
+   * @param <T> The item type.
+   * @return The items, once the publisher completes.
+   */
+  static <T> CompletableFuture<List<T>> collect(Publisher<? extends T> publisher) {
+    var result = new CompletableFuture<List<T>>();
+    publisher.subscribe(
+        new Subscriber<T>() {
+          private final List<T> items = new ArrayList<>();
+
+          @Override
+          public void onSubscribe(Subscription subscription) {
+            subscription.request(Long.MAX_VALUE);
+          }
+
+          @Override
+          public void onNext(T item) {
+            items.add(item);
+          }
+
+          @Override
+          public void onError(Throwable throwable) {
+            result.completeExceptionally(throwable);
+          }
+
+          @Override
+          public void onComplete() {
+            result.complete(items);
+          }
+        });
+    return result;
+  }
+
+  /**
+   * Subscribes to the publisher and completes with the first item emitted, if any.
+   *
+   * @param publisher The publisher.
+   * @param <T> The item type.
+   * @return The first item, once the publisher completes.
+   */
+  static <T> CompletableFuture<Optional<T>> first(Publisher<? extends T> publisher) {
+    return Publishers.<T>collect(publisher)
+        .thenApply(items -> items.isEmpty() ? Optional.empty() : Optional.of(items.get(0)));
+  }
+
+  /**
+   * Subscribes to the publisher and completes when it does, ignoring any items.
+   *
+   * @param publisher The publisher.
+   * @return Completes with the publisher.
+   */
+  static CompletableFuture<Void> await(Publisher<?> publisher) {
+    return collect(publisher).thenApply(items -> null);
+  }
+
+  /**
+   * Subscribes to the publisher one item at a time, fully consuming the publisher returned by
+   * {@code mapper} for each item before requesting the next. This is what R2DBC requires when
+   * consuming {@link io.r2dbc.spi.Result}s, since each must be consumed before the driver can move
+   * on to the next.
+   *
+   * @param publisher The outer publisher.
+   * @param mapper Maps each outer item to a publisher of results.
+   * @param <S> The outer item type.
+   * @param <T> The result type.
+   * @return All results, in order, once both the outer and all inner publishers complete.
+   */
+  static <S, T> CompletableFuture<List<T>> collectEach(
+      Publisher<? extends S> publisher, Function<? super S, Publisher<? extends T>> mapper) {
+    var result = new CompletableFuture<List<T>>();
+    publisher.subscribe(
+        new Subscriber<S>() {
+          private final List<T> items = new ArrayList<>();
+          private Subscription subscription;
+          private CompletableFuture<?> current = CompletableFuture.completedFuture(null);
+
+          @Override
+          public void onSubscribe(Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(1);
+          }
+
+          @Override
+          public void onNext(S item) {
+            current =
+                Publishers.<T>collect(mapper.apply(item))
+                    .whenComplete(
+                        (inner, error) -> {
+                          if (error == null) {
+                            items.addAll(inner);
+                            subscription.request(1);
+                          } else {
+                            subscription.cancel();
+                            result.completeExceptionally(error);
+                          }
+                        });
+          }
+
+          @Override
+          public void onError(Throwable throwable) {
+            result.completeExceptionally(throwable);
+          }
+
+          @Override
+          public void onComplete() {
+            current.whenComplete(
+                (inner, error) -> {
+                  if (error == null) {
+                    result.complete(items);
+                  }
+                });
+          }
+        });
+    return result;
+  }
+
+  /**
+   * Strips any {@link CompletionException} wrappers added as a failure propagates through dependent
+   * stages.
+   *
+   * @param error The failure.
+   * @return The underlying cause.
+   */
+  static Throwable unwrap(Throwable error) {
+    while (error instanceof CompletionException && error.getCause() != null) {
+      error = error.getCause();
+    }
+    return error;
+  }
+}
@@ -0,0 +1,608 @@
+package com.gruelbox.transactionoutbox.r2dbc;
+
+import com.gruelbox.transactionoutbox.AlreadyScheduledException;
+import com.gruelbox.transactionoutbox.AsyncPersistor;
+import com.gruelbox.transactionoutbox.DefaultPersistor;
+import com.gruelbox.transactionoutbox.Dialect;
+import com.gruelbox.transactionoutbox.FailedDeserializingInvocation;
+import com.gruelbox.transactionoutbox.Invocation;
+import com.gruelbox.transactionoutbox.InvocationSerializer;
+import com.gruelbox.transactionoutbox.OptimisticLockException;
+import com.gruelbox.transactionoutbox.TransactionOutbox;
+import com.gruelbox.transactionoutbox.TransactionOutboxEntry;
+import io.r2dbc.spi.Clob;
+import io.r2dbc.spi.R2dbcDataIntegrityViolationException;
+import io.r2dbc.spi.Result;
+import io.r2dbc.spi.Row;
+import io.r2dbc.spi.Statement;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.stream.Collectors;
+import lombok.Builder;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * An {@link AsyncPersistor} which uses R2DBC, operating on the same {@code TXNO_OUTBOX} schema and
+ * using the same {@link Dialect} SQL as {@link DefaultPersistor}. Records written by one can be
+ * read by the other, so entries saved over R2DBC are processed by a {@link TransactionOutbox}
+ * configured with a {@link DefaultPersistor} on the same table. {@link TransactionOutbox} does not
+ * use this class itself; entries saved with it are not submitted for immediate processing, and are
+ * picked up by the next {@link TransactionOutbox#flush()}.
+ *
+ * <p>Schema creation and migration is not supported over R2DBC; use {@link
+ * DefaultPersistor#migrate(com.gruelbox.transactionoutbox.TransactionManager)} or {@link
+ * DefaultPersistor#writeSchema} to manage the schema.
+ *
+ * <p>Timestamps are bound as {@link LocalDateTime}s in the system default time zone, matching the
+ * behaviour of {@link java.sql.Timestamp} as used by {@link DefaultPersistor}.
+ *
+ * <p>Usage:
+ *
+ * <pre>R2dbcPersistor persistor = R2dbcPersistor.builder()
+ *   .dialect(Dialect.POSTGRESQL_9)
+ *   .build();</pre>
+ */
+@Slf4j
+@Builder
+public final class R2dbcPersistor implements AsyncPersistor<R2dbcTransaction> {
+
+  private static final String ALL_FIELDS =
+      "id, uniqueRequestId, invocation, topic, seq, lastAttemptTime, nextAttemptTime, attempts, blocked, processed, version, priority, queue";
+
+  private static final String ALL_FIELDS_ALIASED =
+      "a.id, a.uniqueRequestId, a.invocation, a.topic, a.seq, a.lastAttemptTime, a.nextAttemptTime, a.attempts, a.blocked, a.processed, a.version, a.priority, a.queue";
+
+  /**
+   * @param dialect The database dialect to use. Required.
+   */
+  @SuppressWarnings("JavaDoc")
+  private final Dialect dialect;
+
+  /**
+   * @param tableName The database table name. The default is {@code TXNO_OUTBOX}.
+   */
+  @SuppressWarnings("JavaDoc")
+  @Builder.Default
+  private final String tableName = "TXNO_OUTBOX";
+
+  /**
+   * @param serializer The serializer to use for {@link Invocation}s. Must match that used by any
+   *     {@link DefaultPersistor} sharing the same table. Defaults to {@link
+   *     InvocationSerializer#createDefaultJsonSerializer()}.
+   */
+  @SuppressWarnings("JavaDoc")
+  @Builder.Default
+  private final InvocationSerializer serializer =
+      InvocationSerializer.createDefaultJsonSerializer();
+
+  /**
+   * @param bindMarkers Converts a 1-based parameter index to the driver's bind marker syntax, which
+   *     replaces each {@code ?} in the dialect SQL. Unlike JDBC, this varies between R2DBC drivers.
+   *     Defaults to {@code $1, $2...}, as used by the PostgreSQL and H2 drivers. Use {@code i ->
+   *     "?"} for MySQL or {@code i -> "@P" + i} for SQL Server.
+   */
+  @SuppressWarnings("JavaDoc")
+  @Builder.Default
+  private final IntFunction<String> bindMarkers = i -> "$" + i;
+
+  /**
+   * @param priorityAging The amount of waiting time equivalent to one unit of priority. Must match
+   *     that used by any {@link DefaultPersistor} sharing the same table. Defaults to one minute.
+   */
+  @SuppressWarnings("JavaDoc")
+  @Builder.Default
+  private final Duration priorityAging = Duration.ofMinutes(1);
+
+  /**
+   * @param useTopicHeads Set to true to maintain the topic head table and use it when selecting the
+   *     next entries in topics. Must match that used by any {@link DefaultPersistor} sharing the
+   *     same database. Defaults to false.
+   */
+  @SuppressWarnings("JavaDoc")
+  @Builder.Default
+  private final boolean useTopicHeads = false;
+
+  /**
+   * @param topicHeadTableName The name of the table maintained when {@code useTopicHeads} is set.
+   *     The default is {@code TXNO_TOPIC_HEAD}.
+   */
+  @SuppressWarnings("JavaDoc")
+  @Builder.Default
+  private final String topicHeadTableName = "TXNO_TOPIC_HEAD";
+
+  @Override
+  public CompletionStage<Void> save(R2dbcTransaction tx, TransactionOutboxEntry entry) {
+    var writer = new StringWriter();
+    serializer.serializeInvocation(entry.getInvocation(), writer);
+    CompletableFuture<Void> sequenced =
+        entry.getTopic() == null
+            ? CompletableFuture.completedFuture(null)
+            : setNextSequence(tx, entry)
+                .thenCompose(
+                    v -> {
+                      log.info(
+                          "Assigned sequence number {} to topic {}",
+                          entry.getSequence(),
+                          entry.getTopic());
+                      return useTopicHeads
+                          ? saveTopicHead(tx, entry)
+                          : CompletableFuture.<Void>completedFuture(null);
+                    });
+    return sequenced
+        .thenCompose(
+            v ->
+                executeUpdate(
+                    tx,
+                    "INSERT INTO "
+                        + tableName
+                        + " ("
+                        + ALL_FIELDS
+                        + ", topicBucket, dispatchAfter) "
+                        + "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)",
+                    entry.getId(),
+                    nullable(entry.getUniqueRequestId(), String.class),
+                    writer.toString(),
+                    entry.getTopic() == null ? "*" : entry.getTopic(),
+                    nullable(entry.getSequence(), Long.class),
+                    nullable(toLocal(entry.getLastAttemptTime()), LocalDateTime.class),
+                    toLocal(entry.getNextAttemptTime()),
+                    entry.getAttempts(),
+                    entry.isBlocked(),
+                    entry.isProcessed(),
+                    entry.getVersion(),
+                    entry.getPriority(),
+                    entry.getQueue() == null ? TransactionOutbox.DEFAULT_QUEUE : entry.getQueue(),
+                    nullable(
+                        entry.getTopic() == null
+                            ? null
+                            : DefaultPersistor.topicBucket(entry.getTopic()),
+                        Integer.class),
+                    dispatchAfter(entry)))
+        .handle(
+            (count, error) -> {
+              if (error == null) {
+                log.debug("Inserted {} immediately", entry.description());
+                return null;
+              }
+              Throwable cause = Publishers.unwrap(error);
+              if (cause instanceof R2dbcDataIntegrityViolationException) {
+                throw new AlreadyScheduledException(
+                    "Request " + entry.description() + " already exists", cause);
+              }
+              throw propagate(cause);
+            });
+  }
+
+  @Override
+  public CompletionStage<Void> delete(R2dbcTransaction tx, TransactionOutboxEntry entry) {
+    return executeUpdate(
+            tx,
+            dialect.getDelete().replace("{{table}}", tableName),
+            entry.getId(),
+            entry.getVersion())
+        .thenCompose(
+            count -> {
+              if (count != 1) {
+                throw propagate(new OptimisticLockException());
+              }
+              log.debug("Deleted {}", entry.description());
+              return useTopicHeads
+                  ? updateTopicHead(tx, entry, true)
+                  : CompletableFuture.<Void>completedFuture(null);
+            });
+  }
+
+  @Override
+  public CompletionStage<Void> update(R2dbcTransaction tx, TransactionOutboxEntry entry) {
+    return executeUpdate(
+            tx,
+            "UPDATE "
+                + tableName
+                + " "
+                + "SET lastAttemptTime = ?, nextAttemptTime = ?, attempts = ?, blocked = ?, processed = ?, version = ?, "
+                + "dispatchAfter = ? "
+                + "WHERE id = ? and version = ?",
+            nullable(toLocal(entry.getLastAttemptTime()), LocalDateTime.class),
+            toLocal(entry.getNextAttemptTime()),
+            entry.getAttempts(),
+            entry.isBlocked(),
+            entry.isProcessed(),
+            entry.getVersion() + 1,
+            dispatchAfter(entry),
+            entry.getId(),
+            entry.getVersion())
+        .thenCompose(
+            count -> {
+              if (count != 1) {
+                throw propagate(new OptimisticLockException());
+              }
+              entry.setVersion(entry.getVersion() + 1);
+              log.debug("Updated {}", entry.description());
+              return useTopicHeads
+                  ? updateTopicHead(tx, entry, false)
+                  : CompletableFuture.<Void>completedFuture(null);
+            });
+  }
+
+  @Override
+  public CompletionStage<Boolean> lock(R2dbcTransaction tx, TransactionOutboxEntry entry) {
+    return query(
+            tx,
+            dialect.getLock().replace("{{table}}", tableName).replace("{{allFields}}", ALL_FIELDS),
+            row -> row.get("id", String.class),
+            entry.getId(),
+            entry.getVersion())
+        .thenApply(ids -> !ids.isEmpty());
+  }
+
+  @Override
+  public CompletionStage<Boolean> unblock(R2dbcTransaction tx, String entryId) {
+    return executeUpdate(
+            tx,
+            "UPDATE "
+                + tableName
+                + " SET attempts = 0, blocked = "
+                + dialect.booleanValue(false)
+                + " "
+                + "WHERE blocked = "
+                + dialect.booleanValue(true)
+                + " AND processed = "
+                + dialect.booleanValue(false)
+                + " AND id = ?",
+            entryId)
+        .thenApply(count -> count != 0);
+  }
+
+  @Override
+  public CompletionStage<List<TransactionOutboxEntry>> selectBatch(
+      R2dbcTransaction tx, int batchSize, Instant now) {
+    return select(tx, dialect.getSelectBatch(), ALL_FIELDS, batchSize, now);
+  }
+
+  @Override
+  public CompletionStage<List<TransactionOutboxEntry>> selectNextInTopics(
+      R2dbcTransaction tx, int batchSize, Instant now) {
+    return useTopicHeads
+        ? select(tx, dialect.getFetchNextInAllTopicHeads(), ALL_FIELDS_ALIASED, batchSize, now)
+        : select(tx, dialect.getFetchNextInAllTopics(), ALL_FIELDS, batchSize, now);
+  }
+
+  @Override
+  public CompletionStage<Integer> deleteProcessedAndExpired(
+      R2dbcTransaction tx, int batchSize, Instant now) {
+    return executeUpdate(
+            tx,
+            dialect
+                .getDeleteExpired()
+                .replace("{{table}}", tableName)
+                .replace("{{batchSize}}", Integer.toString(batchSize)),
+            toLocal(now))
+        .thenApply(Long::intValue);
+  }
+
+  @Override
+  public CompletionStage<Boolean> checkConnection(R2dbcTransaction tx) {
+    return query(tx, dialect.getCheckSql(), row -> row.get(0, Integer.class))
+        .thenApply(results -> !results.isEmpty() && Integer.valueOf(1).equals(results.get(0)));
+  }
+
+  // For testing. Assumed low volume.
+  @Override
+  public CompletionStage<Void> clear(R2dbcTransaction tx) {
+    CompletableFuture<Long> cleared = executeUpdate(tx, "DELETE FROM " + tableName);
+    if (useTopicHeads) {
+      cleared =
+          cleared.thenCompose(count -> executeUpdate(tx, "DELETE FROM " + topicHeadTableName));
+    }
+    return cleared.thenApply(count -> null);
+  }
+
+  private CompletableFuture<Void> setNextSequence(
+      R2dbcTransaction tx, TransactionOutboxEntry entry) {
+    return query(
+            tx, dialect.getFetchNextSequence(), row -> row.get(0, Long.class), entry.getTopic())
+        .thenCompose(
+            current -> {
+              if (!current.isEmpty()) {
+                entry.setSequence(current.get(0) + 1L);
+                return executeUpdate(
+                        tx,
+                        "UPDATE TXNO_SEQUENCE SET seq = ? WHERE topic = ?",
+                        entry.getSequence(),
+                        entry.getTopic())
+                    .thenApply(count -> null);
+              }
+              entry.setSequence(1L);
+              return executeUpdate(
+                      tx,
+                      "INSERT INTO TXNO_SEQUENCE (topic, seq) VALUES (?, ?)",
+                      entry.getTopic(),
+                      entry.getSequence())
+                  .handle(
+                      (count, error) -> {
+                        if (error == null) {
+                          return CompletableFuture.<Void>completedFuture(null);
+                        }
+                        Throwable cause = Publishers.unwrap(error);
+                        if (cause instanceof R2dbcDataIntegrityViolationException) {
+                          return setNextSequence(tx, entry);
+                        }
+                        return CompletableFuture.<Void>failedFuture(cause);
+                      })
+                  .thenCompose(Function.identity());
+            });
+  }
+
+  /**
+   * Records the due time of a newly saved ordered entry against its topic head if the entry is at
+   * the head, or creates the head if the topic has none. Equivalent to the same operation in {@link
+   * DefaultPersistor}.
+   */
+  private CompletableFuture<Void> saveTopicHead(R2dbcTransaction tx, TransactionOutboxEntry entry) {
+    return executeUpdate(
+            tx,
+            "UPDATE "
+                + topicHeadTableName
+                + " SET nextAttemptTime = "
+                + "CASE WHEN seq = ? THEN ? ELSE nextAttemptTime END WHERE topic = ?",
+            entry.getSequence(),
+            toLocal(entry.getNextAttemptTime()),
+            entry.getTopic())
+        .thenCompose(
+            count ->
+                count != 0
+                    ? CompletableFuture.<Void>completedFuture(null)
+                    : executeUpdate(
+                            tx,
+                            "INSERT INTO "
+                                + topicHeadTableName
+                                + " (topic, seq, nextAttemptTime) VALUES (?, ?, ?)",
+                            entry.getTopic(),
+                            entry.getSequence(),
+                            toLocal(entry.getNextAttemptTime()))
+                        .<Void>thenApply(inserted -> null));
+  }
+
+  private CompletableFuture<Void> updateTopicHead(
+      R2dbcTransaction tx, TransactionOutboxEntry entry, boolean removed) {
+    if (entry.getTopic() == null || entry.getSequence() == null) {
+      return CompletableFuture.completedFuture(null);
+    }
+    if (removed || entry.isProcessed()) {
+      return advanceTopicHead(tx, entry);
+    }
+    return executeUpdate(
+            tx,
+            "UPDATE " + topicHeadTableName + " SET nextAttemptTime = ? WHERE topic = ? AND seq = ?",
+            toLocal(entry.getNextAttemptTime()),
+            entry.getTopic(),
+            entry.getSequence())
+        .thenApply(count -> null);
+  }
+
+  /**
+   * Moves the head of the entry's topic on to the next unprocessed entry in the topic, if the entry
+   * was at the head, or removes the head if there is none. Equivalent to the same operation in
+   * {@link DefaultPersistor}.
+   */
+  private CompletableFuture<Void> advanceTopicHead(
+      R2dbcTransaction tx, TransactionOutboxEntry entry) {
+    return executeUpdate(
+            tx,
+            "UPDATE "
+                + topicHeadTableName
+                + " SET nextAttemptTime = NULL WHERE topic = ? AND seq = ?",
+            entry.getTopic(),
+            entry.getSequence())
+        .thenCompose(
+            count -> {
+              if (count == 0) {
+                return CompletableFuture.<Void>completedFuture(null);
+              }
+              return query(
+                      tx,
+                      "SELECT a.seq, a.nextAttemptTime FROM "
+                          + tableName
+                          + " a WHERE a.topic = ? AND a.processed = "
+                          + dialect.booleanValue(false)
+                          + " AND a.seq = (SELECT MIN(b.seq) FROM "
+                          + tableName
+                          + " b WHERE b.topic = ? AND b.seq > ? AND b.processed = "
+                          + dialect.booleanValue(false)
+                          + ")",
+                      row -> new TopicHead(row.get(0, Long.class), row.get(1, LocalDateTime.class)),
+                      entry.getTopic(),
+                      entry.getTopic(),
+                      entry.getSequence())
+                  .thenCompose(
+                      next -> {
+                        if (next.isEmpty()) {
+                          log.debug(
+                              "Removed head of topic {} after {}",
+                              entry.getTopic(),
+                              entry.getSequence());
+                          return executeUpdate(
+                              tx,
+                              "DELETE FROM " + topicHeadTableName + " WHERE topic = ?",
+                              entry.getTopic());
+                        }
+                        TopicHead head = next.get(0);
+                        log.debug(
+                            "Advanced head of topic {} from {} to {}",
+                            entry.getTopic(),
+                            entry.getSequence(),
+                            head.getSeq());
+                        return executeUpdate(
+                            tx,
+                            "UPDATE "
+                                + topicHeadTableName
+                                + " SET seq = ?, nextAttemptTime = ? WHERE topic = ?",
+                            head.getSeq(),
+                            head.getNextAttemptTime(),
+                            entry.getTopic());
+                      })
+                  .thenApply(updated -> null);
+            });
+  }
+
+  private CompletableFuture<List<TransactionOutboxEntry>> select(
+      R2dbcTransaction tx, String sqlTemplate, String allFields, int batchSize, Instant now) {
+    String sql =
+        sqlTemplate
+            .replace("{{table}}", tableName)
+            .replace("{{topicHeadTable}}", topicHeadTableName)
+            .replace("{{batchSize}}", Integer.toString(batchSize))
+            .replace("{{queueFilter}}", "1 = 1")
+            .replace("{{allFields}}", allFields);
+    return query(tx, sql, this::map, toLocal(now))
+        .thenCompose(
+            pending ->
+                CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0]))
+                    .thenApply(
+                        v ->
+                            pending.stream()
+                                .map(CompletableFuture::join)
+                                .collect(Collectors.toList())))
+        .thenApply(
+            results -> {
+              log.debug("Found {} results", results.size());
+              return results;
+            });
+  }
+
+  /**
+   * Maps a row to an entry. All columns must be read before returning, since the row is only valid
+   * within the callback. The invocation may be returned by the driver as a {@link Clob}, which is
+   * streamed separately, so the entry itself is only available once that completes.
+   */
+  private CompletableFuture<TransactionOutboxEntry> map(Row row) {
+    Object invocation = row.get("invocation");
+    String topic = row.get("topic", String.class);
+    LocalDateTime lastAttemptTime = row.get("lastAttemptTime", LocalDateTime.class);
+    String queue = row.get("queue", String.class);
+    var builder =
+        TransactionOutboxEntry.builder()
+            .id(row.get("id", String.class))
+            .uniqueRequestId(row.get("uniqueRequestId", String.class))
+            .topic("*".equals(topic) ? null : topic)
+            .sequence(row.get("seq", Long.class))
+            .lastAttemptTime(lastAttemptTime == null ? null : toInstant(lastAttemptTime))
+            .nextAttemptTime(toInstant(row.get("nextAttemptTime", LocalDateTime.class)))
+            .attempts(row.get("attempts", Integer.class))
+            .blocked(row.get("blocked", Boolean.class))
+            .processed(row.get("processed", Boolean.class))
+            .version(row.get("version", Integer.class))
+            .priority(row.get("priority", Integer.class))
+            .queue(TransactionOutbox.DEFAULT_QUEUE.equals(queue) ? null : queue);
+    return readText(invocation)
+        .thenApply(
+            text -> {
+              TransactionOutboxEntry entry = builder.invocation(deserialize(text)).build();
+              log.trace("Found {}", entry);
+              return entry;
+            });
+  }
+
+  private LocalDateTime dispatchAfter(TransactionOutboxEntry entry) {
+    return toLocal(
+        entry.getNextAttemptTime().minus(priorityAging.multipliedBy(entry.getPriority())));
+  }
+
+  private CompletableFuture<String> readText(Object value) {
+    if (value instanceof Clob) {
+      return Publishers.<CharSequence>collect(((Clob) value).stream())
+          .thenApply(chunks -> String.join("", chunks));
+    }
+    return CompletableFuture.completedFuture((String) value);
+  }
+
+  private Invocation deserialize(String text) {
+    try {
+      return serializer.deserializeInvocation(new StringReader(text));
+    } catch (IOException e) {
+      return new FailedDeserializingInvocation(e);
+    }
+  }
+
+  private <T> CompletableFuture<List<T>> query(
+      R2dbcTransaction tx, String sql, Function<Row, T> mapper, Object... params) {
+    return Publishers.collectEach(
+        prepare(tx, sql, params).execute(),
+        (Result result) -> result.map((row, metadata) -> mapper.apply(row)));
+  }
+
+  private CompletableFuture<Long> executeUpdate(R2dbcTransaction tx, String sql, Object... params) {
+    return Publishers.<Result, Number>collectEach(
+            prepare(tx, sql, params).execute(), Result::getRowsUpdated)
+        .thenApply(counts -> counts.stream().mapToLong(Number::longValue).sum());
+  }
+
+  private Statement prepare(R2dbcTransaction tx, String sql, Object... params) {
+    Statement statement = tx.connection().createStatement(withBindMarkers(sql));
+    for (int i = 0; i < params.length; i++) {
+      if (params[i] instanceof NullValue) {
+        statement.bindNull(i, ((NullValue) params[i]).type);
+      } else {
+        statement.bind(i, params[i]);
+      }
+    }
+    return statement;
+  }
+
+  private String withBindMarkers(String sql) {
+    var result = new StringBuilder(sql.length() + 16);
+    int index = 0;
+    for (char c : sql.toCharArray()) {
+      if (c == '?') {
+        result.append(bindMarkers.apply(++index));
+      } else {
+        result.append(c);
+      }
+    }
+    return result.toString();
+  }
+
+  private static Object nullable(Object value, Class<?> type) {
+    return value == null ? new NullValue(type) : value;
+  }
+
+  private static LocalDateTime toLocal(Instant instant) {
+    return instant == null ? null : LocalDateTime.ofInstant(instant, ZoneId.systemDefault());
+  }
+
+  private static Instant toInstant(LocalDateTime localDateTime) {
+    return localDateTime.atZone(ZoneId.systemDefault()).toInstant();
+  }
+
+  private static RuntimeException propagate(Throwable cause) {
+    return cause instanceof RuntimeException
+        ? (RuntimeException) cause
+        : new CompletionException(cause);
+  }
+
+  @Value
+  private static class TopicHead {
+    Long seq;
+    LocalDateTime nextAttemptTime;
+  }
+
+  private static final class NullValue {
+    private final Class<?> type;
+
+    private NullValue(Class<?> type) {
+      this.type = type;
+    }
+  }
+}
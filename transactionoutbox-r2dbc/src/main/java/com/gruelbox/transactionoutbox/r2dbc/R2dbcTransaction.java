@@ -0,0 +1,41 @@
+package com.gruelbox.transactionoutbox.r2dbc;
+
+import com.gruelbox.transactionoutbox.AsyncTransaction;
+import io.r2dbc.spi.Connection;
+import java.util.ArrayList;
+import java.util.List;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * An {@link AsyncTransaction} on an R2DBC {@link Connection}, as managed by {@link
+ * R2dbcTransactionManager}.
+ */
+@Slf4j
+public final class R2dbcTransaction implements AsyncTransaction {
+
+  private final Connection connection;
+  private final List<Runnable> postCommitHooks = new ArrayList<>();
+
+  R2dbcTransaction(Connection connection) {
+    this.connection = connection;
+  }
+
+  /**
+   * @return The R2DBC connection for the transaction.
+   */
+  public Connection connection() {
+    return connection;
+  }
+
+  @Override
+  public void addPostCommitHook(Runnable runnable) {
+    postCommitHooks.add(runnable);
+  }
+
+  void processHooks() {
+    if (!postCommitHooks.isEmpty()) {
+      log.debug("Running post-commit hooks");
+      postCommitHooks.forEach(Runnable::run);
+    }
+  }
+}
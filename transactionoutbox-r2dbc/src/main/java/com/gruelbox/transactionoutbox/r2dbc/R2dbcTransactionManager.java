@@ -0,0 +1,118 @@
+package com.gruelbox.transactionoutbox.r2dbc;
+
+import com.gruelbox.transactionoutbox.AsyncTransactionManager;
+import io.r2dbc.spi.Connection;
+import io.r2dbc.spi.ConnectionFactory;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Function;
+import lombok.Builder;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A simple {@link AsyncTransactionManager} for applications with no existing R2DBC transaction
+ * management. A new connection is requested from the {@link ConnectionFactory} for each
+ * transaction, so in practice this should be an {@code io.r2dbc.pool.ConnectionPool} or similar.
+ *
+ * <p>Usage:
+ *
+ * <pre>R2dbcTransactionManager transactionManager =
+ *   R2dbcTransactionManager.fromConnectionFactory(connectionFactory);
+ * transactionManager.inTransaction(tx -&gt; persistor.save(tx, entry));</pre>
+ */
+@Slf4j
+@Builder
+public final class R2dbcTransactionManager implements AsyncTransactionManager<R2dbcTransaction> {
+
+  /**
+   * @param connectionFactory The source of connections. Required.
+   */
+  @SuppressWarnings("JavaDoc")
+  private final ConnectionFactory connectionFactory;
+
+  /**
+   * Creates a transaction manager which uses the specified {@link ConnectionFactory} to source
+   * connections.
+   *
+   * @param connectionFactory The connection factory.
+   * @return The transaction manager.
+   */
+  public static R2dbcTransactionManager fromConnectionFactory(ConnectionFactory connectionFactory) {
+    return builder().connectionFactory(connectionFactory).build();
+  }
+
+  @Override
+  public <T> CompletionStage<T> inTransaction(
+      Function<? super R2dbcTransaction, ? extends CompletionStage<T>> work) {
+    return Publishers.<Connection>first(connectionFactory.create())
+        .thenApply(connection -> connection.orElseThrow(IllegalStateException::new))
+        .thenCompose(
+            connection -> {
+              log.debug("Got connection {}", connection);
+              var transaction = new R2dbcTransaction(connection);
+              return Publishers.await(connection.beginTransaction())
+                  .thenCompose(v -> processAndCommit(work, transaction))
+                  .handle(
+                      (result, error) ->
+                          error == null
+                              ? CompletableFuture.completedFuture(result)
+                              : this.<T>rollback(connection, error))
+                  .thenCompose(Function.identity())
+                  .handle(
+                      (result, error) ->
+                          close(connection)
+                              .thenCompose(
+                                  v ->
+                                      error == null
+                                          ? CompletableFuture.completedFuture(result)
+                                          : CompletableFuture.<T>failedFuture(
+                                              Publishers.unwrap(error))))
+                  .thenCompose(Function.identity())
+                  .thenApply(
+                      result -> {
+                        transaction.processHooks();
+                        return result;
+                      });
+            });
+  }
+
+  private <T> CompletableFuture<T> processAndCommit(
+      Function<? super R2dbcTransaction, ? extends CompletionStage<T>> work,
+      R2dbcTransaction transaction) {
+    log.debug("Processing work");
+    return work.apply(transaction)
+        .toCompletableFuture()
+        .thenCompose(
+            result -> {
+              log.debug("Committing transaction");
+              return Publishers.await(transaction.connection().commitTransaction())
+                  .thenApply(v -> result);
+            });
+  }
+
+  private <T> CompletableFuture<T> rollback(Connection connection, Throwable error) {
+    Throwable cause = Publishers.unwrap(error);
+    log.warn(
+        "Exception in transactional block ({}{}). Rolling back. See later messages for detail",
+        cause.getClass().getSimpleName(),
+        cause.getMessage() == null ? "" : (" - " + cause.getMessage()));
+    return Publishers.await(connection.rollbackTransaction())
+        .handle(
+            (v, rollbackError) -> {
+              if (rollbackError != null) {
+                log.warn("Failed to roll back", rollbackError);
+              }
+              return null;
+            })
+        .thenCompose(v -> CompletableFuture.failedFuture(cause));
+  }
+
+  private CompletableFuture<Void> close(Connection connection) {
+    return Publishers.await(connection.close())
+        .exceptionally(
+            e -> {
+              log.warn("Failed to close connection {}", connection, e);
+              return null;
+            });
+  }
+}
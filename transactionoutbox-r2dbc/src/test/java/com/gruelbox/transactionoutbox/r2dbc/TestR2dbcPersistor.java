@@ -0,0 +1,171 @@
+package com.gruelbox.transactionoutbox.r2dbc;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.gruelbox.transactionoutbox.AlreadyScheduledException;
+import com.gruelbox.transactionoutbox.DefaultPersistor;
+import com.gruelbox.transactionoutbox.Dialect;
+import com.gruelbox.transactionoutbox.Invocation;
+import com.gruelbox.transactionoutbox.OptimisticLockException;
+import com.gruelbox.transactionoutbox.TransactionManager;
+import com.gruelbox.transactionoutbox.TransactionOutboxEntry;
+import io.r2dbc.h2.H2ConnectionConfiguration;
+import io.r2dbc.h2.H2ConnectionFactory;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class TestR2dbcPersistor {
+
+  private static final String DB = "r2dbctest;DB_CLOSE_DELAY=-1";
+
+  private final R2dbcPersistor persistor = R2dbcPersistor.builder().dialect(Dialect.H2).build();
+  private final R2dbcTransactionManager txm =
+      R2dbcTransactionManager.fromConnectionFactory(
+          new H2ConnectionFactory(
+              H2ConnectionConfiguration.builder()
+                  .url("mem:" + DB)
+                  .username("test")
+                  .password("test")
+                  .build()));
+
+  @BeforeEach
+  void beforeEach() throws Exception {
+    DefaultPersistor.builder()
+        .dialect(Dialect.H2)
+        .build()
+        .migrate(
+            TransactionManager.fromConnectionDetails(
+                "org.h2.Driver", "jdbc:h2:mem:" + DB, "test", "test"));
+    await(txm.inTransaction(persistor::clear));
+  }
+
+  @Test
+  void saveSelectUpdateDelete() throws Exception {
+    var entry = createEntry(null);
+    await(txm.inTransaction(tx -> persistor.save(tx, entry)));
+
+    List<TransactionOutboxEntry> selected =
+        await(txm.inTransaction(tx -> persistor.selectBatch(tx, 10, Instant.now())));
+    assertThat(selected, contains(entry));
+
+    await(
+        txm.inTransaction(
+            tx ->
+                persistor
+                    .lock(tx, entry)
+                    .thenCompose(
+                        locked -> {
+                          assertThat(locked, is(true));
+                          entry.setAttempts(1);
+                          return persistor.update(tx, entry);
+                        })));
+    assertThat(entry.getVersion(), is(1));
+
+    await(txm.inTransaction(tx -> persistor.delete(tx, entry)));
+    assertThat(
+        await(txm.inTransaction(tx -> persistor.selectBatch(tx, 10, Instant.now()))), empty());
+  }
+
+  @Test
+  void staleVersionFailsOptimisticLock() throws Exception {
+    var entry = createEntry(null);
+    await(txm.inTransaction(tx -> persistor.save(tx, entry)));
+    var stale = entry.toBuilder().build();
+    await(txm.inTransaction(tx -> persistor.update(tx, entry)));
+
+    var e =
+        assertThrows(
+            ExecutionException.class,
+            () -> await(txm.inTransaction(tx -> persistor.delete(tx, stale))));
+    assertThat(e.getCause(), instanceOf(OptimisticLockException.class));
+  }
+
+  @Test
+  void duplicateRequestIdRejected() throws Exception {
+    var uniqueId = UUID.randomUUID().toString();
+    var first = createEntry(null).toBuilder().uniqueRequestId(uniqueId).build();
+    var second = createEntry(null).toBuilder().uniqueRequestId(uniqueId).build();
+    await(txm.inTransaction(tx -> persistor.save(tx, first)));
+
+    var e =
+        assertThrows(
+            ExecutionException.class,
+            () -> await(txm.inTransaction(tx -> persistor.save(tx, second))));
+    assertThat(e.getCause(), instanceOf(AlreadyScheduledException.class));
+  }
+
+  @Test
+  void topicsAreSequenced() throws Exception {
+    var first = createEntry("topic1");
+    var second = createEntry("topic1");
+    await(
+        txm.inTransaction(
+            tx -> persistor.save(tx, first).thenCompose(v -> persistor.save(tx, second))));
+    assertThat(first.getSequence(), is(1L));
+    assertThat(second.getSequence(), is(2L));
+
+    var next = await(txm.inTransaction(tx -> persistor.selectNextInTopics(tx, 10, Instant.now())));
+    assertThat(
+        next.stream().map(TransactionOutboxEntry::getId).collect(Collectors.toList()),
+        contains(first.getId()));
+  }
+
+  @Test
+  void rollbackDiscardsWorkAndSkipsHooks() throws Exception {
+    var entry = createEntry(null);
+    var hookRun = new AtomicBoolean();
+    assertThrows(
+        ExecutionException.class,
+        () ->
+            await(
+                txm.inTransaction(
+                    tx -> {
+                      tx.addPostCommitHook(() -> hookRun.set(true));
+                      return persistor
+                          .save(tx, entry)
+                          .thenCompose(
+                              v ->
+                                  CompletableFuture.failedFuture(
+                                      new IllegalStateException("Deliberate failure")));
+                    })));
+    assertThat(hookRun.get(), is(false));
+    assertThat(
+        await(txm.inTransaction(tx -> persistor.selectBatch(tx, 10, Instant.now()))), empty());
+
+    await(
+        txm.inTransaction(
+            tx -> {
+              tx.addPostCommitHook(() -> hookRun.set(true));
+              return persistor.checkConnection(tx);
+            }));
+    assertThat(hookRun.get(), is(true));
+  }
+
+  private TransactionOutboxEntry createEntry(String topic) {
+    return TransactionOutboxEntry.builder()
+        .id(UUID.randomUUID().toString())
+        .invocation(new Invocation("Foo", "bar", new Class<?>[] {int.class}, new Object[] {1}))
+        .topic(topic)
+        .nextAttemptTime(Instant.now().minusSeconds(1).truncatedTo(ChronoUnit.MILLIS))
+        .build();
+  }
+
+  private static <T> T await(CompletionStage<T> stage) throws Exception {
+    return stage.toCompletableFuture().get(10, TimeUnit.SECONDS);
+  }
+}
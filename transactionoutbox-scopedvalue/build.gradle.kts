@@ -0,0 +1,11 @@
+dependencies {
+    api(project(":transactionoutbox-core"))
+    api(libs.org.slf4j.slf4j.api)
+
+    testImplementation(project(":transactionoutbox-testing"))
+    testImplementation(libs.ch.qos.logback.logback.classic)
+    testImplementation(libs.ch.qos.logback.logback.core)
+    testImplementation(libs.com.h2database.h2)
+}
+
+description = "Transaction Outbox ScopedValue Support"
@@ -0,0 +1,134 @@
+package com.gruelbox.transactionoutbox.scopedvalue;
+
+import com.gruelbox.transactionoutbox.ConnectionProvider;
+import com.gruelbox.transactionoutbox.NoTransactionActiveException;
+import com.gruelbox.transactionoutbox.ThreadLocalContextTransactionManager;
+import com.gruelbox.transactionoutbox.ThrowingTransactionalSupplier;
+import com.gruelbox.transactionoutbox.spi.SimpleTransaction;
+import com.gruelbox.transactionoutbox.spi.Utils;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Optional;
+import javax.sql.DataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A simple {@link ThreadLocalContextTransactionManager} for applications with no existing
+ * transaction management, which carries the current {@link SimpleTransaction} in a {@link
+ * ScopedValue} rather than a {@link ThreadLocal}.
+ *
+ * <p>Functionally equivalent to {@link
+ * com.gruelbox.transactionoutbox.TransactionManager#fromDataSource(DataSource)}, but better suited
+ * to large numbers of short-lived virtual threads: {@link #requireTransactionReturns} finds the
+ * current transaction without allocating, the binding is released automatically when the
+ * transaction block exits, and it is inherited by subtasks forked from within the transaction using
+ * {@code StructuredTaskScope}.
+ *
+ * <p>Requires Java 25 or later, where {@link ScopedValue} is a final API.
+ *
+ * <p>Usage:
+ *
+ * <pre>ThreadLocalContextTransactionManager transactionManager =
+ *   ScopedValueTransactionManager.fromDataSource(dataSource);</pre>
+ */
+public final class ScopedValueTransactionManager implements ThreadLocalContextTransactionManager {
+
+  private static final Logger log = LoggerFactory.getLogger(ScopedValueTransactionManager.class);
+
+  private final ScopedValue<SimpleTransaction> currentTransaction = ScopedValue.newInstance();
+  private final ConnectionProvider connectionProvider;
+
+  private ScopedValueTransactionManager(ConnectionProvider connectionProvider) {
+    this.connectionProvider = connectionProvider;
+  }
+
+  /**
+   * Creates a transaction manager which uses the specified {@link ConnectionProvider} to source
+   * connections. A new connection is requested for each transaction.
+   *
+   * @param connectionProvider The source of connections.
+   * @return The transaction manager.
+   */
+  public static ScopedValueTransactionManager fromConnectionProvider(
+      ConnectionProvider connectionProvider) {
+    return new ScopedValueTransactionManager(connectionProvider);
+  }
+
+  /**
+   * Creates a transaction manager which uses the specified {@link DataSource} to source
+   * connections. A new connection is requested for each transaction.
+   *
+   * @param dataSource The data source.
+   * @return The transaction manager.
+   */
+  public static ScopedValueTransactionManager fromDataSource(DataSource dataSource) {
+    return fromConnectionProvider(() -> Utils.uncheckedly(dataSource::getConnection));
+  }
+
+  @Override
+  public <T, E extends Exception> T inTransactionReturnsThrows(
+      ThrowingTransactionalSupplier<T, E> work) throws E {
+    try (Connection connection = connectionProvider.obtainConnection();
+        SimpleTransaction transaction = new SimpleTransaction(connection, null)) {
+      log.debug("Got connection {}", connection);
+      boolean autoCommit = connection.getAutoCommit();
+      if (autoCommit) {
+        log.debug("Setting auto-commit false");
+        connection.setAutoCommit(false);
+      }
+      try {
+        T result =
+            ScopedValue.where(currentTransaction, transaction)
+                .call(() -> processAndCommitOrRollback(work, transaction));
+        transaction.processHooks();
+        return result;
+      } finally {
+        connection.setAutoCommit(autoCommit);
+      }
+    } catch (SQLException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Override
+  public <T, E extends Exception> T requireTransactionReturns(
+      ThrowingTransactionalSupplier<T, E> work) throws E, NoTransactionActiveException {
+    if (!currentTransaction.isBound()) {
+      throw new NoTransactionActiveException();
+    }
+    return work.doWork(currentTransaction.get());
+  }
+
+  /**
+   * @return The transaction bound to the current scope, if any.
+   */
+  public Optional<SimpleTransaction> peekTransaction() {
+    return currentTransaction.isBound()
+        ? Optional.of(currentTransaction.get())
+        : Optional.empty();
+  }
+
+  private <T, E extends Exception> T processAndCommitOrRollback(
+      ThrowingTransactionalSupplier<T, E> work, SimpleTransaction transaction) throws E {
+    try {
+      log.debug("Processing work");
+      T result = work.doWork(transaction);
+      transaction.flushBatches();
+      log.debug("Committing transaction");
+      transaction.commit();
+      return result;
+    } catch (Exception e) {
+      try {
+        log.warn(
+            "Exception in transactional block ({}{}). Rolling back. See later messages for detail",
+            e.getClass().getSimpleName(),
+            e.getMessage() == null ? "" : (" - " + e.getMessage()));
+        transaction.rollback();
+      } catch (Exception ex) {
+        log.warn("Failed to roll back", ex);
+      }
+      throw e;
+    }
+  }
+}
@@ -0,0 +1,20 @@
+package com.gruelbox.transactionoutbox.scopedvalue;
+
+import com.gruelbox.transactionoutbox.ThreadLocalContextTransactionManager;
+import com.gruelbox.transactionoutbox.testing.AbstractAcceptanceTest;
+import org.junit.jupiter.api.BeforeEach;
+
+class TestScopedValueH2 extends AbstractAcceptanceTest {
+
+  private ThreadLocalContextTransactionManager txm;
+
+  @Override
+  protected final ThreadLocalContextTransactionManager txManager() {
+    return txm;
+  }
+
+  @BeforeEach
+  final void beforeEach() {
+    txm = ScopedValueTransactionManager.fromDataSource(dataSource);
+  }
+}
@@ -501,6 +501,78 @@ public abstract class AbstractAcceptanceTest extends BaseTest {
         singleThreadPool);
   }
 
+  /**
+   * Runs a piece of work which fails transiently, with quick retries enabled and no background
+   * flushing. Ensures that the work is retried in-process rather than waiting for a flush.
+   */
+  @Test
+  final void quickRetryBehaviour() throws Exception {
+    TransactionManager transactionManager = txManager();
+    CountDownLatch latch = new CountDownLatch(1);
+    AtomicInteger attempts = new AtomicInteger();
+    TransactionOutbox outbox =
+        TransactionOutbox.builder()
+            .transactionManager(transactionManager)
+            .persistor(Persistor.forDialect(connectionDetails().dialect()))
+            .instantiator(new FailingInstantiator(attempts))
+            .submitter(Submitter.withExecutor(singleThreadPool))
+            .attemptFrequency(Duration.ofHours(1))
+            .quickRetries(3)
+            .quickRetryDelay(Duration.ofMillis(10))
+            .listener(new LatchListener(latch))
+            .build();
+
+    clearOutbox();
+
+    transactionManager.inTransaction(
+        () -> outbox.schedule(InterfaceProcessor.class).process(3, "Whee"));
+    assertTrue(latch.await(15, SECONDS));
+    assertEquals(3, attempts.get());
+  }
+
+  /**
+   * Fails a task once, with quick retries enabled, and flushes while the quick retry is pending.
+   * Ensures that the flush leaves the task to the quick retry rather than picking it up too.
+   */
+  @Test
+  final void quickRetriesReserveTheTask() throws Exception {
+    TransactionManager transactionManager = txManager();
+    CountDownLatch failed = new CountDownLatch(1);
+    CountDownLatch latch = new CountDownLatch(1);
+    AtomicInteger attempts = new AtomicInteger();
+    TransactionOutbox outbox =
+        TransactionOutbox.builder()
+            .transactionManager(transactionManager)
+            .persistor(Persistor.forDialect(connectionDetails().dialect()))
+            .instantiator(
+                Instantiator.using(
+                    clazz ->
+                        (InterfaceProcessor)
+                            (foo, bar) -> {
+                              if (attempts.incrementAndGet() == 1) {
+                                failed.countDown();
+                                throw new IllegalStateException("Temporary failure");
+                              }
+                            }))
+            .submitter(Submitter.withExecutor(singleThreadPool))
+            .attemptFrequency(Duration.ofHours(1))
+            .quickRetries(1)
+            .quickRetryDelay(Duration.ofSeconds(1))
+            .listener(new LatchListener(latch))
+            .build();
+
+    clearOutbox();
+
+    transactionManager.inTransaction(
+        () -> outbox.schedule(InterfaceProcessor.class).process(3, "Whee"));
+    assertTrue(failed.await(15, SECONDS));
+    Thread.sleep(250);
+    assertFalse(outbox.flush());
+
+    assertTrue(latch.await(15, SECONDS));
+    assertEquals(2, attempts.get());
+  }
+
   @Test
   final void flushOnlyASpecifiedTopic() throws Exception {
     TransactionManager transactionManager = txManager();
@@ -560,6 +632,159 @@ public abstract class AbstractAcceptanceTest extends BaseTest {
     assertEquals(0, failures.size());
   }
 
+  @Test
+  final void orderedDispatchLanesProcessWithoutFlush() throws Exception {
+    int countPerTopic = 10;
+    int topicCount = 3;
+    TransactionManager transactionManager = txManager();
+    CountDownLatch latch = new CountDownLatch(countPerTopic * topicCount);
+    Map<String, List<Integer>> processed = new ConcurrentHashMap<>();
+    TransactionOutbox outbox =
+        TransactionOutbox.builder()
+            .transactionManager(transactionManager)
+            .persistor(Persistor.forDialect(connectionDetails().dialect()))
+            .instantiator(
+                Instantiator.using(
+                    clazz ->
+                        (InterfaceProcessor)
+                            (foo, bar) ->
+                                processed
+                                    .computeIfAbsent(bar, k -> new CopyOnWriteArrayList<>())
+                                    .add(foo)))
+            .submitter(Submitter.withExecutor(singleThreadPool))
+            .attemptFrequency(Duration.ofHours(1))
+            .orderedDispatchLanes(2)
+            .listener(new LatchListener(latch))
+            .build();
+
+    clearOutbox();
+
+    transactionManager.inTransaction(
+        () -> {
+          for (int i = 1; i <= countPerTopic; i++) {
+            for (int j = 1; j <= topicCount; j++) {
+              outbox
+                  .with()
+                  .ordered("topic" + j)
+                  .schedule(InterfaceProcessor.class)
+                  .process(i, "topic" + j);
+            }
+          }
+        });
+
+    // No flusher is running, so everything must have been dispatched on commit
+    assertTrue(latch.await(15, SECONDS));
+    var indexes = IntStream.range(1, countPerTopic + 1).boxed().collect(toList());
+    for (int j = 1; j <= topicCount; j++) {
+      assertEquals(indexes, processed.get("topic" + j));
+    }
+  }
+
+  /**
+   * Dispatches slow tasks in several topics to ordered lanes for a handler limited to one at a
+   * time. Ensures that the lanes respect the limit and that the deferred tasks are picked up later.
+   */
+  @Test
+  final void orderedDispatchLanesRespectConcurrencyLimits() throws Exception {
+    int topicCount = 4;
+    TransactionManager transactionManager = txManager();
+    CountDownLatch latch = new CountDownLatch(topicCount);
+    AtomicInteger running = new AtomicInteger();
+    AtomicInteger maxRunning = new AtomicInteger();
+    TransactionOutbox outbox =
+        TransactionOutbox.builder()
+            .transactionManager(transactionManager)
+            .persistor(Persistor.forDialect(connectionDetails().dialect()))
+            .instantiator(
+                Instantiator.using(
+                    clazz ->
+                        (InterfaceProcessor)
+                            (foo, bar) -> {
+                              maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                              try {
+                                Thread.sleep(100);
+                              } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                              } finally {
+                                running.decrementAndGet();
+                              }
+                            }))
+            .submitter(Submitter.withExecutor(singleThreadPool))
+            .orderedDispatchLanes(topicCount)
+            .concurrencyLimits(Map.of(InterfaceProcessor.class.getName(), 1))
+            .listener(new LatchListener(latch))
+            .build();
+
+    clearOutbox();
+
+    withRunningFlusher(
+        outbox,
+        () -> {
+          transactionManager.inTransaction(
+              () -> {
+                for (int j = 1; j <= topicCount; j++) {
+                  outbox
+                      .with()
+                      .ordered("topic" + j)
+                      .schedule(InterfaceProcessor.class)
+                      .process(j, "topic" + j);
+                }
+              });
+          assertTrue(latch.await(15, SECONDS));
+        });
+    assertEquals(1, maxRunning.get());
+  }
+
+  /**
+   * Fails a task dispatched to an ordered lane, opening the circuit breaker for its handler.
+   * Ensures that a task for the same handler in another topic is then left in the database rather
+   * than dispatched.
+   */
+  @Test
+  final void orderedDispatchLanesRespectCircuitBreakers() throws Exception {
+    TransactionManager transactionManager = txManager();
+    CountDownLatch failed = new CountDownLatch(1);
+    AtomicInteger attempts = new AtomicInteger();
+    TransactionOutbox outbox =
+        TransactionOutbox.builder()
+            .transactionManager(transactionManager)
+            .persistor(Persistor.forDialect(connectionDetails().dialect()))
+            .instantiator(
+                Instantiator.using(
+                    clazz ->
+                        (InterfaceProcessor)
+                            (foo, bar) -> {
+                              attempts.incrementAndGet();
+                              throw new RuntimeException("Temporary failure");
+                            }))
+            .submitter(Submitter.withExecutor(singleThreadPool))
+            .attemptFrequency(Duration.ofHours(1))
+            .orderedDispatchLanes(2)
+            .circuitBreakerThreshold(1)
+            .circuitBreakerOpenDuration(Duration.ofHours(1))
+            .listener(
+                new TransactionOutboxListener() {
+                  @Override
+                  public void failure(TransactionOutboxEntry entry, Throwable cause) {
+                    failed.countDown();
+                  }
+                })
+            .build();
+
+    clearOutbox();
+
+    transactionManager.inTransaction(
+        () -> outbox.with().ordered("topic1").schedule(InterfaceProcessor.class).process(1, "1"));
+    assertTrue(failed.await(15, SECONDS));
+
+    // The breaker is told of the failure straight after our listener
+    Thread.sleep(100);
+    transactionManager.inTransaction(
+        () -> outbox.with().ordered("topic2").schedule(InterfaceProcessor.class).process(2, "2"));
+    Thread.sleep(500);
+    assertEquals(1, attempts.get());
+  }
+
   @Test
   final void onSchedulingFailure_BubbleExceptionsUp() throws Exception {
     Assumptions.assumeTrue(
@@ -693,6 +918,816 @@ public abstract class AbstractAcceptanceTest extends BaseTest {
         singleThreadPool);
   }
 
+  @Test
+  final void nonTransactionalHandlers() throws Exception {
+    ThreadLocalContextTransactionManager transactionManager =
+        (ThreadLocalContextTransactionManager) txManager();
+    CountDownLatch latch = new CountDownLatch(1);
+    TransactionOutbox outbox =
+        TransactionOutbox.builder()
+            .transactionManager(transactionManager)
+            .persistor(Persistor.forDialect(connectionDetails().dialect()))
+            .instantiator(
+                Instantiator.using(clazz -> new NonTransactionalProcessor(transactionManager)))
+            .submitter(Submitter.withExecutor(singleThreadPool))
+            .attemptFrequency(Duration.ofHours(1))
+            .listener(new LatchListener(latch))
+            .build();
+
+    clearOutbox();
+    NonTransactionalProcessor.IN_TRANSACTION.clear();
+
+    transactionManager.inTransaction(
+        () -> outbox.schedule(NonTransactionalProcessor.class).process("1"));
+    assertTrue(latch.await(15, SECONDS));
+    assertEquals(List.of(false), NonTransactionalProcessor.IN_TRANSACTION);
+    assertFalse(outbox.flush());
+  }
+
+  /**
+   * Runs two asynchronous tasks on a single worker thread, which is only possible if the thread is
+   * released when each handler returns, then completes them.
+   */
+  @Test
+  final void asyncHandlers() throws Exception {
+    TransactionManager transactionManager = txManager();
+    CountDownLatch latch = new CountDownLatch(2);
+    TransactionOutbox outbox =
+        TransactionOutbox.builder()
+            .transactionManager(transactionManager)
+            .persistor(Persistor.forDialect(connectionDetails().dialect()))
+            .instantiator(Instantiator.using(clazz -> new AsyncProcessor()))
+            .submitter(Submitter.withExecutor(singleThreadPool))
+            .attemptFrequency(Duration.ofHours(1))
+            .listener(new LatchListener(latch))
+            .build();
+
+    clearOutbox();
+    AsyncProcessor.PENDING.clear();
+
+    transactionManager.inTransaction(
+        () -> {
+          outbox.schedule(AsyncProcessor.class).process("1");
+          outbox.schedule(AsyncProcessor.class).process("2");
+        });
+    var first = AsyncProcessor.PENDING.poll(15, SECONDS);
+    var second = AsyncProcessor.PENDING.poll(15, SECONDS);
+    assertNotNull(first);
+    assertNotNull(second);
+    assertEquals(2, latch.getCount());
+
+    first.complete(null);
+    second.complete(null);
+    assertTrue(latch.await(15, SECONDS));
+    assertFalse(outbox.flush());
+  }
+
+  /**
+   * Queues more tasks for a {@link Batchable} method than its maximum batch size, then picks them
+   * up in a single flush. Ensures that they are processed in groups of no more than the maximum.
+   */
+  @Test
+  final void batchableTasksCoalescedOnFlush() throws Exception {
+    int count = 7;
+    TransactionManager transactionManager = txManager();
+    CountDownLatch latch = new CountDownLatch(count);
+    TransactionOutbox outbox =
+        TransactionOutbox.builder()
+            .transactionManager(transactionManager)
+            .persistor(Persistor.forDialect(connectionDetails().dialect()))
+            .instantiator(Instantiator.using(clazz -> new BatchableProcessor()))
+            .submitter(Submitter.withExecutor(singleThreadPool))
+            .attemptFrequency(Duration.ofMillis(200))
+            .listener(new LatchListener(latch))
+            .build();
+
+    clearOutbox();
+    BatchableProcessor.CALLS.clear();
+    BatchableProcessor.FAILURES.set(0);
+
+    // Delay them all for flush to pick up together, rather than submitting them on commit
+    transactionManager.inTransaction(
+        () -> {
+          for (int i = 1; i <= count; i++) {
+            outbox
+                .with()
+                .delayForAtLeast(Duration.ofMillis(200))
+                .schedule(BatchableProcessor.class)
+                .process(Integer.toString(i));
+          }
+        });
+    Thread.sleep(300);
+    assertTrue(outbox.flush());
+    assertTrue(latch.await(15, SECONDS));
+
+    assertEquals(
+        List.of(1, 3, 3),
+        BatchableProcessor.CALLS.stream().map(List::size).sorted().collect(toList()));
+    assertThat(
+        BatchableProcessor.CALLS.stream().flatMap(List::stream).collect(toList()),
+        containsInAnyOrder("1", "2", "3", "4", "5", "6", "7"));
+    assertFalse(outbox.flush());
+  }
+
+  /**
+   * Fails a call to a {@link Batchable} method's bulk method. Ensures that the attempt is recorded
+   * against every task in the group, and that they are retried together.
+   */
+  @Test
+  final void batchableTasksFailTogether() throws Exception {
+    int count = 3;
+    TransactionManager transactionManager = txManager();
+    CountDownLatch failed = new CountDownLatch(count);
+    CountDownLatch succeeded = new CountDownLatch(count);
+    Map<String, Integer> attemptsOnSuccess = new ConcurrentHashMap<>();
+    TransactionOutbox outbox =
+        TransactionOutbox.builder()
+            .transactionManager(transactionManager)
+            .persistor(Persistor.forDialect(connectionDetails().dialect()))
+            .instantiator(Instantiator.using(clazz -> new BatchableProcessor()))
+            .submitter(Submitter.withExecutor(singleThreadPool))
+            .attemptFrequency(Duration.ofMillis(200))
+            .listener(
+                new TransactionOutboxListener() {
+                  @Override
+                  public void success(TransactionOutboxEntry entry) {
+                    attemptsOnSuccess.put(
+                        (String) entry.getInvocation().getArgs()[0], entry.getAttempts());
+                    succeeded.countDown();
+                  }
+
+                  @Override
+                  public void failure(TransactionOutboxEntry entry, Throwable cause) {
+                    failed.countDown();
+                  }
+                })
+            .build();
+
+    clearOutbox();
+    BatchableProcessor.CALLS.clear();
+    BatchableProcessor.FAILURES.set(1);
+
+    transactionManager.inTransaction(
+        () -> {
+          for (int i = 1; i <= count; i++) {
+            outbox
+                .with()
+                .delayForAtLeast(Duration.ofMillis(200))
+                .schedule(BatchableProcessor.class)
+                .process(Integer.toString(i));
+          }
+        });
+    Thread.sleep(300);
+    assertTrue(outbox.flush());
+    assertTrue(failed.await(15, SECONDS));
+    assertEquals(List.of(), BatchableProcessor.CALLS);
+
+    Thread.sleep(300);
+    assertTrue(outbox.flush());
+    assertTrue(succeeded.await(15, SECONDS));
+    assertEquals(List.of(List.of("1", "2", "3")), BatchableProcessor.CALLS);
+    assertEquals(Map.of("1", 1, "2", 1, "3", 1), attemptsOnSuccess);
+  }
+
+  /**
+   * Schedules tasks for a {@link Batchable} method in separate transactions with a coalesce window.
+   * Ensures that they are processed in groups, up to the maximum batch size, without waiting for a
+   * flush.
+   */
+  @Test
+  final void batchableTasksCoalescedAfterCommit() throws Exception {
+    int count = 5;
+    TransactionManager transactionManager = txManager();
+    CountDownLatch latch = new CountDownLatch(count);
+    TransactionOutbox outbox =
+        TransactionOutbox.builder()
+            .transactionManager(transactionManager)
+            .persistor(Persistor.forDialect(connectionDetails().dialect()))
+            .instantiator(Instantiator.using(clazz -> new BatchableProcessor()))
+            .submitter(Submitter.withExecutor(singleThreadPool))
+            .attemptFrequency(Duration.ofHours(1))
+            .coalesceWindow(Duration.ofSeconds(2))
+            .listener(new LatchListener(latch))
+            .build();
+
+    clearOutbox();
+    BatchableProcessor.CALLS.clear();
+    BatchableProcessor.FAILURES.set(0);
+
+    for (int i = 1; i <= count; i++) {
+      var itemId = Integer.toString(i);
+      transactionManager.inTransaction(
+          () -> outbox.schedule(BatchableProcessor.class).process(itemId));
+    }
+
+    // No flusher is running, so the remainder must be released when the window closes
+    assertTrue(latch.await(15, SECONDS));
+    assertEquals(List.of(List.of("1", "2", "3"), List.of("4", "5")), BatchableProcessor.CALLS);
+  }
+
+  @Test
+  final void asyncHandlerTimeout() throws Exception {
+    TransactionManager transactionManager = txManager();
+    CountDownLatch successLatch = new CountDownLatch(1);
+    CountDownLatch blockedLatch = new CountDownLatch(1);
+    TransactionOutbox outbox =
+        TransactionOutbox.builder()
+            .transactionManager(transactionManager)
+            .persistor(Persistor.forDialect(connectionDetails().dialect()))
+            .instantiator(Instantiator.using(clazz -> new AsyncProcessor()))
+            .submitter(Submitter.withExecutor(singleThreadPool))
+            .attemptFrequency(Duration.ofHours(1))
+            .asyncHandlerTimeout(Duration.ofMillis(200))
+            .blockAfterAttempts(1)
+            .listener(new LatchListener(successLatch, blockedLatch))
+            .build();
+
+    clearOutbox();
+    AsyncProcessor.PENDING.clear();
+
+    transactionManager.inTransaction(() -> outbox.schedule(AsyncProcessor.class).process("1"));
+    assertTrue(blockedLatch.await(15, SECONDS));
+    assertEquals(1, successLatch.getCount());
+  }
+
+  @Test
+  final void handlerTimeout() throws Exception {
+    TransactionManager transactionManager = txManager();
+    CountDownLatch successLatch = new CountDownLatch(1);
+    CountDownLatch blockedLatch = new CountDownLatch(1);
+    AtomicBoolean interrupted = new AtomicBoolean();
+    AtomicReference<Throwable> failure = new AtomicReference<>();
+    TransactionOutbox outbox =
+        TransactionOutbox.builder()
+            .transactionManager(transactionManager)
+            .persistor(Persistor.forDialect(connectionDetails().dialect()))
+            .instantiator(
+                Instantiator.using(
+                    clazz ->
+                        (InterfaceProcessor)
+                            (foo, bar) -> {
+                              try {
+                                Thread.sleep(30_000);
+                              } catch (InterruptedException e) {
+                                interrupted.set(true);
+                                throw new RuntimeException(e);
+                              }
+                            }))
+            .submitter(Submitter.withExecutor(singleThreadPool))
+            .attemptFrequency(Duration.ofHours(1))
+            .handlerTimeouts(Map.of(InterfaceProcessor.class.getName(), Duration.ofMillis(200)))
+            .blockAfterAttempts(1)
+            .listener(
+                new LatchListener(successLatch, blockedLatch)
+                    .andThen(
+                        new TransactionOutboxListener() {
+                          @Override
+                          public void failure(TransactionOutboxEntry entry, Throwable cause) {
+                            failure.set(cause);
+                          }
+                        }))
+            .build();
+
+    clearOutbox();
+
+    transactionManager.inTransaction(
+        () -> outbox.schedule(InterfaceProcessor.class).process(3, "Whee"));
+    assertTrue(blockedLatch.await(15, SECONDS));
+    assertTrue(interrupted.get());
+    assertTrue(failure.get() instanceof TimeoutException);
+    assertEquals(1, successLatch.getCount());
+  }
+
+  /**
+   * Holds up the only worker thread while tasks are submitted, so that they queue up, then checks
+   * that they were all processed in a single transaction.
+   */
+  @Test
+  final void groupCommit() throws Exception {
+    ThreadLocalContextTransactionManager transactionManager =
+        (ThreadLocalContextTransactionManager) txManager();
+    int count = 10;
+    CountDownLatch latch = new CountDownLatch(count);
+    Set<Transaction> transactions = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    TransactionOutbox outbox =
+        TransactionOutbox.builder()
+            .transactionManager(transactionManager)
+            .persistor(Persistor.forDialect(connectionDetails().dialect()))
+            .instantiator(
+                Instantiator.using(
+                    clazz ->
+                        (InterfaceProcessor)
+                            (foo, bar) ->
+                                transactions.add(
+                                    transactionManager.requireTransactionReturns(tx -> tx))))
+            .submitter(Submitter.withExecutor(singleThreadPool))
+            .attemptFrequency(Duration.ofHours(1))
+            .groupCommitSize(count)
+            .listener(new LatchListener(latch))
+            .build();
+
+    clearOutbox();
+
+    CountDownLatch gate = new CountDownLatch(1);
+    singleThreadPool.execute(
+        () -> {
+          try {
+            gate.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        });
+    transactionManager.inTransaction(
+        () -> {
+          for (int i = 0; i < count; i++) {
+            outbox.schedule(InterfaceProcessor.class).process(i, "Whee");
+          }
+        });
+    gate.countDown();
+
+    assertTrue(latch.await(15, SECONDS));
+    assertEquals(1, transactions.size());
+    assertFalse(outbox.flush());
+  }
+
+  /**
+   * Fails one of a group of tasks processed in a single transaction, and checks that the failed
+   * task is pushed back by the attempt frequency rather than being due again straight away.
+   */
+  @Test
+  final void groupCommitFailuresArePushedBack() throws Exception {
+    TransactionManager transactionManager = txManager();
+    int count = 5;
+    CountDownLatch successLatch = new CountDownLatch(count - 1);
+    CountDownLatch failureLatch = new CountDownLatch(1);
+    AtomicReference<Clock> clock = new AtomicReference<>(Clock.systemUTC());
+    TransactionOutbox outbox =
+        TransactionOutbox.builder()
+            .transactionManager(transactionManager)
+            .persistor(Persistor.forDialect(connectionDetails().dialect()))
+            .instantiator(
+                Instantiator.using(
+                    clazz ->
+                        (InterfaceProcessor)
+                            (foo, bar) -> {
+                              if (foo == 0) {
+                                throw new IllegalStateException("Failed");
+                              }
+                            }))
+            .submitter(Submitter.withExecutor(singleThreadPool))
+            .attemptFrequency(Duration.ofHours(1))
+            .clockProvider(clock::get)
+            .groupCommitSize(count)
+            .listener(
+                new LatchListener(successLatch)
+                    .andThen(
+                        new TransactionOutboxListener() {
+                          @Override
+                          public void failure(TransactionOutboxEntry entry, Throwable cause) {
+                            failureLatch.countDown();
+                          }
+                        }))
+            .build();
+
+    clearOutbox();
+
+    CountDownLatch gate = new CountDownLatch(1);
+    singleThreadPool.execute(
+        () -> {
+          try {
+            gate.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        });
+    transactionManager.inTransaction(
+        () -> {
+          for (int i = 0; i < count; i++) {
+            outbox.schedule(InterfaceProcessor.class).process(i, "Whee");
+          }
+        });
+    gate.countDown();
+
+    assertTrue(successLatch.await(15, SECONDS));
+    assertTrue(failureLatch.await(15, SECONDS));
+    assertFalse(outbox.flush());
+
+    clock.set(Clock.offset(Clock.systemUTC(), Duration.ofHours(2)));
+    assertTrue(outbox.flush());
+  }
+
+  /**
+   * Holds up the only worker thread while a task is scheduled, and checks that flushing leaves the
+   * task to the post-commit submission rather than claiming it too.
+   */
+  @Test
+  final void postCommitGracePeriod() throws Exception {
+    TransactionManager transactionManager = txManager();
+    CountDownLatch latch = new CountDownLatch(1);
+    AtomicInteger attempts = new AtomicInteger();
+    TransactionOutbox outbox =
+        TransactionOutbox.builder()
+            .transactionManager(transactionManager)
+            .persistor(Persistor.forDialect(connectionDetails().dialect()))
+            .instantiator(
+                Instantiator.using(
+                    clazz -> (InterfaceProcessor) (foo, bar) -> attempts.incrementAndGet()))
+            .submitter(Submitter.withExecutor(singleThreadPool))
+            .attemptFrequency(Duration.ofHours(1))
+            .postCommitGracePeriod(Duration.ofMinutes(1))
+            .listener(new LatchListener(latch))
+            .build();
+
+    clearOutbox();
+
+    CountDownLatch gate = new CountDownLatch(1);
+    singleThreadPool.execute(
+        () -> {
+          try {
+            gate.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        });
+    transactionManager.inTransaction(
+        () -> outbox.schedule(InterfaceProcessor.class).process(3, "Whee"));
+    assertFalse(outbox.flush());
+    gate.countDown();
+
+    assertTrue(latch.await(15, SECONDS));
+    assertEquals(1, attempts.get());
+  }
+
+  /**
+   * Claims a task on one instance which never gets around to running it, then shuts that instance
+   * down. Ensures that the task is released and picked up by another instance straight away rather
+   * than after the attempt frequency.
+   */
+  @Test
+  final void shutdownReleasesClaimedTasks() throws Exception {
+    TransactionManager transactionManager = txManager();
+    Instantiator instantiator =
+        Instantiator.using(
+            clazz ->
+                (InterfaceProcessor) (foo, bar) -> LOGGER.info("Processing ({}, {})", foo, bar));
+    TransactionOutbox stalled =
+        TransactionOutbox.builder()
+            .transactionManager(transactionManager)
+            .persistor(Persistor.forDialect(connectionDetails().dialect()))
+            .instantiator(instantiator)
+            .submitter((entry, localExecutor) -> {})
+            .attemptFrequency(Duration.ofHours(1))
+            .build();
+
+    clearOutbox();
+
+    transactionManager.inTransaction(
+        () -> stalled.schedule(InterfaceProcessor.class).process(3, "Whee"));
+    assertFalse(stalled.flush());
+    assertFalse(stalled.shutdown(Duration.ofMillis(100)));
+    assertFalse(stalled.flush());
+
+    CountDownLatch latch = new CountDownLatch(1);
+    TransactionOutbox outbox =
+        TransactionOutbox.builder()
+            .transactionManager(transactionManager)
+            .persistor(Persistor.forDialect(connectionDetails().dialect()))
+            .instantiator(instantiator)
+            .submitter(Submitter.withExecutor(singleThreadPool))
+            .attemptFrequency(Duration.ofHours(1))
+            .listener(new LatchListener(latch))
+            .build();
+    withRunningFlusher(outbox, () -> assertTrue(latch.await(15, SECONDS)));
+  }
+
+  /**
+   * Processes ordered batches with failures isolated, where one task in one topic fails once.
+   * Ensures that only the failing task's attempts increase, that the tasks before it and in other
+   * topics are processed on their first attempt, and that the tasks after it wait for it to
+   * succeed.
+   */
+  @Test
+  final void batchSequencingWithIsolatedFailures() throws Exception {
+    int countPerTopic = 3;
+    TransactionManager transactionManager = txManager();
+    CountDownLatch latch = new CountDownLatch(countPerTopic * 2);
+    AtomicBoolean failedOnce = new AtomicBoolean();
+    Map<String, Integer> attemptsOnSuccess = new ConcurrentHashMap<>();
+    List<String> failures = new CopyOnWriteArrayList<>();
+    List<String> order = new CopyOnWriteArrayList<>();
+    TransactionOutbox outbox =
+        TransactionOutbox.builder()
+            .transactionManager(transactionManager)
+            .persistor(Persistor.forDialect(connectionDetails().dialect()))
+            .instantiator(
+                Instantiator.using(
+                    clazz ->
+                        (InterfaceProcessor)
+                            (foo, bar) -> {
+                              if (bar.equals("a")
+                                  && foo == 2
+                                  && failedOnce.compareAndSet(false, true)) {
+                                throw new RuntimeException("Temporary failure");
+                              }
+                              order.add(bar + foo);
+                            }))
+            .submitter(Submitter.withExecutor(singleThreadPool))
+            .attemptFrequency(Duration.ofMillis(500))
+            .useOrderedBatchProcessing(true)
+            .isolateBatchFailures(true)
+            .listener(
+                new TransactionOutboxListener() {
+                  @Override
+                  public void success(TransactionOutboxEntry entry) {
+                    attemptsOnSuccess.put(key(entry), entry.getAttempts());
+                    latch.countDown();
+                  }
+
+                  @Override
+                  public void failure(TransactionOutboxEntry entry, Throwable cause) {
+                    failures.add(key(entry));
+                  }
+
+                  private String key(TransactionOutboxEntry entry) {
+                    var args = entry.getInvocation().getArgs();
+                    return args[1] + "" + args[0];
+                  }
+                })
+            .build();
+
+    clearOutbox();
+
+    transactionManager.inTransaction(
+        () -> {
+          for (int i = 1; i <= countPerTopic; i++) {
+            outbox.with().ordered("a").schedule(InterfaceProcessor.class).process(i, "a");
+            outbox.with().ordered("b").schedule(InterfaceProcessor.class).process(i, "b");
+          }
+        });
+    withRunningFlusher(outbox, () -> assertTrue(latch.await(15, SECONDS)));
+
+    assertEquals(List.of("a2"), failures);
+    assertEquals(Map.of("a1", 0, "a2", 1, "a3", 0, "b1", 0, "b2", 0, "b3", 0), attemptsOnSuccess);
+    assertEquals(
+        List.of("a1", "a2", "a3"),
+        order.stream().filter(it -> it.startsWith("a")).collect(toList()));
+  }
+
+  /**
+   * Processes ordered batches with topics shared out between nodes, using a pool of a single
+   * connection. Ensures that renewing the node's lease does not need a second connection while the
+   * batch is being selected.
+   */
+  @Test
+  final void batchSequencingWithTopicLeasesOnSingleConnection() throws Exception {
+    int countPerTopic = 5;
+    int topicCount = 3;
+    CountDownLatch latch = new CountDownLatch(countPerTopic * topicCount);
+    Map<String, List<Integer>> output = new ConcurrentHashMap<>();
+
+    // Migrations need two connections at once, so run them up front
+    Persistor.forDialect(connectionDetails().dialect()).migrate(txManager());
+
+    try (PooledConnectionProvider pool =
+        PooledConnectionProvider.builder()
+            .driverClassName(connectionDetails().driverClassName())
+            .url(connectionDetails().url())
+            .user(connectionDetails().user())
+            .password(connectionDetails().password())
+            .maxPoolSize(1)
+            .connectionTimeout(Duration.ofSeconds(5))
+            .build()) {
+      ThreadLocalContextTransactionManager transactionManager =
+          TransactionManager.fromConnectionProvider(pool);
+      TransactionOutbox outbox =
+          TransactionOutbox.builder()
+              .transactionManager(transactionManager)
+              .persistor(
+                  DefaultPersistor.builder()
+                      .dialect(connectionDetails().dialect())
+                      .migrate(false)
+                      .build())
+              .instantiator(
+                  Instantiator.using(
+                      clazz ->
+                          (InterfaceProcessor)
+                              (foo, bar) ->
+                                  output
+                                      .computeIfAbsent(bar, k -> new CopyOnWriteArrayList<>())
+                                      .add(foo)))
+              .submitter(Submitter.withExecutor(singleThreadPool))
+              .attemptFrequency(Duration.ofSeconds(30))
+              .listener(new LatchListener(latch))
+              .useOrderedBatchProcessing(true)
+              .topicLeaseDuration(Duration.ofSeconds(30))
+              .build();
+
+      clearOutbox();
+
+      transactionManager.inTransaction(
+          () -> {
+            for (int i = 1; i <= countPerTopic; i++) {
+              for (int j = 1; j <= topicCount; j++) {
+                outbox
+                    .with()
+                    .ordered("topic" + j)
+                    .schedule(InterfaceProcessor.class)
+                    .process(i, "topic" + j);
+              }
+            }
+          });
+      withRunningFlusher(outbox, () -> assertTrue(latch.await(15, SECONDS)));
+    }
+    var indexes = IntStream.range(1, countPerTopic + 1).boxed().collect(toList());
+    for (int j = 1; j <= topicCount; j++) {
+      assertEquals(indexes, output.get("topic" + j));
+    }
+  }
+
+  /**
+   * Shuts down while a handler is hung. Ensures that the handler timeout still fires during the
+   * drain, so that shutdown completes promptly rather than waiting out its own timeout and handing
+   * the still-running task to another instance.
+   */
+  @Test
+  final void shutdownWaitsForHandlerTimeouts() throws Exception {
+    TransactionManager transactionManager = txManager();
+    CountDownLatch started = new CountDownLatch(1);
+    AtomicBoolean interrupted = new AtomicBoolean();
+    TransactionOutbox outbox =
+        TransactionOutbox.builder()
+            .transactionManager(transactionManager)
+            .persistor(Persistor.forDialect(connectionDetails().dialect()))
+            .instantiator(
+                Instantiator.using(
+                    clazz ->
+                        (InterfaceProcessor)
+                            (foo, bar) -> {
+                              started.countDown();
+                              try {
+                                Thread.sleep(30_000);
+                              } catch (InterruptedException e) {
+                                interrupted.set(true);
+                                throw new RuntimeException(e);
+                              }
+                            }))
+            .submitter(Submitter.withExecutor(singleThreadPool))
+            .attemptFrequency(Duration.ofHours(1))
+            .handlerTimeouts(Map.of(InterfaceProcessor.class.getName(), Duration.ofMillis(500)))
+            .build();
+
+    clearOutbox();
+
+    transactionManager.inTransaction(
+        () -> outbox.schedule(InterfaceProcessor.class).process(3, "Whee"));
+    assertTrue(started.await(15, SECONDS));
+    long start = System.nanoTime();
+    assertTrue(outbox.shutdown(Duration.ofSeconds(20)));
+    assertTrue(Duration.ofNanos(System.nanoTime() - start).toSeconds() < 10);
+    assertTrue(interrupted.get());
+  }
+
+  /**
+   * Holds up the only worker thread while a task is scheduled, then flushes before the worker picks
+   * it up. Ensures that the flush leaves the claimed task alone and that it is processed exactly
+   * once by the worker.
+   */
+  @Test
+  final void flushLeavesClaimedTasks() throws Exception {
+    TransactionManager transactionManager = txManager();
+    CountDownLatch latch = new CountDownLatch(1);
+    AtomicInteger invocations = new AtomicInteger();
+    TransactionOutbox outbox =
+        TransactionOutbox.builder()
+            .transactionManager(transactionManager)
+            .persistor(Persistor.forDialect(connectionDetails().dialect()))
+            .instantiator(
+                Instantiator.using(
+                    clazz -> (InterfaceProcessor) (foo, bar) -> invocations.incrementAndGet()))
+            .submitter(Submitter.withExecutor(singleThreadPool))
+            .attemptFrequency(Duration.ofHours(1))
+            .listener(new LatchListener(latch))
+            .build();
+
+    clearOutbox();
+
+    CountDownLatch gate = new CountDownLatch(1);
+    singleThreadPool.execute(
+        () -> {
+          try {
+            gate.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        });
+    transactionManager.inTransaction(
+        () -> outbox.schedule(InterfaceProcessor.class).process(1, "Whee"));
+    assertFalse(outbox.flush());
+    gate.countDown();
+
+    assertTrue(latch.await(15, SECONDS));
+    assertFalse(outbox.flush());
+    assertEquals(1, invocations.get());
+  }
+
+  /**
+   * Runs several slow tasks for a handler limited to one at a time on a multithreaded submitter.
+   * Ensures that they never run concurrently and that the deferred tasks are picked up later.
+   */
+  @Test
+  final void concurrencyLimits() throws Exception {
+    int count = 4;
+    TransactionManager transactionManager = txManager();
+    CountDownLatch latch = new CountDownLatch(count);
+    AtomicInteger running = new AtomicInteger();
+    AtomicInteger maxRunning = new AtomicInteger();
+    ExecutorService pool = Executors.newFixedThreadPool(count);
+    try {
+      TransactionOutbox outbox =
+          TransactionOutbox.builder()
+              .transactionManager(transactionManager)
+              .persistor(Persistor.forDialect(connectionDetails().dialect()))
+              .instantiator(
+                  Instantiator.using(
+                      clazz ->
+                          (InterfaceProcessor)
+                              (foo, bar) -> {
+                                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                                try {
+                                  Thread.sleep(100);
+                                } catch (InterruptedException e) {
+                                  Thread.currentThread().interrupt();
+                                } finally {
+                                  running.decrementAndGet();
+                                }
+                              }))
+              .submitter(Submitter.withExecutor(pool))
+              .concurrencyLimits(Map.of(InterfaceProcessor.class.getName() + ".process", 1))
+              .listener(new LatchListener(latch))
+              .build();
+
+      clearOutbox();
+
+      withRunningFlusher(
+          outbox,
+          () -> {
+            transactionManager.inTransaction(
+                () -> {
+                  for (int i = 0; i < count; i++) {
+                    outbox.schedule(InterfaceProcessor.class).process(i, "Whee");
+                  }
+                });
+            assertTrue(latch.await(15, SECONDS));
+          },
+          singleThreadPool);
+      assertEquals(1, maxRunning.get());
+    } finally {
+      pool.shutdown();
+      assertTrue(pool.awaitTermination(30, SECONDS));
+    }
+  }
+
+  /**
+   * Schedules a burst of tasks for a rate-limited handler. Ensures that they are spread out to
+   * match the limit and that the deferred tasks are picked up later without failing.
+   */
+  @Test
+  final void rateLimits() throws Exception {
+    int count = 6;
+    TransactionManager transactionManager = txManager();
+    CountDownLatch latch = new CountDownLatch(count);
+    AtomicInteger attempts = new AtomicInteger();
+    TransactionOutbox outbox =
+        TransactionOutbox.builder()
+            .transactionManager(transactionManager)
+            .persistor(Persistor.forDialect(connectionDetails().dialect()))
+            .instantiator(
+                Instantiator.using(
+                    clazz -> (InterfaceProcessor) (foo, bar) -> attempts.incrementAndGet()))
+            .submitter(Submitter.withExecutor(unreliablePool))
+            .rateLimits(Map.of(InterfaceProcessor.class.getName(), 2.0))
+            .listener(new LatchListener(latch))
+            .build();
+
+    clearOutbox();
+
+    long start = System.nanoTime();
+    withRunningFlusher(
+        outbox,
+        () -> {
+          transactionManager.inTransaction(
+              () -> {
+                for (int i = 0; i < count; i++) {
+                  outbox.schedule(InterfaceProcessor.class).process(i, "Whee");
+                }
+              });
+          assertTrue(latch.await(15, SECONDS));
+        },
+        singleThreadPool);
+    assertTrue(Duration.ofNanos(System.nanoTime() - start).toMillis() >= 1500);
+    assertEquals(count, attempts.get());
+  }
+
   /** Hammers high-volume, frequently failing tasks to ensure that they all get run. */
   @Test
   final void highVolumeUnreliable() throws Exception {
@@ -10,7 +10,10 @@ import java.io.IOException;
 import java.math.BigDecimal;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.*;
+import java.util.stream.Collectors;
 import lombok.extern.slf4j.Slf4j;
 import org.hamcrest.Description;
 import org.hamcrest.TypeSafeMatcher;
@@ -21,7 +24,7 @@ import org.junit.jupiter.api.Test;
 @Slf4j
 public abstract class AbstractPersistorTest {
 
-  private final Instant now = Instant.now().truncatedTo(ChronoUnit.SECONDS);
+  protected final Instant now = Instant.now().truncatedTo(ChronoUnit.SECONDS);
 
   protected abstract Dialect dialect();
 
@@ -153,6 +156,81 @@ public abstract class AbstractPersistorTest {
             tx -> assertThat(persistor().selectBatch(tx, 3, now.plusMillis(1)), hasSize(2)));
   }
 
+  @Test
+  public void testBatchDueBetween() throws Exception {
+    txManager()
+        .inTransactionThrows(
+            tx -> {
+              persistor().save(tx, createEntry("FOO1", now, false));
+              persistor().save(tx, createEntry("FOO2", now.plusSeconds(10), false));
+              persistor().save(tx, createEntry("FOO3", now.plusSeconds(20), false));
+              persistor().save(tx, createEntry("FOO4", now.plusSeconds(30), false));
+            });
+    txManager()
+        .inTransactionThrows(
+            tx ->
+                assertThat(
+                    persistor()
+                        .selectBatchDueBetween(
+                            tx, null, 10, now.plusSeconds(10), now.plusSeconds(30))
+                        .stream()
+                        .map(TransactionOutboxEntry::getId)
+                        .collect(Collectors.toList()),
+                    containsInAnyOrder("FOO2", "FOO3")));
+  }
+
+  @Test
+  public void testBatchPriority() throws Exception {
+    var low = createEntry("LOW", now.minusSeconds(30), false);
+    var high = createEntry("HIGH", now, false).toBuilder().priority(1).build();
+    var aged = createEntry("AGED", now.minusSeconds(120), false);
+    txManager()
+        .inTransactionThrows(
+            tx -> {
+              persistor().save(tx, low);
+              persistor().save(tx, high);
+              persistor().save(tx, aged);
+            });
+    txManager()
+        .inTransactionThrows(
+            tx ->
+                assertThat(
+                    persistor().selectBatch(tx, 2, now.plusMillis(1)).stream()
+                        .map(TransactionOutboxEntry::getId)
+                        .collect(Collectors.toList()),
+                    containsInAnyOrder("HIGH", "AGED")));
+  }
+
+  @Test
+  public void testBatchQueues() throws Exception {
+    var fast = createEntry("FAST", now, false);
+    var slow = createEntry("SLOW", now, false).toBuilder().queue("slow").build();
+    var other = createEntry("OTHER", now, false).toBuilder().queue("other").build();
+    txManager()
+        .inTransactionThrows(
+            tx -> {
+              persistor().save(tx, fast);
+              persistor().save(tx, slow);
+              persistor().save(tx, other);
+            });
+    txManager()
+        .inTransactionThrows(
+            tx -> {
+              assertThat(
+                  persistor().selectBatchInQueues(tx, Set.of("slow"), 10, now.plusMillis(1)),
+                  contains(slow));
+              assertThat(
+                  persistor()
+                      .selectBatchInQueues(
+                          tx,
+                          Set.of(TransactionOutbox.DEFAULT_QUEUE, "other"),
+                          10,
+                          now.plusMillis(1)),
+                  containsInAnyOrder(fast, other));
+              assertThat(persistor().selectBatch(tx, 10, now.plusMillis(1)), hasSize(3));
+            });
+  }
+
   @Test
   public void testBlockedEntriesExcluded() throws Exception {
     txManager()
@@ -269,6 +347,121 @@ public abstract class AbstractPersistorTest {
             tx -> assertThrows(OptimisticLockException.class, () -> persistor().delete(tx, entry)));
   }
 
+  @Test
+  public void testNextInTopics() throws Exception {
+    var a1 = createEntry("A1", now, "A");
+    var a2 = createEntry("A2", now, "A");
+    var b1 = createEntry("B1", now, "B");
+    var c1 = createEntry("C1", now.plusSeconds(60), "C");
+    txManager()
+        .inTransactionThrows(
+            tx -> {
+              persistor().save(tx, a1);
+              persistor().save(tx, a2);
+              persistor().save(tx, b1);
+              persistor().save(tx, c1);
+            });
+    assertThat(nextInTopics(), containsInAnyOrder("A1", "B1"));
+
+    txManager().inTransactionThrows(tx -> persistor().delete(tx, a1));
+    assertThat(nextInTopics(), containsInAnyOrder("A2", "B1"));
+
+    b1.setAttempts(1);
+    b1.setNextAttemptTime(now.plusSeconds(60));
+    txManager().inTransactionThrows(tx -> persistor().update(tx, b1));
+    assertThat(nextInTopics(), contains("A2"));
+
+    a2.setProcessed(true);
+    txManager().inTransactionThrows(tx -> persistor().update(tx, a2));
+    assertThat(nextInTopics(), empty());
+
+    var a3 = createEntry("A3", now, "A");
+    txManager().inTransactionThrows(tx -> persistor().save(tx, a3));
+    assertThat(nextInTopics(), contains("A3"));
+    assertThat(
+        txManager()
+            .inTransactionReturnsThrows(
+                tx ->
+                    persistor()
+                        .selectNextInSelectedTopics(tx, List.of("B", "C"), 10, now.plusMillis(1))),
+        empty());
+  }
+
+  @Test
+  public void testNextInTopicsWithSequenceGap() throws Exception {
+    var a1 = createEntry("A1", now, "A");
+    var a2 = createEntry("A2", now, "A");
+    var a3 = createEntry("A3", now, "A");
+    txManager()
+        .inTransactionThrows(
+            tx -> {
+              persistor().save(tx, a1);
+              persistor().save(tx, a2);
+              persistor().save(tx, a3);
+            });
+
+    txManager().inTransactionThrows(tx -> persistor().delete(tx, a2));
+    assertThat(nextInTopics(), contains("A1"));
+
+    txManager().inTransactionThrows(tx -> persistor().delete(tx, a1));
+    assertThat(nextInTopics(), contains("A3"));
+
+    txManager().inTransactionThrows(tx -> persistor().delete(tx, a3));
+    assertThat(nextInTopics(), empty());
+
+    var a4 = createEntry("A4", now, "A");
+    txManager().inTransactionThrows(tx -> persistor().save(tx, a4));
+    assertThat(nextInTopics(), contains("A4"));
+  }
+
+  @Test
+  public void testParkedTopicsExcluded() throws Exception {
+    var a1 = createEntry("A1", now, "A");
+    var a2 = createEntry("A2", now, "A");
+    var b1 = createEntry("B1", now, "B");
+    txManager()
+        .inTransactionThrows(
+            tx -> {
+              persistor().save(tx, a1);
+              persistor().save(tx, a2);
+              persistor().save(tx, b1);
+            });
+
+    a1.setAttempts(3);
+    a1.setBlocked(true);
+    txManager().inTransactionThrows(tx -> persistor().update(tx, a1));
+    assertThat(nextInTopics(), contains("B1"));
+
+    txManager().inTransactionThrows(tx -> assertThat(persistor().unblock(tx, "A1"), is(true)));
+    assertThat(nextInTopics(), containsInAnyOrder("A1", "B1"));
+  }
+
+  @Test
+  public void testLockBatchPrefix() throws Exception {
+    var a1 = createEntry("A1", now, "A");
+    var a2 = createEntry("A2", now, "A");
+    var a3 = createEntry("A3", now, "A");
+    var b1 = createEntry("B1", now, "B");
+    txManager()
+        .inTransactionThrows(
+            tx -> {
+              persistor().save(tx, a1);
+              persistor().save(tx, a2);
+              persistor().save(tx, a3);
+              persistor().save(tx, b1);
+            });
+    var staleA2 = a2.toBuilder().build();
+    txManager().inTransactionThrows(tx -> persistor().update(tx, a2));
+    txManager()
+        .inTransactionThrows(
+            tx ->
+                assertThat(
+                    persistor().lockBatchPrefix(tx, List.of(a3, staleA2, b1, a1)).stream()
+                        .map(TransactionOutboxEntry::getId)
+                        .collect(Collectors.toList()),
+                    contains("A1", "B1")));
+  }
+
   @Test
   public void testLock() throws Exception {
     TransactionOutboxEntry entry = createEntry("FOO1", now, false);
@@ -433,6 +626,25 @@ public abstract class AbstractPersistorTest {
         .build();
   }
 
+  protected TransactionOutboxEntry createEntry(String id, Instant nextAttemptTime, String topic) {
+    return TransactionOutboxEntry.builder()
+        .id(id)
+        .invocation(createInvocation())
+        .topic(topic)
+        .lastAttemptTime(null)
+        .nextAttemptTime(nextAttemptTime.truncatedTo(MILLIS))
+        .build();
+  }
+
+  protected List<String> nextInTopics() throws Exception {
+    return txManager()
+        .inTransactionReturnsThrows(
+            tx ->
+                persistor().selectNextInTopics(tx, 10, now.plusMillis(1)).stream()
+                    .map(TransactionOutboxEntry::getId)
+                    .collect(Collectors.toList()));
+  }
+
   private TransactionOutboxEntry createEntry(
       String id, Instant nextAttemptTime, Invocation invocation) {
     return TransactionOutboxEntry.builder()
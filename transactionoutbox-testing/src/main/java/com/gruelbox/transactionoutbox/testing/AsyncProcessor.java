@@ -0,0 +1,21 @@
+package com.gruelbox.transactionoutbox.testing;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class AsyncProcessor {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(AsyncProcessor.class);
+
+  static final BlockingQueue<CompletableFuture<Void>> PENDING = new LinkedBlockingQueue<>();
+
+  CompletableFuture<Void> process(String itemId) {
+    LOGGER.info("Started work: {}", itemId);
+    var future = new CompletableFuture<Void>();
+    PENDING.add(future);
+    return future;
+  }
+}
@@ -0,0 +1,24 @@
+package com.gruelbox.transactionoutbox.testing;
+
+import com.gruelbox.transactionoutbox.Batchable;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class BatchableProcessor {
+
+  static final List<List<String>> CALLS = new CopyOnWriteArrayList<>();
+  static final AtomicInteger FAILURES = new AtomicInteger();
+
+  @Batchable(value = "processAll", maxBatchSize = 3)
+  void process(String itemId) {
+    processAll(List.of(itemId));
+  }
+
+  void processAll(List<String> itemIds) {
+    if (FAILURES.getAndUpdate(it -> Math.max(0, it - 1)) > 0) {
+      throw new IllegalStateException("Bulk failure");
+    }
+    CALLS.add(List.copyOf(itemIds));
+  }
+}
@@ -0,0 +1,26 @@
+package com.gruelbox.transactionoutbox.testing;
+
+import com.gruelbox.transactionoutbox.NoTransactionActiveException;
+import com.gruelbox.transactionoutbox.NonTransactional;
+import com.gruelbox.transactionoutbox.ThreadLocalContextTransactionManager;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import lombok.RequiredArgsConstructor;
+
+@RequiredArgsConstructor
+public class NonTransactionalProcessor {
+
+  static final List<Boolean> IN_TRANSACTION = new CopyOnWriteArrayList<>();
+
+  private final ThreadLocalContextTransactionManager transactionManager;
+
+  @NonTransactional
+  void process(String itemId) {
+    try {
+      transactionManager.requireTransaction(tx -> {});
+      IN_TRANSACTION.add(true);
+    } catch (NoTransactionActiveException e) {
+      IN_TRANSACTION.add(false);
+    }
+  }
+}